@@ -7,6 +7,20 @@ package core;
  * @author Michał Furgał
  */
 public abstract class AbstractNetMessage {
+
+    /*
+     * The uid this message has been received with, set by the transceiver
+     * decoding it, so dispatching does not look it up by class. 0 for messages
+     * created locally, since 0 is reserved.
+     */
+    int receivedUid;
+    /*
+     * The slot holding the latest message of the conflation key of this
+     * received message, while this message keeps its place in
+     * ReceivedMessageQueue. Null for other messages.
+     */
+    ReceivedMessageQueue.ConflationSlot conflationSlot;
+
     public abstract void fromBytes(byte[] bytes);
 
     public abstract void intoBytes(byte[] bytes);
@@ -0,0 +1,96 @@
+package core;
+
+import java.util.Arrays;
+
+
+/**
+ * Collects encoded messages written by {@link SocketTransceiver} into the
+ * payload of a single batch frame, which is compressed as one unit. The
+ * uncompressed payload starts with an index: entry count(4 bytes) followed by
+ * uid(4 bytes), flags(1 byte) and length(4 bytes) of each entry. Bytes of all
+ * entries follow the index in the same order.
+ *
+ * @author Michał Furgał
+ */
+final class BatchFrameBuilder {
+
+    static final int INDEX_ENTRY_SIZE_BYTES = 4 + 1 + 4;
+    /*
+     * Entry holds XOR against the previous message of the same uid.
+     */
+    static final byte FLAG_DELTA = 1;
+    /*
+     * Entry holds key(8 bytes) and bytes of a message forwarded to that key.
+     */
+    static final byte FLAG_FORWARDED = 2;
+
+    private byte[] index = new byte[INDEX_ENTRY_SIZE_BYTES * 16];
+    private byte[] data = new byte[SocketTransceiver.PACKET_SIZE_BYTES * 16];
+    private int count;
+    private int dataLength;
+
+    /**
+     * Appends an entry, copying given bytes.
+     *
+     * @param uid the uid of the message.
+     * @param flags the flags of the entry.
+     * @param bytes the encoded message.
+     */
+    void add(int uid, byte flags, byte[] bytes) {
+        final int indexOffset = count * INDEX_ENTRY_SIZE_BYTES;
+        if (indexOffset + INDEX_ENTRY_SIZE_BYTES > index.length) {
+            index = Arrays.copyOf(index, index.length * 2);
+        }
+        if (dataLength + bytes.length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, dataLength + bytes.length));
+        }
+        PrimitiveToByteConversionUtils.convertIntToByteArray(uid, index, indexOffset);
+        index[indexOffset + 4] = flags;
+        PrimitiveToByteConversionUtils.convertIntToByteArray(bytes.length, index, indexOffset + 5);
+        System.arraycopy(bytes, 0, data, dataLength, bytes.length);
+        dataLength += bytes.length;
+        count++;
+    }
+
+    /**
+     *
+     * @return the number of entries.
+     */
+    int count() {
+        return count;
+    }
+
+    /**
+     *
+     * @return the size of the uncompressed payload in bytes.
+     */
+    int size() {
+        return 4 + count * INDEX_ENTRY_SIZE_BYTES + dataLength;
+    }
+
+    /**
+     * Writes the uncompressed payload of all entries into given array and
+     * removes them.
+     *
+     * @param payload the array to write to, of at least {@link #size()}
+     * bytes.
+     * @return the number of bytes written.
+     */
+    int drainInto(byte[] payload) {
+        final int size = size();
+        final int indexLength = count * INDEX_ENTRY_SIZE_BYTES;
+        PrimitiveToByteConversionUtils.convertIntToByteArray(count, payload, 0);
+        System.arraycopy(index, 0, payload, 4, indexLength);
+        System.arraycopy(data, 0, payload, 4 + indexLength, dataLength);
+        clear();
+        return size;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+        count = 0;
+        dataLength = 0;
+    }
+}
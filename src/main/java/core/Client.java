@@ -1,7 +1,13 @@
 package core;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.net.ssl.SSLSession;
 
 
 /**
@@ -18,20 +24,170 @@ public class Client {
 
     private SocketTransceiver socketTransceiver;
 
+    private final NetMessageRegister register;
+
+    private DatagramTransceiver datagramTransceiver;
+
+    private DatagramSession datagramSession;
+
+    private boolean pollMode;
+
+    private SharedMemoryConfiguration sharedMemoryConfiguration;
+
     public Client(String host, int port, NetMessageRegister register) {
         socketTransceiver = new SocketTransceiver(register);
         this.host = host;
         this.port = port;
+        this.register = register;
+    }
+
+
+    /**
+     * Enables TLS for following {@link Client#connect()} calls. Sessions are
+     * resumed on reconnect if the server allows it.
+     *
+     * @param tlsConfiguration the configuration holding trusted certificates,
+     * or null to disable TLS.
+     */
+    public void setTlsConfiguration(TlsConfiguration tlsConfiguration) {
+        socketTransceiver.setTlsConfiguration(tlsConfiguration);
+    }
 
+    public boolean isPollMode() {
+        return pollMode;
     }
 
+    /**
+     * Enables or disables poll mode for following {@link Client#connect()}
+     * calls. In poll mode no thread is started for the connection: reading,
+     * decoding and writing of batches happen only in
+     * {@link Client#poll(int)}, called by the loop of the application. TLS
+     * is not supported in poll mode.
+     *
+     * @param pollMode true to connect in poll mode
+     */
+    public void setPollMode(boolean pollMode) {
+        this.pollMode = pollMode;
+    }
+
+    /**
+     * Makes following {@link Client#connect()} calls offer the server to move
+     * the connection to shared memory, if the server is on the same host and
+     * the connection is neither encrypted nor in poll mode. Messages are sent
+     * and received the same way, over TCP until the server accepts the offer.
+     *
+     * @param sharedMemoryConfiguration the configuration, or null to stay on
+     * TCP.
+     */
+    public void setSharedMemoryConfiguration(SharedMemoryConfiguration sharedMemoryConfiguration) {
+        this.sharedMemoryConfiguration = sharedMemoryConfiguration;
+    }
+
+    /**
+     *
+     * @return true if the connection has been moved to shared memory.
+     */
+    public boolean isSharedMemoryEnabled() {
+        return socketTransceiver.isSharedMemoryEnabled();
+    }
 
     public boolean connect() {
-        return socketTransceiver.tryConnect(host, port);
+        if (pollMode) {
+            return socketTransceiver.tryConnectPolled(host, port);
+        }
+        if (!socketTransceiver.tryConnect(host, port)) {
+            return false;
+        }
+        if (sharedMemoryConfiguration != null) {
+            socketTransceiver.offerSharedMemory(sharedMemoryConfiguration);
+        }
+        return true;
+    }
+
+    /**
+     * Reads and decodes received messages and writes waiting ones, without
+     * blocking. Only available in poll mode.
+     *
+     * @param maxMessages the maximum number of messages to add to
+     * {@link Client#getMessages()}
+     * @return the number of added messages, or -1 if the connection is closed
+     * @see SocketTransceiver#poll(int)
+     */
+    public int poll(int maxMessages) {
+        if (!pollMode) {
+            throw new IllegalStateException("The client is not in poll mode.");
+        }
+        return socketTransceiver.poll(maxMessages);
+    }
+
+    /**
+     * Attaches datagram transport to the already established connection, by
+     * handshaking with the datagram port announced by the server. Received
+     * datagram messages are returned by {@link Client#getMessages()} along
+     * with messages received via TCP.
+     *
+     * If the session fails, see
+     * {@link DatagramSession#setOnSessionFailedListener(core.DatagramSession.OnSessionFailedListener)},
+     * the whole connection is closed.
+     *
+     * @return true if the datagram session has been established.
+     */
+    public boolean connectDatagram() {
+        if (pollMode) {
+            //nobody else reads the session announced by the server
+            final long deadline = System.currentTimeMillis() + 2000;
+            while (!socketTransceiver.awaitSession(1) && System.currentTimeMillis() < deadline && socketTransceiver.poll(Integer.MAX_VALUE) >= 0) {
+            }
+        }
+        if (!socketTransceiver.awaitSession(2000) || socketTransceiver.getDatagramPort() < 0) {
+            Logger.getLogger(Client.class.getName()).log(Level.SEVERE, "[CLIENT]Server did not announce datagram transport.");
+            return false;
+        }
+        final DatagramTransceiver datagram = new DatagramTransceiver(register);
+        try {
+            datagram.bind();
+        } catch (IOException ex) {
+            Logger.getLogger(Client.class.getName()).log(Level.SEVERE, null, ex);
+            datagram.close();
+            return false;
+        }
+        final DatagramSession session = datagram.createSession(socketTransceiver.getSessionToken(), socketTransceiver.getSessionSecret(), socketTransceiver);
+        session.setRemoteAddress(new InetSocketAddress(host, socketTransceiver.getDatagramPort()));
+        final SocketTransceiver connection = socketTransceiver;
+        session.setOnSessionFailedListener(new DatagramSession.OnSessionFailedListener() {
+            @Override
+            public void onSessionFailed(DatagramSession failed) {
+                //the server waits for the lost packet forever, only closing the connection tells it
+                Logger.getLogger(Client.class.getName()).log(Level.WARNING, "[CLIENT]Datagram session failed, disconnecting.");
+                connection.disconnect();
+                datagram.close();
+            }
+        });
+        if (!session.handshake(2000)) {
+            datagram.close();
+            return false;
+        }
+        datagramTransceiver = datagram;
+        datagramSession = session;
+        return true;
+    }
+
+    /**
+     *
+     * @return the datagram session established by
+     * {@link Client#connectDatagram()}, or null.
+     */
+    public DatagramSession getDatagramSession() {
+        return datagramSession;
     }
 
     public void disconnect() {
         socketTransceiver.disconnect();
+        if (datagramTransceiver != null) {
+            datagramTransceiver.close();
+            datagramTransceiver = null;
+            datagramSession = null;
+        }
     }
     /**
      *
@@ -40,6 +196,15 @@ public class Client {
     public ConcurrentLinkedQueue<AbstractNetMessage> getMessages() {
         return socketTransceiver.getReceivedMessages();
     }
+
+    /**
+     *
+     * @return the TLS session of the connection to the server, or null if it
+     * is not encrypted
+     */
+    public SSLSession getTlsSession() {
+        return socketTransceiver.getTlsSession();
+    }
     /**
      *
      * @param toSend messages to send to connected server
@@ -48,4 +213,81 @@ public class Client {
     public boolean sendMessages(Collection<AbstractNetMessage> toSend) {
         return socketTransceiver.send(toSend);
     }
+
+    /**
+     *
+     * @param priority the outbound lane to use, or null to use lanes of
+     * message types
+     * @param toSend messages to send to connected server
+     * @return
+     */
+    public boolean sendMessages(MessagePriority priority, Collection<AbstractNetMessage> toSend) {
+        return socketTransceiver.send(priority, toSend);
+    }
+
+    /**
+     * Subscribes to a topic of the connected server, so that messages
+     * published to it by the server are received by this client.
+     *
+     * @param topic the name of the topic
+     * @return false if the request could not be written
+     * @see Server#publish(java.lang.String, core.AbstractNetMessage)
+     */
+    public boolean subscribe(String topic) {
+        return socketTransceiver.writeControlFrame(SocketTransceiver.CONTROL_FRAME_SUBSCRIBE, topic.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     *
+     * @param topic the name of the topic
+     * @return false if the request could not be written
+     */
+    public boolean unsubscribe(String topic) {
+        return socketTransceiver.writeControlFrame(SocketTransceiver.CONTROL_FRAME_UNSUBSCRIBE, topic.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Enables or disables delta encoding of messages sent to connected server.
+     *
+     * @param deltaEncodingEnabled true to send delta encoded messages
+     * @see SocketTransceiver#setDeltaEncodingEnabled(boolean)
+     */
+    public void setDeltaEncodingEnabled(boolean deltaEncodingEnabled) {
+        socketTransceiver.setDeltaEncodingEnabled(deltaEncodingEnabled);
+    }
+
+    /**
+     * Enables or disables batching of messages sent to connected server.
+     *
+     * @param maxBatchSizeBytes the uncompressed size of a batch which is
+     * written immediately, or 0 to disable batching
+     * @param maxBatchDelayInMicroseconds how long a batch may wait for more
+     * messages
+     * @see SocketTransceiver#setBatching(int, long)
+     */
+    public void setBatching(int maxBatchSizeBytes, long maxBatchDelayInMicroseconds) {
+        socketTransceiver.setBatching(maxBatchSizeBytes, maxBatchDelayInMicroseconds);
+    }
+
+    /**
+     * Makes messages received from the server decoded by given pool, must be
+     * called before connecting.
+     *
+     * @param decodePool the pool, or null to decode on the reader thread
+     * @see SocketTransceiver#setDecodePool(core.DecodePool)
+     */
+    public void setDecodePool(DecodePool decodePool) {
+        socketTransceiver.setDecodePool(decodePool);
+    }
+
+    /**
+     *
+     * @param channel the datagram channel to send messages on
+     * @param toSend messages to send to connected server
+     * @return false if datagram session is not established or sending failed
+     */
+    public boolean sendDatagramMessages(int channel, Collection<AbstractNetMessage> toSend) {
+        final DatagramSession session = datagramSession;
+        return session != null && session.send(channel, toSend);
+    }
 }
@@ -0,0 +1,482 @@
+package core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Joins several {@link Server} instances into a cluster sharing ownership of
+ * client connections. Every key, such as a player or session id, is owned by
+ * the node chosen by a {@link ConsistentHashRing} of all nodes, which is
+ * where the client of that key is expected to connect. Messages sent to a
+ * key bound on another node are forwarded to it over a link using the same
+ * framed protocol as clients, with forwarded messages batched.
+ *
+ * Each node listens for links of its peers on a cluster port, separate from
+ * the port of its clients, and opens a single outbound link to every peer in
+ * the background, once the peer is added or the node is started, and again
+ * whenever the link is lost. A peer which can not be reached is retried after
+ * a delay doubling with every failure. Messages forwarded to a peer while its
+ * link is being opened are queued, up to
+ * {@link #setLinkMaxPendingMessages(int)}, and sent in order once it is
+ * open, so senders never wait for a link.
+ *
+ * Anyone reaching the cluster port could otherwise inject messages into
+ * clients of the node, so all nodes must share a secret, see
+ * {@link #setClusterSecret(byte[])}. Every link proves it by the MAC of the
+ * random token of its connection, and is disconnected if it forwards a
+ * message without the proof. The secret authenticates links only, on an
+ * untrusted network links should use TLS as well, see
+ * {@link #setLinkTlsConfiguration(core.TlsConfiguration)}.
+ *
+ * @author Michał Furgał
+ */
+public class ClusterNode {
+
+    private final String nodeId;
+    private final NetMessageRegister register;
+    private final ConsistentHashRing ring;
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Server.ClientConnection> boundConnections = new ConcurrentHashMap<>();
+    /*
+     * Accepts links of peers, which only carry forwarded messages.
+     */
+    private final Server linkServer = new Server();
+    private volatile int linkBatchSizeBytes = 16 * 1024;
+    private volatile long linkBatchDelayInMicroseconds = 500;
+    private volatile byte[] clusterSecret;
+    private volatile TlsConfiguration linkTlsConfiguration;
+    private volatile int linkMaxPendingMessages = 10000;
+    private static final long MIN_RECONNECT_DELAY_IN_MILLISECONDS = 100;
+    private static final long MAX_RECONNECT_DELAY_IN_MILLISECONDS = 10000;
+    /*
+     * Opens links of all nodes, a connection attempt blocks its thread until
+     * the peer answers or the attempt times out.
+     */
+    private static final ScheduledExecutorService LINK_CONNECTORS = Executors.newScheduledThreadPool(4, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "cluster-link-connector");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicLong forwardedMessagesCount = new AtomicLong();
+    private final AtomicLong receivedForwardedMessagesCount = new AtomicLong();
+    private final AtomicLong undeliverableMessagesCount = new AtomicLong();
+
+    /**
+     *
+     * @param nodeId the id of this node, unique in the cluster.
+     * @param register the register shared by all nodes.
+     */
+    public ClusterNode(String nodeId, NetMessageRegister register) {
+        this(nodeId, register, new ConsistentHashRing());
+    }
+
+    /**
+     *
+     * @param nodeId the id of this node, unique in the cluster.
+     * @param register the register shared by all nodes.
+     * @param ring the empty ring to place nodes on, all nodes must use the
+     * same number of virtual nodes.
+     */
+    public ClusterNode(String nodeId, NetMessageRegister register, ConsistentHashRing ring) {
+        this.nodeId = nodeId;
+        this.register = register;
+        this.ring = ring;
+        ring.add(nodeId);
+        linkServer.setForwardedMessageHandler(new SocketTransceiver.ForwardedMessageHandler() {
+            @Override
+            public void onForwardedMessage(long key, AbstractNetMessage message) {
+                receivedForwardedMessagesCount.incrementAndGet();
+                //forwarded messages are never forwarded again, so a stale ring can not make them loop
+                deliverLocally(key, Arrays.asList(message));
+            }
+        });
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public ConsistentHashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Changes batching of links opened afterwards.
+     *
+     * @param maxBatchSizeBytes the uncompressed size of a batch which is
+     * written immediately, or 0 to disable batching.
+     * @param maxBatchDelayInMicroseconds how long a batch may wait for more
+     * messages.
+     * @see SocketTransceiver#setBatching(int, long)
+     */
+    public void setLinkBatching(int maxBatchSizeBytes, long maxBatchDelayInMicroseconds) {
+        this.linkBatchSizeBytes = maxBatchSizeBytes;
+        this.linkBatchDelayInMicroseconds = maxBatchDelayInMicroseconds;
+    }
+
+    /**
+     * Sets the secret shared by all nodes of the cluster, which links prove
+     * before forwarding messages. It must be set before the node is started.
+     *
+     * @param clusterSecret the secret, preferably at least 16 random bytes.
+     */
+    public void setClusterSecret(byte[] clusterSecret) {
+        if (clusterSecret == null || clusterSecret.length == 0) {
+            throw new IllegalArgumentException("clusterSecret is empty");
+        }
+        this.clusterSecret = clusterSecret.clone();
+        linkServer.setForwardingSecret(clusterSecret);
+    }
+
+    /**
+     * Enables TLS on links accepted and opened afterwards.
+     *
+     * @param linkTlsConfiguration the configuration holding the certificate
+     * of this node and trusting certificates of its peers, or null to disable
+     * TLS.
+     */
+    public void setLinkTlsConfiguration(TlsConfiguration linkTlsConfiguration) {
+        this.linkTlsConfiguration = linkTlsConfiguration;
+        linkServer.setTlsConfiguration(linkTlsConfiguration);
+    }
+
+    public int getLinkMaxPendingMessages() {
+        return linkMaxPendingMessages;
+    }
+
+    /**
+     * Limits how many messages are queued for a peer whose link is not open,
+     * further messages are undeliverable until it opens.
+     *
+     * @param linkMaxPendingMessages the limit per peer, 0 to drop messages
+     * until the link is open.
+     */
+    public void setLinkMaxPendingMessages(int linkMaxPendingMessages) {
+        if (linkMaxPendingMessages < 0) {
+            throw new IllegalArgumentException("linkMaxPendingMessages < 0");
+        }
+        this.linkMaxPendingMessages = linkMaxPendingMessages;
+    }
+
+    /**
+     * Starts accepting links of peers, and opens links to peers added so
+     * far.
+     *
+     * @param clusterPort the port peers connect to, 0 to pick any free port.
+     * @return a future completed once the port is bound.
+     * @throws IllegalStateException if the cluster secret is not set.
+     * @see Server#startServerAsync(int, core.NetMessageRegister)
+     */
+    public CompletableFuture<Server> start(int clusterPort) {
+        if (clusterSecret == null) {
+            throw new IllegalStateException("The cluster secret must be set before starting node:" + nodeId);
+        }
+        final CompletableFuture<Server> started = linkServer.startServerAsync(clusterPort, register);
+        for (Peer peer : peers.values()) {
+            peer.scheduleConnect(0);
+        }
+        return started;
+    }
+
+    /**
+     * Stops accepting links and closes links to all peers, messages still
+     * queued for them are undeliverable.
+     */
+    public void stop() {
+        linkServer.stopServer();
+        for (Peer peer : peers.values()) {
+            peer.close();
+        }
+    }
+
+    /**
+     *
+     * @return the port peers connect to, or -1 if the node is not started.
+     */
+    public int getClusterPort() {
+        return linkServer.getLocalPort();
+    }
+
+    /**
+     * Adds another node to the cluster, taking over keys of its ring
+     * segments. The link to the peer is opened in the background, once the
+     * cluster secret is set.
+     *
+     * @param peerId the id of the peer.
+     * @param host the host of the peer.
+     * @param clusterPort the cluster port of the peer.
+     */
+    public void addPeer(String peerId, String host, int clusterPort) {
+        if (nodeId.equals(peerId)) {
+            throw new IllegalArgumentException("A node can not be its own peer:" + peerId);
+        }
+        final Peer peer = new Peer(host, clusterPort);
+        final Peer previous = peers.put(peerId, peer);
+        if (previous != null) {
+            previous.close();
+        }
+        ring.add(peerId);
+        peer.scheduleConnect(0);
+    }
+
+    /**
+     * Removes a node from the cluster, its keys are taken over by the
+     * remaining nodes.
+     *
+     * @param peerId the id of the peer.
+     */
+    public void removePeer(String peerId) {
+        ring.remove(peerId);
+        final Peer removed = peers.remove(peerId);
+        if (removed != null) {
+            removed.close();
+        }
+    }
+
+    /**
+     *
+     * @param key the key to look up.
+     * @return the id of the node owning the key.
+     */
+    public String getOwner(long key) {
+        return ring.getNode(key);
+    }
+
+    /**
+     *
+     * @param key the key to look up.
+     * @return true if this node owns the key, so its client should be
+     * connected here.
+     */
+    public boolean isOwner(long key) {
+        return nodeId.equals(ring.getNode(key));
+    }
+
+    /**
+     * Binds a key to a client connected to this node, so messages sent to the
+     * key by any node are delivered to that client.
+     *
+     * @param key the key of the client.
+     * @param clientConnection the connection of the client.
+     */
+    public void bind(long key, Server.ClientConnection clientConnection) {
+        boundConnections.put(key, clientConnection);
+    }
+
+    /**
+     * Removes the binding of a key, unless it has been bound to another
+     * connection in the meantime.
+     *
+     * @param key the key of the client.
+     * @param clientConnection the connection bound to the key.
+     */
+    public void unbind(long key, Server.ClientConnection clientConnection) {
+        boundConnections.remove(key, clientConnection);
+    }
+
+    public boolean send(long key, AbstractNetMessage... toSend) {
+        return send(key, Arrays.asList(toSend));
+    }
+
+    /**
+     * Sends messages to the client bound to a key. If it is not bound on
+     * this node, messages are forwarded to the node owning the key, or queued
+     * until the link to that node is open.
+     *
+     * @param key the key of the client.
+     * @param toSend messages to send.
+     * @return false if messages could not be delivered, forwarded or queued.
+     */
+    public boolean send(long key, Collection<AbstractNetMessage> toSend) {
+        final Server.ClientConnection bound = boundConnections.get(key);
+        if (bound != null && !bound.transceiver.isDead()) {
+            return bound.transceiver.send(toSend);
+        }
+        final String owner = ring.getNode(key);
+        if (owner == null || owner.equals(nodeId)) {
+            return deliverLocally(key, toSend);
+        }
+        final Peer peer = peers.get(owner);
+        if (peer == null) {
+            undeliverableMessagesCount.addAndGet(toSend.size());
+            return false;
+        }
+        return peer.forward(key, toSend);
+    }
+
+    /**
+     *
+     * @return how many messages have been forwarded to other nodes.
+     */
+    public long getForwardedMessagesCount() {
+        return forwardedMessagesCount.get();
+    }
+
+    /**
+     *
+     * @return how many messages have been forwarded to this node by others.
+     */
+    public long getReceivedForwardedMessagesCount() {
+        return receivedForwardedMessagesCount.get();
+    }
+
+    /**
+     *
+     * @return how many messages have been dropped, because no client was
+     * bound to their key, or its owner was not reachable and the queue of
+     * its link was full.
+     */
+    public long getUndeliverableMessagesCount() {
+        return undeliverableMessagesCount.get();
+    }
+
+    private boolean deliverLocally(long key, Collection<AbstractNetMessage> toSend) {
+        final Server.ClientConnection bound = boundConnections.get(key);
+        if (bound == null || bound.transceiver.isDead()) {
+            if (bound != null) {
+                boundConnections.remove(key, bound);
+            }
+            undeliverableMessagesCount.addAndGet(toSend.size());
+            Logger.getLogger(ClusterNode.class.getName()).log(Level.FINE, "[CLUSTER]No client is bound to key:" + key + " on node:" + nodeId);
+            return false;
+        }
+        return bound.transceiver.send(toSend);
+    }
+
+    private final class Peer implements Runnable {
+
+        private final String host;
+        private final int port;
+        private SocketTransceiver link;
+        private boolean closed;
+        /*
+         * Set while an attempt to open the link is scheduled or running.
+         */
+        private boolean connecting;
+        private long reconnectDelayInMilliseconds;
+        /*
+         * Messages forwarded while the link is not open, in order.
+         */
+        private final ArrayDeque<PendingForward> pending = new ArrayDeque<>();
+        private int pendingMessagesCount;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /*
+         * Forwards messages over the link, or queues them until it is open.
+         */
+        boolean forward(long key, Collection<AbstractNetMessage> toSend) {
+            final SocketTransceiver open;
+            synchronized (this) {
+                if (!closed && (link == null || link.isDead())) {
+                    link = null;
+                    scheduleConnect(0);
+                    if (pendingMessagesCount + toSend.size() <= linkMaxPendingMessages) {
+                        //copied, the caller may reuse its collection
+                        pending.add(new PendingForward(key, new ArrayList<>(toSend)));
+                        pendingMessagesCount += toSend.size();
+                        return true;
+                    }
+                }
+                open = link;
+            }
+            if (open == null) {
+                undeliverableMessagesCount.addAndGet(toSend.size());
+                return false;
+            }
+            forwardedMessagesCount.addAndGet(toSend.size());
+            return open.forward(key, toSend);
+        }
+
+        /*
+         * Schedules an attempt to open the link, unless one is pending or the
+         * cluster secret, which links prove, is not set yet.
+         */
+        synchronized void scheduleConnect(long delayInMilliseconds) {
+            if (closed || connecting || clusterSecret == null) {
+                return;
+            }
+            connecting = true;
+            LINK_CONNECTORS.schedule(this, delayInMilliseconds, TimeUnit.MILLISECONDS);
+        }
+
+        /*
+         * Opens the link without holding the monitor, so senders only queue
+         * their messages meanwhile.
+         */
+        @Override
+        public void run() {
+            final SocketTransceiver opened = new SocketTransceiver(register);
+            opened.setBatching(linkBatchSizeBytes, linkBatchDelayInMicroseconds);
+            opened.setTlsConfiguration(linkTlsConfiguration);
+            opened.setForwardingSecret(clusterSecret);
+            final boolean connected = opened.tryConnect(host, port);
+            final boolean proven = connected && opened.proveForwardingSecret();
+            if (connected && !proven) {
+                opened.disconnect();
+            }
+            synchronized (this) {
+                connecting = false;
+                if (closed) {
+                    opened.disconnect();
+                    return;
+                }
+                if (!proven) {
+                    reconnectDelayInMilliseconds = Math.min(MAX_RECONNECT_DELAY_IN_MILLISECONDS, Math.max(MIN_RECONNECT_DELAY_IN_MILLISECONDS, reconnectDelayInMilliseconds * 2));
+                    Logger.getLogger(ClusterNode.class.getName()).log(Level.WARNING, "[CLUSTER]Could not open link to " + host + ":" + port + ", retrying in " + reconnectDelayInMilliseconds + " ms");
+                    scheduleConnect(reconnectDelayInMilliseconds);
+                    return;
+                }
+                reconnectDelayInMilliseconds = 0;
+                //queued messages go first, senders wait for the monitor meanwhile, so they can not overtake them
+                PendingForward forwarded;
+                while ((forwarded = pending.poll()) != null) {
+                    forwardedMessagesCount.addAndGet(forwarded.messages.size());
+                    opened.forward(forwarded.key, forwarded.messages);
+                }
+                pendingMessagesCount = 0;
+                link = opened;
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            if (link != null) {
+                link.disconnect();
+                link = null;
+            }
+            undeliverableMessagesCount.addAndGet(pendingMessagesCount);
+            pending.clear();
+            pendingMessagesCount = 0;
+        }
+    }
+
+    private static final class PendingForward {
+
+        final long key;
+        final Collection<AbstractNetMessage> messages;
+
+        PendingForward(long key, Collection<AbstractNetMessage> messages) {
+            this.key = key;
+            this.messages = messages;
+        }
+    }
+}
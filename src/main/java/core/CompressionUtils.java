@@ -1,50 +1,217 @@
 package core;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 
 /**
  *
  * Utility class used to compress and decompress byte arrays.
  *
+ * Each thread reuses its own {@link Deflater}, {@link Inflater} and scratch
+ * array, so only the returned array is allocated per call.
+ *
  * @author Michał Furgał
  */
 public class CompressionUtils {
 
+    /*
+     * Scratch arrays grown above this size are dropped after use, so a single
+     * large message does not pin memory of the thread forever.
+     */
+    private static final int MAX_RETAINED_SCRATCH_BYTES = 64 * 1024;
+    /*
+     * Decompressed data is never larger than this unless a caller allows it,
+     * so a small compressed input can not expand into any amount of memory.
+     */
+    public static final int MAX_DECOMPRESSED_LENGTH_BYTES = 1024 * 1024;
+    private static final ThreadLocal<Codec> CODECS = new ThreadLocal<Codec>() {
+        @Override
+        protected Codec initialValue() {
+            return new Codec();
+        }
+    };
 
     /**
-     * Compresses given byte array using
-     * {@link java.util.zip.DeflaterOutputStream}.
+     * Compresses given byte array using {@link java.util.zip.Deflater}.
      *
      * @param in the byte array to compress.
      * @throws IOException if an I/O error occurs.
      * @return the compressed <code>in</code> array as a new array.
      */
     public static byte[] compressByteArray(byte[] in) throws IOException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        try (final DeflaterOutputStream dos = new DeflaterOutputStream(os)) {
-            dos.write(in);
+        return compressByteArray(in, 0, in.length);
+    }
+
+    /**
+     * Compresses specified range of given byte array using
+     * {@link java.util.zip.Deflater}.
+     *
+     * @param in the byte array to compress.
+     * @param offset index of the first byte to compress.
+     * @param length the number of bytes to compress.
+     * @throws IOException if an I/O error occurs.
+     * @return the compressed range as a new array.
+     */
+    public static byte[] compressByteArray(byte[] in, int offset, int length) throws IOException {
+        final Codec codec = CODECS.get();
+        final Deflater deflater = codec.deflater;
+        deflater.reset();
+        deflater.setInput(in, offset, length);
+        deflater.finish();
+        byte[] out = codec.scratch(length + 64);
+        int count = 0;
+        while (!deflater.finished()) {
+            if (count == out.length) {
+                out = codec.grow(out);
+            }
+            count += deflater.deflate(out, count, out.length - count);
         }
-        return os.toByteArray();
+        final byte[] compressed = Arrays.copyOf(out, count);
+        codec.trim();
+        return compressed;
+    }
+
+    /**
+     * Compresses specified range of given byte array directly into another
+     * array, which lets callers compress into pooled buffers.
+     *
+     * @param in the byte array to compress.
+     * @param offset index of the first byte to compress.
+     * @param length the number of bytes to compress.
+     * @param out the array to write compressed bytes to, having at least
+     * {@link #maxCompressedLength(int)} bytes available after
+     * <code>outOffset</code>.
+     * @param outOffset index of the first compressed byte in <code>out</code>.
+     * @throws IOException if compressed bytes do not fit in <code>out</code>.
+     * @return the number of compressed bytes.
+     */
+    public static int compressByteArray(byte[] in, int offset, int length, byte[] out, int outOffset) throws IOException {
+        final Deflater deflater = CODECS.get().deflater;
+        deflater.reset();
+        deflater.setInput(in, offset, length);
+        deflater.finish();
+        int count = 0;
+        while (!deflater.finished()) {
+            final int deflated = deflater.deflate(out, outOffset + count, out.length - outOffset - count);
+            if (deflated == 0 && outOffset + count == out.length) {
+                throw new IOException("Compressed data exceeds the output array, input length:" + length);
+            }
+            count += deflated;
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @param length the number of bytes to compress.
+     * @return the maximum number of bytes compressing <code>length</code>
+     * bytes may produce.
+     */
+    public static int maxCompressedLength(int length) {
+        //bound of zlib, plus a margin for the header and checksum
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13 + 16;
     }
+
     /**
-     * Decompresses given byte array using
-     * {@link java.util.zip.InflaterOutputStream}.
+     * Decompresses given byte array using {@link java.util.zip.Inflater}.
      *
      * @param in the byte array to decompressByteArray.
      * @throws IOException if an I/O error occurs.
      * @return the decompressed <code>in</code> array as a new array.
      */
     public static byte[] decompressByteArray(byte[] in) throws IOException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        try (final InflaterOutputStream ios = new InflaterOutputStream(os)) {
-            ios.write(in);
-            ios.flush();
+        return decompressByteArray(in, 0, in.length);
+    }
+
+    /**
+     * Decompresses specified range of given byte array using
+     * {@link java.util.zip.Inflater}.
+     *
+     * @param in the byte array to decompress.
+     * @param offset index of the first byte to decompress.
+     * @param length the number of bytes to decompress.
+     * @throws IOException if the data is corrupted or truncated, or
+     * decompresses to more than {@link #MAX_DECOMPRESSED_LENGTH_BYTES}.
+     * @return the decompressed range as a new array.
+     */
+    public static byte[] decompressByteArray(byte[] in, int offset, int length) throws IOException {
+        return decompressByteArray(in, offset, length, MAX_DECOMPRESSED_LENGTH_BYTES);
+    }
+
+    /**
+     * Decompresses specified range of given byte array using
+     * {@link java.util.zip.Inflater}, failing as soon as the output exceeds
+     * given length.
+     *
+     * @param in the byte array to decompress.
+     * @param offset index of the first byte to decompress.
+     * @param length the number of bytes to decompress.
+     * @param maxDecompressedLength the maximum length of the decompressed
+     * data.
+     * @throws IOException if the data is corrupted or truncated, or
+     * decompresses to more than <code>maxDecompressedLength</code> bytes.
+     * @return the decompressed range as a new array.
+     */
+    public static byte[] decompressByteArray(byte[] in, int offset, int length, int maxDecompressedLength) throws IOException {
+        final Codec codec = CODECS.get();
+        final Inflater inflater = codec.inflater;
+        inflater.reset();
+        inflater.setInput(in, offset, length);
+        byte[] out = codec.scratch((int) Math.min(maxDecompressedLength + 1L, Math.max(SocketTransceiver.PACKET_SIZE_BYTES, length * 4L)));
+        int count = 0;
+        try {
+            while (!inflater.finished()) {
+                if (count == out.length) {
+                    //one byte above the limit is enough to tell it has been exceeded
+                    out = codec.grow(out, (int) Math.min(Integer.MAX_VALUE, maxDecompressedLength + 1L));
+                }
+                final int inflated = inflater.inflate(out, count, out.length - count);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed data, inflated so far:" + count);
+                }
+                count += inflated;
+                if (count > maxDecompressedLength) {
+                    throw new IOException("Decompressed data exceeds " + maxDecompressedLength + " bytes, compressed length:" + length);
+                }
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(ex);
         }
-        return os.toByteArray();
+        final byte[] decompressed = Arrays.copyOf(out, count);
+        codec.trim();
+        return decompressed;
     }
 
+    private static final class Codec {
+
+        final Deflater deflater = new Deflater();
+        final Inflater inflater = new Inflater();
+        private byte[] scratch = new byte[1024];
+
+        byte[] scratch(int minimumLength) {
+            if (scratch.length < minimumLength) {
+                scratch = new byte[minimumLength];
+            }
+            return scratch;
+        }
+
+        byte[] grow(byte[] out) {
+            return grow(out, Integer.MAX_VALUE);
+        }
+
+        byte[] grow(byte[] out, int maxLength) {
+            scratch = Arrays.copyOf(out, (int) Math.min(maxLength, out.length * 2L));
+            return scratch;
+        }
+
+        void trim() {
+            if (scratch.length > MAX_RETAINED_SCRATCH_BYTES) {
+                scratch = new byte[1024];
+            }
+        }
+    }
 }
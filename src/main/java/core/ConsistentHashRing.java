@@ -0,0 +1,129 @@
+package core;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.BiFunction;
+
+
+/**
+ * Maps keys to nodes of a cluster, so that adding or removing a node moves
+ * only the keys it takes over or owned. Every node is placed on a ring of 64
+ * bit hashes at many points(virtual nodes), which evens out the share of keys
+ * of each node, and a key is owned by the first node at or after its hash.
+ *
+ * Hashes depend only on node ids and keys, so all nodes knowing the same set
+ * of nodes agree on the owner of every key.
+ *
+ * @author Michał Furgał
+ */
+public class ConsistentHashRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    /*
+     * Picks the node keeping a colliding point of the ring.
+     */
+    private static final BiFunction<String, String, String> SMALLER_ID = new BiFunction<String, String, String>() {
+        @Override
+        public String apply(String current, String added) {
+            return current.compareTo(added) <= 0 ? current : added;
+        }
+    };
+
+    private final int virtualNodes;
+    private final ConcurrentSkipListMap<Long, String> ring = new ConcurrentSkipListMap<>();
+
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     *
+     * @param virtualNodes how many points of the ring each node takes.
+     */
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes <= 0");
+        }
+        this.virtualNodes = virtualNodes;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * Places a node on the ring.
+     *
+     * @param nodeId the unique id of the node.
+     */
+    public void add(String nodeId) {
+        for (int i = 0; i < virtualNodes; i++) {
+            //on a hash collision the smaller id wins, whatever the order nodes are added in
+            ring.merge(hash(nodeId, i), nodeId, SMALLER_ID);
+        }
+    }
+
+    /**
+     * Removes a node from the ring, its keys are taken over by the following
+     * nodes.
+     *
+     * @param nodeId the id of the node.
+     */
+    public void remove(String nodeId) {
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.remove(hash(nodeId, i), nodeId);
+        }
+    }
+
+    /**
+     *
+     * @param key the key to look up.
+     * @return the id of the node owning the key, or null if the ring is
+     * empty.
+     */
+    public String getNode(long key) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(mix(key));
+        if (entry == null) {
+            //wrap around the ring
+            entry = ring.firstEntry();
+        }
+        return entry != null ? entry.getValue() : null;
+    }
+
+    /**
+     *
+     * @return ids of all nodes on the ring.
+     */
+    public Set<String> getNodes() {
+        return Collections.unmodifiableSet(new TreeSet<>(ring.values()));
+    }
+
+    /*
+     * FNV-1a of the node id and the index of the virtual node, finished by
+     * mix() to spread similar ids over the whole ring.
+     */
+    private static long hash(String nodeId, int virtualNode) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < nodeId.length(); i++) {
+            hash = (hash ^ nodeId.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ virtualNode) * 0x100000001b3L;
+        return mix(hash);
+    }
+
+    /*
+     * Finalizer of MurmurHash3, sequential keys end up far apart.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
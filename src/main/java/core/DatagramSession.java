@@ -0,0 +1,499 @@
+package core;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * Represents one peer communicating via {@link DatagramTransceiver}. Messages
+ * are sent on one of {@link DatagramSession#MAX_CHANNELS} channels, each of
+ * them having its own {@link DeliveryMode} and sequence numbers, so a lost
+ * packet on one channel never delays messages on another one.
+ *
+ * @author Michał Furgał
+ */
+public class DatagramSession {
+
+    public static final int MAX_CHANNELS = 256;
+    /*
+     * How many out of order reliable messages are buffered per channel, newer
+     * ones are dropped and will be resent by the remote side.
+     */
+    private static final int MAX_OUT_OF_ORDER_MESSAGES = 1024;
+    private static final String HELLO_MAC_ALGORITHM = "HmacSHA256";
+
+
+    private final DatagramTransceiver transceiver;
+    private final long sessionToken;
+    private final byte[] sessionSecret;
+    private final ConcurrentLinkedQueue<AbstractNetMessage> receivedMessages;
+    /*
+     * The TCP connection of the same client, whose rate limiter, admission
+     * policy and conflation apply to messages received by the session, or
+     * null to append them to receivedMessages as they are.
+     */
+    private final SocketTransceiver connection;
+    private final DeliveryMode[] channelModes = new DeliveryMode[MAX_CHANNELS];
+    private final ChannelState[] channels = new ChannelState[MAX_CHANNELS];
+    private volatile SocketAddress remoteAddress;
+    private volatile boolean established;
+    /*
+     * Counter of handshakes sent by this side, and the last one accepted from
+     * the remote side, used only by the reader thread. A handshake with an
+     * older counter is a replay.
+     */
+    private final AtomicInteger helloCounter = new AtomicInteger();
+    private int lastAcceptedHelloCounter;
+    private final AtomicLong droppedCount = new AtomicLong();
+    /*
+     * Set once a reliable packet has been given up, after which the channel
+     * of the remote side can never deliver its following packets in order.
+     */
+    private volatile boolean failed;
+    private volatile OnSessionFailedListener onSessionFailedListener;
+
+    DatagramSession(DatagramTransceiver transceiver, long sessionToken, byte[] sessionSecret, ConcurrentLinkedQueue<AbstractNetMessage> receivedMessages) {
+        this(transceiver, sessionToken, sessionSecret, receivedMessages, null);
+    }
+
+    DatagramSession(DatagramTransceiver transceiver, long sessionToken, byte[] sessionSecret, SocketTransceiver connection) {
+        this(transceiver, sessionToken, sessionSecret, connection.getReceivedMessages(), connection);
+    }
+
+    private DatagramSession(DatagramTransceiver transceiver, long sessionToken, byte[] sessionSecret, ConcurrentLinkedQueue<AbstractNetMessage> receivedMessages, SocketTransceiver connection) {
+        this.transceiver = transceiver;
+        this.sessionToken = sessionToken;
+        this.sessionSecret = sessionSecret.clone();
+        this.receivedMessages = receivedMessages;
+        this.connection = connection;
+        Arrays.fill(channelModes, DeliveryMode.UNRELIABLE);
+        for (int i = 0; i < MAX_CHANNELS; i++) {
+            channels[i] = new ChannelState();
+        }
+    }
+
+    public long getSessionToken() {
+        return sessionToken;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Sets the address of the remote side. Client side sessions know it
+     * upfront, server side sessions learn it from the handshake.
+     *
+     * @param remoteAddress the address to send packets to.
+     */
+    public void setRemoteAddress(SocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     *
+     * @return true if the handshake between both sides has completed.
+     */
+    public boolean isEstablished() {
+        return established;
+    }
+
+    /**
+     *
+     * @return true if the session has failed, because a reliable packet could
+     * not be delivered, see {@link DatagramTransceiver#setMaxResends(int)}.
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Sets the listener told when the session fails. The session is already
+     * removed from its transceiver by then, and the remote side is never told
+     * by datagrams, so the owner is expected to close the TCP connection of
+     * the session, as {@link Client} and {@link Server} do.
+     *
+     * @param onSessionFailedListener the listener, called by the reader
+     * thread of the transceiver.
+     */
+    public void setOnSessionFailedListener(OnSessionFailedListener onSessionFailedListener) {
+        this.onSessionFailedListener = onSessionFailedListener;
+    }
+
+    /**
+     * Sets the {@link DeliveryMode} used by messages sent on specified
+     * channel. By default every channel is {@link DeliveryMode#UNRELIABLE}.
+     *
+     * @param channel the channel number, from 0 to
+     * {@link DatagramSession#MAX_CHANNELS} - 1.
+     * @param mode the delivery mode to use.
+     */
+    public void setChannelMode(int channel, DeliveryMode mode) {
+        checkChannel(channel);
+        channelModes[channel] = mode;
+    }
+
+    public DeliveryMode getChannelMode(int channel) {
+        checkChannel(channel);
+        return channelModes[channel];
+    }
+
+    /**
+     * Repeatedly sends the handshake packet until the remote side acknowledges
+     * it or the timeout passes. Called by the client side.
+     *
+     * @param timeoutInMilliseconds how long to wait for acknowledgement.
+     * @return true if the session has been established.
+     */
+    public boolean handshake(long timeoutInMilliseconds) {
+        final long deadline = System.currentTimeMillis() + timeoutInMilliseconds;
+        final int counter = helloCounter.incrementAndGet();
+        final byte[] hello = DatagramTransceiver.createPacket(sessionToken, DatagramTransceiver.PACKET_HELLO, 0, DeliveryMode.UNRELIABLE, counter, 0, helloMac(counter));
+        while (!established && System.currentTimeMillis() < deadline) {
+            try {
+                transceiver.sendPacket(remoteAddress, hello);
+                synchronized (this) {
+                    if (!established) {
+                        wait(Math.max(1, transceiver.getResendIntervalInMilliseconds()));
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(DatagramSession.class.getName()).log(Level.SEVERE, null, ex);
+                return false;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return established;
+    }
+
+    public boolean send(int channel, Collection<AbstractNetMessage> toSend) {
+        for (AbstractNetMessage msg : toSend) {
+            if (!send(channel, msg)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends given messages on specified channel, using the
+     * {@link DeliveryMode} of that channel.
+     *
+     * @param channel the channel number.
+     * @param messages messages to send.
+     * @return true if all messages have been handed to the channel, false
+     * if sending failed or the session has failed.
+     */
+    public boolean send(int channel, AbstractNetMessage... messages) {
+        checkChannel(channel);
+        if (failed) {
+            return false;
+        }
+        final DeliveryMode mode = channelModes[channel];
+        final ChannelState state = channels[channel];
+        for (AbstractNetMessage message : messages) {
+            try {
+                final byte[] writeBuffer = new byte[SocketTransceiver.PACKET_SIZE_BYTES];
+                message.intoBytes(writeBuffer);
+                final byte[] dataCompressed = CompressionUtils.compressByteArray(writeBuffer);
+                final int uid = transceiver.getRegister().get(message.getClass());
+                final int sequence = state.nextOutgoingSequence.getAndIncrement();
+                final byte[] packet = DatagramTransceiver.createPacket(sessionToken, DatagramTransceiver.PACKET_DATA, channel, mode, sequence, uid, dataCompressed);
+                if (packet.length > DatagramTransceiver.MAX_DATAGRAM_SIZE_BYTES) {
+                    throw new Exception("Datagram too large:" + packet.length);
+                }
+                if (mode == DeliveryMode.RELIABLE_ORDERED) {
+                    state.unacknowledged.put(sequence, new PendingPacket(packet));
+                }
+                transceiver.sendPacket(remoteAddress, packet);
+            } catch (Exception ex) {
+                Logger.getLogger(DatagramSession.class.getName()).log(Level.SEVERE, null, ex);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return how many reliable packets are still waiting for acknowledgement.
+     */
+    public int getUnacknowledgedCount() {
+        int count = 0;
+        for (ChannelState state : channels) {
+            count += state.unacknowledged.size();
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @return how many reliable packets have been given up when the session
+     * failed.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    void resendUnacknowledgedPackets(long resendIntervalInMilliseconds, int maxResends) {
+        if (remoteAddress == null) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long intervalNanos = resendIntervalInMilliseconds * 1_000_000L;
+        for (ChannelState state : channels) {
+            if (state.unacknowledged.isEmpty()) {
+                continue;
+            }
+            final Iterator<PendingPacket> iterator = state.unacknowledged.values().iterator();
+            while (iterator.hasNext()) {
+                final PendingPacket pending = iterator.next();
+                if (now - pending.lastSentNanos >= intervalNanos) {
+                    if (pending.resends >= maxResends) {
+                        //the remote side is gone, or can not take the packet
+                        fail(maxResends);
+                        return;
+                    }
+                    pending.resends++;
+                    pending.lastSentNanos = now;
+                    try {
+                        transceiver.sendPacket(remoteAddress, pending.packet);
+                    } catch (IOException ex) {
+                        Logger.getLogger(DatagramSession.class.getName()).log(Level.FINE, null, ex);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Gives up the whole session, since the remote side waits for the lost
+     * packet forever, parking all following packets of its channel.
+     */
+    private void fail(int maxResends) {
+        failed = true;
+        transceiver.removeSession(sessionToken);
+        for (ChannelState state : channels) {
+            droppedCount.addAndGet(state.unacknowledged.size());
+            state.unacknowledged.clear();
+        }
+        Logger.getLogger(DatagramSession.class.getName()).log(Level.WARNING, "[DATAGRAM]Reliable packet resent " + maxResends + " times to:" + remoteAddress + ", the session has failed.");
+        final OnSessionFailedListener listener = onSessionFailedListener;
+        if (listener != null) {
+            listener.onSessionFailed(this);
+        }
+    }
+
+    /*
+     * Called only by the reader thread of the transceiver.
+     */
+    void onPacket(SocketAddress from, byte type, int channel, DeliveryMode mode, int sequence, int uid, ByteBuffer data) throws Exception {
+        switch (type) {
+            case DatagramTransceiver.PACKET_HELLO:
+                //The token is in every datagram, only the client which received the secret via its TCP connection can sign it.
+                if (!MessageDigest.isEqual(helloMac(sequence), remaining(data))) {
+                    Logger.getLogger(DatagramSession.class.getName()).log(Level.WARNING, "[DATAGRAM]Dropping unauthenticated handshake from:" + from);
+                    return;
+                }
+                if (sequence < lastAcceptedHelloCounter || (sequence == lastAcceptedHelloCounter && !from.equals(remoteAddress))) {
+                    Logger.getLogger(DatagramSession.class.getName()).log(Level.WARNING, "[DATAGRAM]Dropping replayed handshake from:" + from);
+                    return;
+                }
+                lastAcceptedHelloCounter = sequence;
+                remoteAddress = from;
+                established = true;
+                transceiver.sendPacket(from, DatagramTransceiver.createPacket(sessionToken, DatagramTransceiver.PACKET_HELLO_ACK, 0, DeliveryMode.UNRELIABLE, 0, 0, null));
+                return;
+            case DatagramTransceiver.PACKET_HELLO_ACK:
+                if (!from.equals(remoteAddress)) {
+                    return;
+                }
+                synchronized (this) {
+                    established = true;
+                    notifyAll();
+                }
+                return;
+            default:
+                break;
+        }
+        if (!from.equals(remoteAddress)) {
+            Logger.getLogger(DatagramSession.class.getName()).log(Level.FINE, "[DATAGRAM]Dropping packet from unexpected address:" + from);
+            return;
+        }
+        final ChannelState state = channels[channel];
+        if (type == DatagramTransceiver.PACKET_ACK) {
+            state.unacknowledged.remove(sequence);
+            return;
+        }
+        if (type != DatagramTransceiver.PACKET_DATA) {
+            return;
+        }
+        switch (mode) {
+            case UNRELIABLE:
+                if (acquireInbound()) {
+                    deliver(decode(uid, data));
+                }
+                break;
+            case UNRELIABLE_SEQUENCED:
+                if (state.anyIncomingSequenced && sequence - state.lastIncomingSequence <= 0) {
+                    return;
+                }
+                state.anyIncomingSequenced = true;
+                state.lastIncomingSequence = sequence;
+                if (acquireInbound()) {
+                    deliver(decode(uid, data));
+                }
+                break;
+            case RELIABLE_ORDERED:
+                onReliablePacket(from, state, channel, sequence, uid, data);
+                break;
+        }
+    }
+
+    private void onReliablePacket(SocketAddress from, ChannelState state, int channel, int sequence, int uid, ByteBuffer data) throws Exception {
+        final int distance = sequence - state.expectedIncomingSequence;
+        if (distance >= MAX_OUT_OF_ORDER_MESSAGES) {
+            //too far ahead, let it be resent later
+            return;
+        }
+        if (distance < 0 || state.outOfOrder.containsKey(sequence)) {
+            //duplicate of already delivered or buffered message, its acknowledgement has been lost
+            sendAck(from, channel, sequence);
+            return;
+        }
+        if (!acquireInbound()) {
+            //not acknowledged, the remote side slows down resending it
+            return;
+        }
+        //acknowledged only once decoded, so a packet failing to decode is never reported as delivered
+        final AbstractNetMessage message = decode(uid, data);
+        sendAck(from, channel, sequence);
+        if (distance > 0) {
+            state.outOfOrder.put(sequence, message);
+            return;
+        }
+        deliver(message);
+        state.expectedIncomingSequence++;
+        AbstractNetMessage next;
+        while ((next = state.outOfOrder.remove(state.expectedIncomingSequence)) != null) {
+            deliver(next);
+            state.expectedIncomingSequence++;
+        }
+    }
+
+    /*
+     * The reader thread serves every session, so it never waits for the rate
+     * limiter of the connection, a packet over the limit is dropped instead.
+     */
+    private boolean acquireInbound() {
+        return connection == null || connection.tryAcquireInbound();
+    }
+
+    private void deliver(AbstractNetMessage message) {
+        if (connection != null) {
+            connection.admitReceived(message);
+        } else {
+            receivedMessages.add(message);
+        }
+    }
+
+    private void sendAck(SocketAddress to, int channel, int sequence) throws IOException {
+        transceiver.sendPacket(to, DatagramTransceiver.createPacket(sessionToken, DatagramTransceiver.PACKET_ACK, channel, DeliveryMode.RELIABLE_ORDERED, sequence, 0, null));
+    }
+
+    private byte[] helloMac(int counter) {
+        try {
+            final Mac mac = Mac.getInstance(HELLO_MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(sessionSecret, HELLO_MAC_ALGORITHM));
+            final ByteBuffer signed = ByteBuffer.allocate(12);
+            signed.putLong(sessionToken);
+            signed.putInt(counter);
+            return mac.doFinal(signed.array());
+        } catch (GeneralSecurityException ex) {
+            //every JRE supports HmacSHA256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static byte[] remaining(ByteBuffer data) {
+        final byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private AbstractNetMessage decode(int uid, ByteBuffer data) throws Exception {
+        final Class<? extends AbstractNetMessage> get = transceiver.getRegister().get(uid);
+        if (get == null) {
+            throw new Exception("Received non existing message type:" + uid);
+        }
+        //the packet is in a direct buffer, copy it to an array the inflater can read
+        final int length = data.remaining();
+        final PooledBuffer receivedBytes = PooledBufferAllocator.sharedHeap().allocate(length);
+        try {
+            data.get(receivedBytes.array(), 0, length);
+            final AbstractNetMessage m = get.newInstance();
+            m.receivedUid = uid;
+            m.fromBytes(CompressionUtils.decompressByteArray(receivedBytes.array(), 0, length, SocketTransceiver.PACKET_SIZE_BYTES));
+            return m;
+        } finally {
+            receivedBytes.release();
+        }
+    }
+
+    private static void checkChannel(int channel) {
+        if (channel < 0 || channel >= MAX_CHANNELS) {
+            throw new IllegalArgumentException("Channel out of range:" + channel);
+        }
+    }
+
+    /**
+     * Told when a session fails, see
+     * {@link DatagramSession#setOnSessionFailedListener(core.DatagramSession.OnSessionFailedListener)}.
+     */
+    public static interface OnSessionFailedListener {
+
+        public void onSessionFailed(DatagramSession session);
+    }
+
+    private static final class ChannelState {
+
+        final AtomicInteger nextOutgoingSequence = new AtomicInteger();
+        final Map<Integer, PendingPacket> unacknowledged = new ConcurrentHashMap<>();
+        //following fields are accessed only by the reader thread
+        int expectedIncomingSequence;
+        int lastIncomingSequence;
+        boolean anyIncomingSequenced;
+        final TreeMap<Integer, AbstractNetMessage> outOfOrder = new TreeMap<>();
+    }
+
+    private static final class PendingPacket {
+
+        final byte[] packet;
+        volatile long lastSentNanos = System.nanoTime();
+        //used only by the reader thread
+        int resends;
+
+        PendingPacket(byte[] packet) {
+            this.packet = packet;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Encapsulates a {@link DatagramChannel}, allowing for latency sensitive
+ * communication using the same {@link AbstractNetMessage} protocol and
+ * {@link NetMessageRegister} as {@link SocketTransceiver}. A single
+ * {@link DatagramTransceiver} serves any number of {@link DatagramSession}s,
+ * each identified by the session token handed out by the {@link Server} over
+ * the TCP connection of the same client.
+ *
+ * Every datagram has following layout: session token(8 bytes), packet
+ * type(1 byte), channel(1 byte), delivery mode(1 byte), sequence number(4
+ * bytes), message uid(4 bytes) and compressed message bytes. Handshake
+ * packets carry a counter as their sequence number and, instead of message
+ * bytes, an HMAC of the token and counter keyed with the session secret, so
+ * that knowing the token sent in every datagram is not enough to take over
+ * a session.
+ *
+ * @author Michał Furgał
+ */
+public class DatagramTransceiver {
+
+    public static final int MAX_DATAGRAM_SIZE_BYTES = 1400;
+    static final int HEADER_SIZE_BYTES = 8 + 1 + 1 + 1 + 4 + 4;
+    static final byte PACKET_DATA = 0;
+    static final byte PACKET_ACK = 1;
+    static final byte PACKET_HELLO = 2;
+    static final byte PACKET_HELLO_ACK = 3;
+
+    private volatile DatagramChannel channel;
+    private Thread readerThread;
+    private final NetMessageRegister register;
+    /*
+     * A value in milliseconds used to specify how long to wait for an
+     * acknowledgement before resending a reliable packet.
+     */
+    private volatile long resendIntervalInMilliseconds = 50;
+    /*
+     * How many times a reliable packet is resent before the remote side is
+     * considered gone and its session fails.
+     */
+    private volatile int maxResends = 100;
+    private final ConcurrentHashMap<Long, DatagramSession> sessions = new ConcurrentHashMap<>();
+
+    public DatagramTransceiver(NetMessageRegister register) {
+        this.register = register;
+    }
+
+    /**
+     * Binds this {@link DatagramTransceiver} to specified local port and starts
+     * the reader thread. Used by {@link Server}.
+     *
+     * @param port the local port number, 0 to pick any free port.
+     * @throws IOException if the channel could not be opened or bound.
+     */
+    public void bind(int port) throws IOException {
+        open(new InetSocketAddress(port));
+    }
+
+    /**
+     * Binds this {@link DatagramTransceiver} to any free local port and starts
+     * the reader thread. Used by {@link Client}.
+     *
+     * @throws IOException if the channel could not be opened or bound.
+     */
+    public void bind() throws IOException {
+        open(null);
+    }
+
+    /**
+     * @return the local port this {@link DatagramTransceiver} is bound to, or
+     * -1 if it is not bound.
+     */
+    public int getLocalPort() {
+        final DatagramChannel c = channel;
+        if (c == null || !c.isOpen()) {
+            return -1;
+        }
+        return c.socket().getLocalPort();
+    }
+
+    public long getResendIntervalInMilliseconds() {
+        return resendIntervalInMilliseconds;
+    }
+
+    /**
+     * Changes how long reliable packets wait for acknowledgement before being
+     * resent.
+     *
+     * @param resendIntervalInMilliseconds the resend interval in milliseconds.
+     */
+    public void setResendIntervalInMilliseconds(long resendIntervalInMilliseconds) {
+        this.resendIntervalInMilliseconds = resendIntervalInMilliseconds;
+    }
+
+    public int getMaxResends() {
+        return maxResends;
+    }
+
+    /**
+     * Limits how many times a reliable packet is resent. A packet which is
+     * still not acknowledged fails its whole session, since the remote side
+     * could not deliver any following packet of its channel in order.
+     *
+     * @param maxResends positive number of resends.
+     */
+    public void setMaxResends(int maxResends) {
+        if (maxResends <= 0) {
+            throw new IllegalArgumentException("maxResends <= 0");
+        }
+        this.maxResends = maxResends;
+    }
+
+    /**
+     * Creates a new {@link DatagramSession} identified by given token. Received
+     * messages are appended to <code>receivedMessages</code>, which allows to
+     * share the queue of the {@link SocketTransceiver} of the same client.
+     *
+     * @param sessionToken the token identifying the session.
+     * @param sessionSecret the secret both sides received over TCP, which
+     * authenticates handshakes.
+     * @param receivedMessages the queue to deliver received messages to.
+     * @return the created session.
+     */
+    public DatagramSession createSession(long sessionToken, byte[] sessionSecret, ConcurrentLinkedQueue<AbstractNetMessage> receivedMessages) {
+        final DatagramSession session = new DatagramSession(this, sessionToken, sessionSecret, receivedMessages);
+        sessions.put(sessionToken, session);
+        return session;
+    }
+
+    /**
+     * Creates a new {@link DatagramSession} of the client connected by given
+     * {@link SocketTransceiver}. Received messages are admitted like those
+     * received over TCP, see
+     * {@link SocketTransceiver#setInboundRateLimiter(core.TokenBucket)},
+     * {@link SocketTransceiver#setInboundAdmissionPolicy(core.SocketTransceiver.InboundAdmissionPolicy)}
+     * and conflating messages. A packet over the rate limit is dropped, or
+     * resent later if reliable.
+     *
+     * @param sessionToken the token identifying the session.
+     * @param sessionSecret the secret both sides received over TCP, which
+     * authenticates handshakes.
+     * @param connection the TCP connection of the same client.
+     * @return the created session.
+     */
+    public DatagramSession createSession(long sessionToken, byte[] sessionSecret, SocketTransceiver connection) {
+        final DatagramSession session = new DatagramSession(this, sessionToken, sessionSecret, connection);
+        sessions.put(sessionToken, session);
+        return session;
+    }
+
+    /**
+     * Forgets the session identified by given token, any packets received for
+     * it afterwards are dropped.
+     *
+     * @param sessionToken the token identifying the session.
+     */
+    public void removeSession(long sessionToken) {
+        sessions.remove(sessionToken);
+    }
+
+    /**
+     * Closes the channel and stops the reader thread.
+     */
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(DatagramTransceiver.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        if (readerThread != null) {
+            readerThread.interrupt();
+            readerThread = null;
+        }
+        sessions.clear();
+    }
+
+    NetMessageRegister getRegister() {
+        return register;
+    }
+
+    void sendPacket(SocketAddress target, byte[] packet) throws IOException {
+        final DatagramChannel c = channel;
+        if (c == null || target == null) {
+            throw new IOException("[DATAGRAM]Transceiver is not bound or session has no remote address.");
+        }
+        final PooledBuffer direct = PooledBufferAllocator.sharedDirect().allocate(packet.length);
+        try {
+            final ByteBuffer buffer = direct.buffer();
+            buffer.put(packet);
+            buffer.flip();
+            c.send(buffer, target);
+        } finally {
+            direct.release();
+        }
+    }
+
+    static byte[] createPacket(long sessionToken, byte type, int channel, DeliveryMode mode, int sequence, int uid, byte[] data) {
+        final int dataLength = data == null ? 0 : data.length;
+        final ByteBuffer packet = ByteBuffer.allocate(HEADER_SIZE_BYTES + dataLength);
+        packet.putLong(sessionToken);
+        packet.put(type);
+        packet.put((byte) channel);
+        packet.put((byte) mode.ordinal());
+        packet.putInt(sequence);
+        packet.putInt(uid);
+        if (data != null) {
+            packet.put(data);
+        }
+        return packet.array();
+    }
+
+    private void open(SocketAddress localAddress) throws IOException {
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(localAddress);
+        readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runReaderLoop();
+            }
+        });
+        readerThread.start();
+    }
+
+    private void runReaderLoop() {
+        final PooledBuffer receiveBuffer = PooledBufferAllocator.sharedDirect().allocate(MAX_DATAGRAM_SIZE_BYTES);
+        final ByteBuffer in = receiveBuffer.buffer();
+        try (final Selector selector = Selector.open()) {
+            channel.register(selector, SelectionKey.OP_READ);
+            while (channel.isOpen() && !Thread.currentThread().isInterrupted()) {
+                selector.select(resendIntervalInMilliseconds);
+                selector.selectedKeys().clear();
+                SocketAddress from;
+                while ((from = channel.receive(in)) != null) {
+                    in.flip();
+                    onPacket(from, in);
+                    in.clear();
+                }
+                for (DatagramSession session : sessions.values()) {
+                    session.resendUnacknowledgedPackets(resendIntervalInMilliseconds, maxResends);
+                }
+            }
+        } catch (ClosedChannelException | ClosedSelectorException ex) {
+            //expected after close()
+        } catch (IOException ex) {
+            Logger.getLogger(DatagramTransceiver.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            receiveBuffer.release();
+        }
+        Logger.getLogger(DatagramTransceiver.class.getName()).log(Level.INFO, "[DATAGRAM]reader thread exitting");
+    }
+
+    private void onPacket(SocketAddress from, ByteBuffer packet) {
+        if (packet.remaining() < HEADER_SIZE_BYTES) {
+            return;
+        }
+        final long sessionToken = packet.getLong();
+        final DatagramSession session = sessions.get(sessionToken);
+        if (session == null) {
+            Logger.getLogger(DatagramTransceiver.class.getName()).log(Level.FINE, "[DATAGRAM]Dropping packet for unknown session from:" + from);
+            return;
+        }
+        final byte type = packet.get();
+        final int channelNumber = packet.get() & 0xFF;
+        final DeliveryMode mode = DeliveryMode.fromOrdinal(packet.get());
+        final int sequence = packet.getInt();
+        final int uid = packet.getInt();
+        if (mode == null) {
+            return;
+        }
+        try {
+            session.onPacket(from, type, channelNumber, mode, sequence, uid, packet);
+        } catch (Exception ex) {
+            Logger.getLogger(DatagramTransceiver.class.getName()).log(Level.WARNING, "[DATAGRAM]Dropping malformed packet from:" + from, ex);
+        }
+    }
+
+}
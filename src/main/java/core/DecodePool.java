@@ -0,0 +1,65 @@
+package core;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A pool of threads decoding frames received by {@link SocketTransceiver}s.
+ * Reader threads of transceivers using the pool only extract raw frames from
+ * their sockets, while decompressing and deserializing of messages runs on
+ * the threads of the pool, in parallel across connections. Messages of a
+ * single connection are still published in the order they were received.
+ *
+ * @author Michał Furgał
+ */
+public class DecodePool {
+
+    private static DecodePool shared;
+    private final ExecutorService executor;
+
+    /**
+     *
+     * @param threads the number of decoding threads.
+     */
+    public DecodePool(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads <= 0");
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "decode-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     *
+     * @return the pool shared by transceivers, with a thread per available
+     * processor.
+     */
+    public static synchronized DecodePool shared() {
+        if (shared == null) {
+            shared = new DecodePool(Runtime.getRuntime().availableProcessors());
+        }
+        return shared;
+    }
+
+    void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * Stops the threads of this pool. Transceivers still using it fail on
+     * the next received frame.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
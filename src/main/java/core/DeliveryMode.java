@@ -0,0 +1,33 @@
+package core;
+
+/**
+ * Delivery guarantees available for channels of {@link DatagramSession}.
+ *
+ * @author Michał Furgał
+ */
+public enum DeliveryMode {
+
+    /**
+     * Messages may be lost, duplicated or arrive out of order.
+     */
+    UNRELIABLE,
+    /**
+     * Messages may be lost, but any message older than the newest one already
+     * received on the same channel is dropped.
+     */
+    UNRELIABLE_SEQUENCED,
+    /**
+     * Messages are acknowledged by the receiver, resent until acknowledged and
+     * delivered in the order they were sent on the same channel.
+     */
+    RELIABLE_ORDERED;
+
+    private static final DeliveryMode[] VALUES = values();
+
+    static DeliveryMode fromOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= VALUES.length) {
+            return null;
+        }
+        return VALUES[ordinal];
+    }
+}
@@ -0,0 +1,63 @@
+package core;
+
+import java.io.IOException;
+
+
+/**
+ * A message encoded and compressed once, so it can be written to many
+ * {@link SocketTransceiver}s without encoding it again for each of them.
+ * Waits in outbound lanes like any other message, but its frame is written
+ * as it is.
+ *
+ * @author Michał Furgał
+ */
+final class EncodedMessage extends AbstractNetMessage {
+
+    final AbstractNetMessage message;
+    final int uid;
+    //the encoded message, as written by intoBytes(byte[])
+    final byte[] bytes;
+    //the whole frame: uid, length and compressed bytes
+    final byte[] frame;
+
+    private EncodedMessage(AbstractNetMessage message, int uid, byte[] bytes, byte[] frame) {
+        this.message = message;
+        this.uid = uid;
+        this.bytes = bytes;
+        this.frame = frame;
+    }
+
+    /**
+     *
+     * @param register the register of the message type.
+     * @param message the message to encode.
+     * @return the encoded message.
+     * @throws IOException if the message could not be compressed.
+     */
+    static EncodedMessage encode(NetMessageRegister register, AbstractNetMessage message) throws IOException {
+        final int uid = register.get(message.getClass());
+        final byte[] bytes = new byte[SocketTransceiver.PACKET_SIZE_BYTES];
+        message.intoBytes(bytes);
+        final byte[] compressed = CompressionUtils.compressByteArray(bytes);
+        final byte[] frame = new byte[8 + compressed.length];
+        PrimitiveToByteConversionUtils.convertIntToByteArray(uid, frame, 0);
+        PrimitiveToByteConversionUtils.convertIntToByteArray(compressed.length, frame, 4);
+        System.arraycopy(compressed, 0, frame, 8, compressed.length);
+        return new EncodedMessage(message, uid, bytes, frame);
+    }
+
+    @Override
+    public void fromBytes(byte[] bytes) {
+        message.fromBytes(bytes);
+    }
+
+    @Override
+    public void intoBytes(byte[] bytes) {
+        message.intoBytes(bytes);
+    }
+
+    @Override
+    public byte[] intoBytes2() {
+        return message.intoBytes2();
+    }
+}
@@ -0,0 +1,98 @@
+package core;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Fences ordering accesses of memory shared with other processes, which the
+ * memory model of Java 8 offers no other way to order. They are found at
+ * runtime, the static fences of VarHandle on Java 9 and later, or those of
+ * sun.misc.Unsafe on Java 8, so nothing refers to internal classes at compile
+ * time. Handles held in static final fields are inlined by the JIT like a
+ * direct call.
+ *
+ * @author Michał Furgał
+ */
+final class MemoryFences {
+
+    private static final MethodType FENCE_TYPE = MethodType.methodType(void.class);
+    private static final MethodHandle LOAD_FENCE;
+    private static final MethodHandle STORE_FENCE;
+
+    static {
+        MethodHandle loadFence = null;
+        MethodHandle storeFence = null;
+        try {
+            final MethodHandle[] fences = findFences();
+            loadFence = fences[0];
+            storeFence = fences[1];
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            Logger.getLogger(MemoryFences.class.getName()).log(Level.WARNING, "[FENCES]Memory fences are not available on this JVM.", ex);
+        }
+        LOAD_FENCE = loadFence;
+        STORE_FENCE = storeFence;
+    }
+
+    private MemoryFences() {
+    }
+
+    /**
+     *
+     * @return false if memory fences are not available on this JVM, in which
+     * case the fences must not be used.
+     */
+    static boolean isAvailable() {
+        return LOAD_FENCE != null && STORE_FENCE != null;
+    }
+
+    /**
+     * Keeps loads before the fence from being reordered with loads and
+     * stores after it.
+     */
+    static void loadFence() {
+        try {
+            LOAD_FENCE.invokeExact();
+        } catch (Throwable ex) {
+            //fences never throw
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Keeps loads and stores before the fence from being reordered with
+     * stores after it.
+     */
+    static void storeFence() {
+        try {
+            STORE_FENCE.invokeExact();
+        } catch (Throwable ex) {
+            //fences never throw
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static MethodHandle[] findFences() throws ReflectiveOperationException {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final Class<?> varHandle;
+        try {
+            varHandle = Class.forName("java.lang.invoke.VarHandle");
+        } catch (ClassNotFoundException ex) {
+            //Java 8
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            final Object unsafe = field.get(null);
+            return new MethodHandle[]{
+                lookup.findVirtual(unsafeClass, "loadFence", FENCE_TYPE).bindTo(unsafe),
+                lookup.findVirtual(unsafeClass, "storeFence", FENCE_TYPE).bindTo(unsafe)};
+        }
+        return new MethodHandle[]{
+            lookup.findStatic(varHandle, "acquireFence", FENCE_TYPE),
+            lookup.findStatic(varHandle, "releaseFence", FENCE_TYPE)};
+    }
+}
@@ -0,0 +1,187 @@
+package core;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Routes messages received by {@link Server} to handlers registered for
+ * their types. Handlers are kept by class and compiled into an array indexed
+ * by uid, so routing a message costs an array access. The compiled table is
+ * replaced as a whole whenever handlers change, so dispatching never locks.
+ *
+ * @author Michał Furgał
+ */
+final class MessageDispatcher {
+
+    /*
+     * Handlers of uids spread wider than this are kept in a map instead of
+     * the array.
+     */
+    private static final int MAX_DENSE_SPAN = 64 * 1024;
+
+    private final LinkedHashMap<Class<? extends AbstractNetMessage>, Route> routesByClass = new LinkedHashMap<>();
+    private NetMessageRegister register;
+    private volatile Table table = Table.EMPTY;
+
+    /**
+     *
+     * @param messageClass the type of messages.
+     * @param handler the handler, or null to remove the handler of the type.
+     * @param executor the executor running the handler, or null to run it on
+     * the dispatching thread.
+     */
+    synchronized void put(Class<? extends AbstractNetMessage> messageClass, Server.MessageHandler<?> handler, Executor executor) {
+        if (handler == null) {
+            routesByClass.remove(messageClass);
+        } else {
+            routesByClass.put(messageClass, new Route(messageClass, handler, executor));
+        }
+        if (register != null) {
+            compile();
+        }
+    }
+
+    /**
+     * Resolves uids of registered types and compiles the dispatch table.
+     *
+     * @param register the register of received messages.
+     */
+    synchronized void compile(NetMessageRegister register) {
+        this.register = register;
+        compile();
+    }
+
+    /**
+     *
+     * @return true if any handler is registered.
+     */
+    boolean hasRoutes() {
+        return table.routes > 0;
+    }
+
+    /**
+     * Runs the handler of the message type, or hands it to the executor of
+     * the handler.
+     *
+     * @param clientConnection the client which sent the message.
+     * @param message the received message.
+     * @return false if no handler is registered for the message type.
+     */
+    boolean dispatch(final Server.ClientConnection clientConnection, final AbstractNetMessage message) {
+        final Table current = table;
+        int uid = message.receivedUid;
+        if (uid == 0) {
+            //created locally, e.g. by a test or a replay
+            if (current.register == null || !current.register.isRegistered(message.getClass())) {
+                return false;
+            }
+            uid = current.register.get(message.getClass());
+        }
+        final Route route = current.get(uid);
+        if (route == null) {
+            return false;
+        }
+        if (route.executor == null) {
+            route.run(clientConnection, message);
+            return true;
+        }
+        try {
+            route.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    route.run(clientConnection, message);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            Logger.getLogger(MessageDispatcher.class.getName()).log(Level.SEVERE, "[DISPATCHER]Executor rejected message:" + message.getClass().getName() + " of " + clientConnection, ex);
+        }
+        return true;
+    }
+
+    /*
+     * Must be called holding the monitor of this dispatcher.
+     */
+    private void compile() {
+        final HashMap<Integer, Route> byUid = new HashMap<>();
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (Map.Entry<Class<? extends AbstractNetMessage>, Route> entry : routesByClass.entrySet()) {
+            if (!register.isRegistered(entry.getKey())) {
+                Logger.getLogger(MessageDispatcher.class.getName()).log(Level.SEVERE, "[DISPATCHER]Ignoring handler of not registered message class:" + entry.getKey().getName());
+                continue;
+            }
+            final int uid = register.get(entry.getKey());
+            byUid.put(uid, entry.getValue());
+            min = Math.min(min, uid);
+            max = Math.max(max, uid);
+        }
+        if (byUid.isEmpty()) {
+            table = new Table(register, 0, new Route[0], null, 0);
+        } else if ((long) max - min < MAX_DENSE_SPAN) {
+            final Route[] dense = new Route[max - min + 1];
+            for (Map.Entry<Integer, Route> entry : byUid.entrySet()) {
+                dense[entry.getKey() - min] = entry.getValue();
+            }
+            table = new Table(register, min, dense, null, byUid.size());
+        } else {
+            table = new Table(register, 0, new Route[0], byUid, byUid.size());
+        }
+    }
+
+    private static final class Route {
+
+        final Class<? extends AbstractNetMessage> messageClass;
+        final Server.MessageHandler<AbstractNetMessage> handler;
+        final Executor executor;
+
+        @SuppressWarnings("unchecked")
+        Route(Class<? extends AbstractNetMessage> messageClass, Server.MessageHandler<?> handler, Executor executor) {
+            this.messageClass = messageClass;
+            //messages are routed by the uid of this class, so the handler always gets its type
+            this.handler = (Server.MessageHandler<AbstractNetMessage>) handler;
+            this.executor = executor;
+        }
+
+        void run(Server.ClientConnection clientConnection, AbstractNetMessage message) {
+            try {
+                handler.onMessage(clientConnection, message);
+            } catch (RuntimeException ex) {
+                Logger.getLogger(MessageDispatcher.class.getName()).log(Level.SEVERE, "[DISPATCHER]Handler of " + messageClass.getName() + " failed.", ex);
+            }
+        }
+    }
+
+    private static final class Table {
+
+        static final Table EMPTY = new Table(null, 0, new Route[0], null, 0);
+
+        final NetMessageRegister register;
+        final int offset;
+        final Route[] dense;
+        //used instead of dense if uids are spread too wide
+        final HashMap<Integer, Route> sparse;
+        final int routes;
+
+        Table(NetMessageRegister register, int offset, Route[] dense, HashMap<Integer, Route> sparse, int routes) {
+            this.register = register;
+            this.offset = offset;
+            this.dense = dense;
+            this.sparse = sparse;
+            this.routes = routes;
+        }
+
+        Route get(int uid) {
+            if (sparse != null) {
+                return sparse.get(uid);
+            }
+            final int index = uid - offset;
+            return index >= 0 && index < dense.length ? dense[index] : null;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package core;
+
+/**
+ * Outbound priority classes of {@link AbstractNetMessage}s. Each class has
+ * its own lane in {@link OutboundScheduler}, so control messages never wait
+ * behind a burst of bulk updates.
+ *
+ * @author Michał Furgał
+ */
+public enum MessagePriority {
+
+    /**
+     * Latency critical messages, like kicks, pauses or input
+     * acknowledgements.
+     */
+    HIGH,
+    /**
+     * Default priority of every message type.
+     */
+    NORMAL,
+    /**
+     * Bulk traffic, which may be delayed in favour of other lanes.
+     */
+    LOW;
+}
@@ -16,6 +16,14 @@ public class NetMessageRegister {
 
     private final HashMap<Integer, Class<? extends AbstractNetMessage>> messageIds = new HashMap<>();
     private final HashMap<Class<? extends AbstractNetMessage>, Integer> messageIds2 = new HashMap<>();
+    private final HashMap<Integer, MessagePriority> priorities = new HashMap<>();
+    private final HashMap<Integer, ConflationKeyExtractor<AbstractNetMessage>> conflations = new HashMap<>();
+    private static final ConflationKeyExtractor<AbstractNetMessage> SINGLE_KEY = new ConflationKeyExtractor<AbstractNetMessage>() {
+        @Override
+        public long keyOf(AbstractNetMessage message) {
+            return 0;
+        }
+    };
 
     public Class<? extends AbstractNetMessage> get(int id) {
         return messageIds.get(id);
@@ -33,6 +41,103 @@ public class NetMessageRegister {
         return messageIds2.get(clazz);
     }
 
+    /**
+     *
+     * @param clazz the class extending {@link AbstractNetMessage}.
+     * @return true if <code>clazz</code> has been registered.
+     */
+    public boolean isRegistered(Class<? extends AbstractNetMessage> clazz) {
+        return messageIds2.containsKey(clazz);
+    }
+
+    /**
+     * Get the outbound {@link MessagePriority} of messages with specified
+     * unique identifier.
+     *
+     * @param uid the unique identifier of message type.
+     * @return the priority set by
+     * {@link NetMessageRegister#setPriority(java.lang.Class, core.MessagePriority)}
+     * or {@link MessagePriority#NORMAL}.
+     */
+    public MessagePriority getPriority(int uid) {
+        final MessagePriority priority = priorities.get(uid);
+        return priority == null ? MessagePriority.NORMAL : priority;
+    }
+
+    /**
+     * Sets the outbound {@link MessagePriority} of specified, already
+     * registered <code>clazz</code>.
+     *
+     * @param clazz the registered class extending {@link AbstractNetMessage}.
+     * @param priority the priority used when sending messages of that type.
+     */
+    public void setPriority(Class<? extends AbstractNetMessage> clazz, MessagePriority priority) {
+        final Integer uid = messageIds2.get(clazz);
+        if (uid == null) {
+            throw new RuntimeException("Tried to set priority of not registered message class:'" + clazz + "'.");
+        }
+        priorities.put(uid, priority);
+    }
+
+    /**
+     * Marks messages of specified, already registered <code>clazz</code> as
+     * conflating, or not. Of conflating messages only the latest one
+     * matters, so a message waiting to be sent or consumed is replaced by a
+     * newer message of the same type, instead of both being queued.
+     *
+     * @param clazz the registered class extending {@link AbstractNetMessage}.
+     * @param conflating true to keep only the latest message of that type.
+     */
+    public void setConflating(Class<? extends AbstractNetMessage> clazz, boolean conflating) {
+        setConflating(clazz, conflating ? SINGLE_KEY : null);
+    }
+
+    /**
+     * Marks messages of specified, already registered <code>clazz</code> as
+     * conflating per key, e.g. per entity id, so that a waiting message is
+     * replaced only by a newer message of the same type and key.
+     *
+     * @param <T> the type of messages.
+     * @param clazz the registered class extending {@link AbstractNetMessage}.
+     * @param keyExtractor the extractor of keys, or null to stop conflating.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends AbstractNetMessage> void setConflating(Class<T> clazz, ConflationKeyExtractor<? super T> keyExtractor) {
+        final Integer uid = messageIds2.get(clazz);
+        if (uid == null) {
+            throw new RuntimeException("Tried to set conflation of not registered message class:'" + clazz + "'.");
+        }
+        if (keyExtractor == null) {
+            conflations.remove(uid);
+        } else {
+            //messages are looked up by the uid of clazz, so the extractor always gets its type
+            conflations.put(uid, (ConflationKeyExtractor<AbstractNetMessage>) keyExtractor);
+        }
+    }
+
+    /**
+     *
+     * @param uid the unique identifier of message type.
+     * @return the extractor of conflation keys of that type, or null if it
+     * is not conflating.
+     */
+    public ConflationKeyExtractor<AbstractNetMessage> getConflation(int uid) {
+        return conflations.get(uid);
+    }
+
+    /**
+     * Checks whether given <code>uid</code> is reserved. Only 0 and -1 are,
+     * every control frame used internally by transceivers is sent under -1
+     * and tells its type in its payload.
+     *
+     * @param uid the unique identifier to check.
+     * @return true if <code>uid</code> can not be used by
+     * {@link AbstractNetMessage} types.
+     */
+    public static boolean isReservedUid(int uid) {
+        return uid == 0 || uid == SocketTransceiver.CONTROL_FRAME_UID;
+    }
+
     /**
      * Registers specified <code>clazz</code> class under specified
      * <code>uid</code> unique identifier.
@@ -41,8 +146,8 @@ public class NetMessageRegister {
      * @param uid the integer specified to uniquely identify that message type.
      */
     public void register(Class<? extends AbstractNetMessage> clazz, int uid) {
-        if (uid == 0 || uid == -1) {
-            throw new RuntimeException("It is forbidden to register message under type under uid:'" + uid + "'.");
+        if (isReservedUid(uid)) {
+            throw new RuntimeException("It is forbidden to register message under type under uid:'" + uid + "', uids 0 and -1 are reserved.");
         }
         if (clazz == null) {
             throw new RuntimeException("Tried to register null message class type under uid:'" + uid + "'.");
@@ -56,6 +161,17 @@ public class NetMessageRegister {
         messageIds2.put(clazz, uid);
     }
 
+    /**
+     * Extracts the key of a conflating message, only messages of the same key
+     * replace each other.
+     *
+     * @param <T> the type of messages.
+     */
+    public static interface ConflationKeyExtractor<T extends AbstractNetMessage> {
+
+        public long keyOf(T message);
+    }
+
     private static class UniqueIdentifierCollisionException extends RuntimeException {
 
         public UniqueIdentifierCollisionException(String errorMessage) {
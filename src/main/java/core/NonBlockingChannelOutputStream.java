@@ -0,0 +1,89 @@
+package core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Writes to a non-blocking {@link SocketChannel} without ever blocking. Bytes
+ * the channel does not take at once are kept and written by following
+ * {@link #flush()} calls, in the order they have been written.
+ *
+ * @author Michał Furgał
+ */
+final class NonBlockingChannelOutputStream extends OutputStream {
+
+    /*
+     * A peer not reading this much is considered dead, instead of buffering
+     * without a limit.
+     */
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+
+    private final SocketChannel channel;
+    //bytes waiting to be written, in write mode
+    private ByteBuffer pending = ByteBuffer.allocate(16 * 1024);
+
+    NonBlockingChannelOutputStream(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (pending.remaining() < length) {
+            drain();
+            if (pending.remaining() < length) {
+                grow(pending.position() + length);
+            }
+        }
+        pending.put(bytes, offset, length);
+    }
+
+    /**
+     * Writes as many waiting bytes as the channel takes without blocking.
+     *
+     * @throws IOException if writing to the channel failed.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     *
+     * @return the number of bytes not written to the channel yet.
+     */
+    int pendingBytes() {
+        return pending.position();
+    }
+
+    private void drain() throws IOException {
+        if (pending.position() == 0) {
+            return;
+        }
+        pending.flip();
+        try {
+            while (pending.hasRemaining() && channel.write(pending) > 0) {
+                //the channel takes bytes until its send buffer is full
+            }
+        } finally {
+            pending.compact();
+        }
+    }
+
+    private void grow(int minimumCapacity) throws IOException {
+        if (minimumCapacity > MAX_PENDING_BYTES) {
+            throw new IOException("[TRANSCEIVER]The peer is not reading, bytes waiting to be written:" + pending.position());
+        }
+        final ByteBuffer grown = ByteBuffer.allocate(Math.min(MAX_PENDING_BYTES, Math.max(minimumCapacity, pending.capacity() * 2)));
+        pending.flip();
+        grown.put(pending);
+        pending = grown;
+    }
+}
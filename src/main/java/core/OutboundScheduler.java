@@ -0,0 +1,361 @@
+package core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Holds outbound {@link AbstractNetMessage}s of a {@link SocketTransceiver} in
+ * one lane per {@link MessagePriority}. Lanes are drained by weighted round
+ * robin, which always starts with {@link MessagePriority#HIGH}, but serves
+ * each lower lane at least once per round, so it is never starved.
+ *
+ * Messages may be enqueued by any thread, while {@link #next()} must be called
+ * only by the thread holding the write lock of the transceiver.
+ *
+ * @author Michał Furgał
+ */
+public class OutboundScheduler {
+
+    private static final MessagePriority[] PRIORITIES = MessagePriority.values();
+
+    private final Lane[] lanes = new Lane[PRIORITIES.length];
+    /*
+     * Messages per round of each lane, replaced as a whole when a weight
+     * changes, so the draining thread always sees a complete array.
+     */
+    private volatile int[] weights;
+    //credits left in current round, used only by the draining thread
+    private final int[] credits = new int[PRIORITIES.length];
+    /*
+     * Waiting entries of conflating messages, replaced in place by newer
+     * messages of the same key.
+     */
+    private final ConcurrentHashMap<ConflationKey, Entry> conflated = new ConcurrentHashMap<>();
+    private final AtomicLong conflatedCount = new AtomicLong();
+
+    public OutboundScheduler() {
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane();
+        }
+        final int[] initialWeights = new int[PRIORITIES.length];
+        initialWeights[MessagePriority.HIGH.ordinal()] = 16;
+        initialWeights[MessagePriority.NORMAL.ordinal()] = 4;
+        initialWeights[MessagePriority.LOW.ordinal()] = 1;
+        System.arraycopy(initialWeights, 0, credits, 0, initialWeights.length);
+        weights = initialWeights;
+    }
+
+    /**
+     * Changes how many messages of specified lane are sent per round, while
+     * other lanes are waiting.
+     *
+     * @param priority the lane to change.
+     * @param weight positive number of messages per round.
+     */
+    public synchronized void setWeight(MessagePriority priority, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight <= 0");
+        }
+        final int[] changed = weights.clone();
+        changed[priority.ordinal()] = weight;
+        weights = changed;
+    }
+
+    public int getWeight(MessagePriority priority) {
+        return weights[priority.ordinal()];
+    }
+
+    /**
+     *
+     * @return how many messages one round of all lanes sends at most, the
+     * sum of their weights.
+     */
+    public int getRoundSize() {
+        long roundSize = 0;
+        for (int weight : weights) {
+            roundSize += weight;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, roundSize);
+    }
+
+    /**
+     * Appends given message to the lane of specified priority.
+     *
+     * @param message the message to send.
+     * @param priority the lane to use.
+     */
+    public void enqueue(AbstractNetMessage message, MessagePriority priority) {
+        append(message, priority);
+    }
+
+    /*
+     * Same as enqueue, returning the entry of the message, see
+     * Entry#isTaken().
+     */
+    Entry append(AbstractNetMessage message, MessagePriority priority) {
+        final Entry entry = new Entry(message, null);
+        lanes[priority.ordinal()].add(entry);
+        return entry;
+    }
+
+    /**
+     * Replaces the waiting message of the same uid and key by given message,
+     * keeping its place in the lane, or appends given message if no such
+     * message is waiting.
+     *
+     * @param message the message to send.
+     * @param priority the lane to use, if the message is appended.
+     * @param uid the uid of the message.
+     * @param key the conflation key of the message.
+     */
+    public void enqueueConflating(AbstractNetMessage message, MessagePriority priority, int uid, long key) {
+        appendConflating(message, priority, uid, key);
+    }
+
+    /*
+     * Same as enqueueConflating, returning the entry holding the message,
+     * which may be the entry of the replaced message.
+     */
+    Entry appendConflating(AbstractNetMessage message, MessagePriority priority, int uid, long key) {
+        final ConflationKey conflationKey = new ConflationKey(uid, key);
+        final Entry waiting = conflated.get(conflationKey);
+        if (waiting != null && waiting.replace(message)) {
+            conflatedCount.incrementAndGet();
+            return waiting;
+        }
+        //not waiting anymore, or taken right now
+        final Entry entry = new Entry(message, conflationKey);
+        conflated.put(conflationKey, entry);
+        lanes[priority.ordinal()].add(entry);
+        return entry;
+    }
+
+    /**
+     *
+     * @return how many messages have been replaced by newer ones before
+     * being sent.
+     */
+    public long getConflatedCount() {
+        return conflatedCount.get();
+    }
+
+    /**
+     * Takes the next message to send.
+     *
+     * @return next message according to lane priorities and weights, or null
+     * if all lanes are empty.
+     */
+    public AbstractNetMessage next() {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            for (int i = 0; i < lanes.length; i++) {
+                if (credits[i] > 0) {
+                    final Entry entry = lanes[i].poll();
+                    if (entry != null) {
+                        credits[i]--;
+                        return take(entry);
+                    }
+                }
+            }
+            //every non empty lane has used its credits, start a new round
+            final int[] currentWeights = weights;
+            System.arraycopy(currentWeights, 0, credits, 0, currentWeights.length);
+        }
+        return null;
+    }
+
+    /**
+     *
+     * @return true if there is no message waiting in any lane.
+     */
+    public boolean isEmpty() {
+        for (Lane lane : lanes) {
+            if (!lane.queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return the number of messages waiting in all lanes.
+     */
+    public int size() {
+        int size = 0;
+        for (Lane lane : lanes) {
+            size += lane.depth.get();
+        }
+        return size;
+    }
+
+    /**
+     * Drops all waiting messages.
+     *
+     * @return how many messages have been dropped.
+     */
+    public int clear() {
+        int dropped = 0;
+        for (Lane lane : lanes) {
+            Entry entry;
+            while ((entry = lane.poll()) != null) {
+                take(entry);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     *
+     * @param priority the lane to describe.
+     * @return current statistics of specified lane.
+     */
+    public LaneStatistics getStatistics(MessagePriority priority) {
+        final Lane lane = lanes[priority.ordinal()];
+        return new LaneStatistics(priority, lane.depth.get(), lane.maxDepth.get(), lane.dequeued.get(), lane.totalWaitNanos.get(), lane.maxWaitNanos.get());
+    }
+
+    private AbstractNetMessage take(Entry entry) {
+        //from now on the entry can not be replaced, newer messages get entries of their own
+        final AbstractNetMessage message = entry.getAndSet(null);
+        if (entry.conflationKey != null) {
+            conflated.remove(entry.conflationKey, entry);
+        }
+        return message;
+    }
+
+    /*
+     * Holds the message, which is replaced by newer conflating messages
+     * until the entry is taken.
+     */
+    @SuppressWarnings("serial")
+    static final class Entry extends AtomicReference<AbstractNetMessage> {
+
+        final ConflationKey conflationKey;
+        final long enqueuedNanos = System.nanoTime();
+
+        Entry(AbstractNetMessage message, ConflationKey conflationKey) {
+            super(message);
+            this.conflationKey = conflationKey;
+        }
+
+        boolean replace(AbstractNetMessage message) {
+            AbstractNetMessage current;
+            while ((current = get()) != null) {
+                if (compareAndSet(current, message)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /*
+         * Returns true once the message, or the newest one replacing it, has
+         * been taken by next() or dropped by clear().
+         */
+        boolean isTaken() {
+            return get() == null;
+        }
+    }
+
+    /**
+     * Identifies messages replacing each other: the uid of their type and the
+     * key extracted from them.
+     */
+    static final class ConflationKey {
+
+        final int uid;
+        final long key;
+
+        ConflationKey(int uid, long key) {
+            this.uid = uid;
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ConflationKey)) {
+                return false;
+            }
+            final ConflationKey other = (ConflationKey) obj;
+            return uid == other.uid && key == other.key;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * uid + Long.hashCode(key);
+        }
+    }
+
+    private static final class Lane {
+
+        final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+        final AtomicInteger depth = new AtomicInteger();
+        final AtomicInteger maxDepth = new AtomicInteger();
+        final AtomicLong dequeued = new AtomicLong();
+        final AtomicLong totalWaitNanos = new AtomicLong();
+        final AtomicLong maxWaitNanos = new AtomicLong();
+
+        void add(Entry entry) {
+            queue.add(entry);
+            final int currentDepth = depth.incrementAndGet();
+            int max;
+            while (currentDepth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, currentDepth)) {
+            }
+        }
+
+        Entry poll() {
+            final Entry entry = queue.poll();
+            if (entry != null) {
+                depth.decrementAndGet();
+                final long waited = System.nanoTime() - entry.enqueuedNanos;
+                dequeued.incrementAndGet();
+                totalWaitNanos.addAndGet(waited);
+                long max;
+                while (waited > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waited)) {
+                }
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * A snapshot of queue depth and wait times of one lane.
+     */
+    public static final class LaneStatistics {
+
+        public final MessagePriority priority;
+        public final int depth;
+        public final int maxDepth;
+        public final long sentCount;
+        public final long totalWaitNanos;
+        public final long maxWaitNanos;
+
+        LaneStatistics(MessagePriority priority, int depth, int maxDepth, long sentCount, long totalWaitNanos, long maxWaitNanos) {
+            this.priority = priority;
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.sentCount = sentCount;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+
+        /**
+         *
+         * @return average time in nanoseconds messages of this lane waited
+         * before being written.
+         */
+        public long getAverageWaitNanos() {
+            return sentCount == 0 ? 0 : totalWaitNanos / sentCount;
+        }
+
+        @Override
+        public String toString() {
+            return "LaneStatistics[" + "priority=" + priority + " depth=" + depth + " maxDepth=" + maxDepth + " sentCount=" + sentCount + " averageWaitNanos=" + getAverageWaitNanos() + " maxWaitNanos=" + maxWaitNanos + "]";
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A reference counted {@link ByteBuffer} taken from a
+ * {@link PooledBufferAllocator}. It starts with a single reference, held by
+ * the caller of {@link PooledBufferAllocator#allocate(int)}. When the last
+ * reference is released, the buffer returns to its allocator and must not be
+ * used anymore.
+ *
+ * @author Michał Furgał
+ */
+public final class PooledBuffer {
+
+    private final PooledBufferAllocator allocator;
+    private final ByteBuffer buffer;
+    private final int sizeClass;
+    private final AtomicInteger referenceCount = new AtomicInteger();
+    /*
+     * Set if this allocation has been sampled by the leak detector.
+     */
+    PooledBufferAllocator.LeakTracker leakTracker;
+
+    PooledBuffer(PooledBufferAllocator allocator, ByteBuffer buffer, int sizeClass) {
+        this.allocator = allocator;
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+    }
+
+    /**
+     * Returns the buffer, which has position 0 and limit equal to the
+     * requested capacity right after allocation. Its capacity may be larger.
+     *
+     * @return the buffer.
+     */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     *
+     * @return the array backing the buffer.
+     * @throws UnsupportedOperationException if the buffer is direct.
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /**
+     * Adds a reference, which must be released separately. Used when the
+     * buffer is handed to another owner, like another thread.
+     *
+     * @return this buffer.
+     * @throws IllegalStateException if the buffer has already been released.
+     */
+    public PooledBuffer retain() {
+        int count;
+        do {
+            count = referenceCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("retain of a released buffer");
+            }
+        } while (!referenceCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * Releases a reference, returning the buffer to its allocator if it was
+     * the last one.
+     *
+     * @return true if the buffer has been returned to its allocator.
+     * @throws IllegalStateException if the buffer has already been released.
+     */
+    public boolean release() {
+        final int count = referenceCount.decrementAndGet();
+        if (count < 0) {
+            referenceCount.incrementAndGet();
+            throw new IllegalStateException("release of a released buffer");
+        }
+        if (count == 0) {
+            allocator.recycle(this);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @return the number of references held.
+     */
+    public int referenceCount() {
+        return referenceCount.get();
+    }
+
+    int sizeClass() {
+        return sizeClass;
+    }
+
+    void reset(int capacity) {
+        buffer.clear();
+        buffer.limit(capacity);
+        referenceCount.set(1);
+    }
+}
@@ -0,0 +1,264 @@
+package core;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Allocates {@link PooledBuffer}s of power of two size classes, from
+ * {@value #MIN_SIZE_CLASS_BYTES} to {@value #MAX_SIZE_CLASS_BYTES} bytes.
+ * Larger buffers are not pooled. Released buffers are first kept in a small
+ * cache of the releasing thread, which serves following allocations of that
+ * thread without contention, and overflow to an arena shared by all threads.
+ *
+ * An optional leak detector samples allocations and reports, with the stack
+ * trace of the allocation, sampled buffers garbage collected without being
+ * released.
+ *
+ * @author Michał Furgał
+ */
+public class PooledBufferAllocator {
+
+    public static final int MIN_SIZE_CLASS_BYTES = 64;
+    public static final int MAX_SIZE_CLASS_BYTES = 64 * 1024;
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE_CLASS_BYTES) - Integer.numberOfTrailingZeros(MIN_SIZE_CLASS_BYTES) + 1;
+    private static final PooledBufferAllocator SHARED_HEAP = new PooledBufferAllocator(false, 8, 256);
+    private static final PooledBufferAllocator SHARED_DIRECT = new PooledBufferAllocator(true, 8, 256);
+
+    private final boolean direct;
+    private final int threadCacheSize;
+    private final int arenaSize;
+    /*
+     * One arena per size class.
+     */
+    private final Arena[] arenas;
+    private final ThreadLocal<ThreadCache> threadCaches = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache(threadCacheSize);
+        }
+    };
+    private volatile int leakDetectionSamplingInterval = 0;
+    private final AtomicLong allocationsCount = new AtomicLong();
+    private final AtomicLong leaksCount = new AtomicLong();
+    private final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<>();
+    private final Set<LeakTracker> liveLeakTrackers = Collections.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+
+    /**
+     *
+     * @param direct true to allocate direct buffers, false for heap buffers.
+     * @param threadCacheSize how many released buffers of each size class a
+     * thread keeps for itself.
+     * @param arenaSize how many released buffers of each size class are kept
+     * in the shared arena.
+     */
+    public PooledBufferAllocator(boolean direct, int threadCacheSize, int arenaSize) {
+        this.direct = direct;
+        this.threadCacheSize = threadCacheSize;
+        this.arenaSize = arenaSize;
+        arenas = new Arena[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            arenas[i] = new Arena();
+        }
+    }
+
+    /**
+     *
+     * @return the allocator of heap buffers, used by stream based frame
+     * reading and writing and by TLS. Socket streams and shared memory streams
+     * take byte arrays only, so a direct buffer would add a copy there.
+     */
+    public static PooledBufferAllocator sharedHeap() {
+        return SHARED_HEAP;
+    }
+
+    /**
+     *
+     * @return the allocator of direct buffers, used by channel based I/O.
+     */
+    public static PooledBufferAllocator sharedDirect() {
+        return SHARED_DIRECT;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Takes a buffer of at least specified capacity, with position 0 and
+     * limit equal to the capacity. The caller holds its only reference.
+     *
+     * @param capacity the capacity needed.
+     * @return the buffer.
+     */
+    public PooledBuffer allocate(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity < 0");
+        }
+        reportLeaks();
+        final int sizeClass = sizeClassOf(capacity);
+        PooledBuffer pooled = null;
+        if (sizeClass >= 0) {
+            pooled = threadCaches.get().poll(sizeClass);
+            if (pooled == null) {
+                pooled = arenas[sizeClass].poll();
+            }
+        }
+        if (pooled == null) {
+            final int bufferCapacity = sizeClass >= 0 ? MIN_SIZE_CLASS_BYTES << sizeClass : capacity;
+            pooled = new PooledBuffer(this, direct ? ByteBuffer.allocateDirect(bufferCapacity) : ByteBuffer.allocate(bufferCapacity), sizeClass);
+        }
+        pooled.reset(capacity);
+        final int samplingInterval = leakDetectionSamplingInterval;
+        if (samplingInterval > 0 && allocationsCount.incrementAndGet() % samplingInterval == 0) {
+            pooled.leakTracker = new LeakTracker(pooled, leakQueue);
+            liveLeakTrackers.add(pooled.leakTracker);
+        }
+        return pooled;
+    }
+
+    public int getLeakDetectionSamplingInterval() {
+        return leakDetectionSamplingInterval;
+    }
+
+    /**
+     * Enables or disables the leak detector.
+     *
+     * @param leakDetectionSamplingInterval track every n-th allocation, 1 to
+     * track all of them, 0 to disable the detector.
+     */
+    public void setLeakDetectionSamplingInterval(int leakDetectionSamplingInterval) {
+        if (leakDetectionSamplingInterval < 0) {
+            throw new IllegalArgumentException("leakDetectionSamplingInterval < 0");
+        }
+        this.leakDetectionSamplingInterval = leakDetectionSamplingInterval;
+    }
+
+    /**
+     * Reports sampled buffers garbage collected so far without being
+     * released.
+     *
+     * @return the number of leaks detected since creation of this allocator.
+     */
+    public long getLeaksCount() {
+        reportLeaks();
+        return leaksCount.get();
+    }
+
+    void recycle(PooledBuffer pooled) {
+        final LeakTracker tracker = pooled.leakTracker;
+        if (tracker != null) {
+            pooled.leakTracker = null;
+            liveLeakTrackers.remove(tracker);
+            tracker.clear();
+        }
+        final int sizeClass = pooled.sizeClass();
+        if (sizeClass < 0) {
+            return;
+        }
+        if (threadCaches.get().offer(pooled)) {
+            return;
+        }
+        arenas[sizeClass].offer(pooled, arenaSize);
+    }
+
+    private void reportLeaks() {
+        Reference<? extends PooledBuffer> reference;
+        while ((reference = leakQueue.poll()) != null) {
+            final LeakTracker tracker = (LeakTracker) reference;
+            if (liveLeakTrackers.remove(tracker)) {
+                leaksCount.incrementAndGet();
+                Logger.getLogger(PooledBufferAllocator.class.getName()).log(Level.WARNING, "[ALLOCATOR]A pooled buffer has been garbage collected without being released.", tracker.allocationSite);
+            }
+        }
+    }
+
+    /*
+     * Returns index of the smallest size class fitting capacity, or -1 if it
+     * is too large to be pooled.
+     */
+    private static int sizeClassOf(int capacity) {
+        if (capacity > MAX_SIZE_CLASS_BYTES) {
+            return -1;
+        }
+        if (capacity <= MIN_SIZE_CLASS_BYTES) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - Integer.numberOfTrailingZeros(MIN_SIZE_CLASS_BYTES);
+    }
+
+    static final class LeakTracker extends PhantomReference<PooledBuffer> {
+
+        final Throwable allocationSite;
+
+        LeakTracker(PooledBuffer referent, ReferenceQueue<PooledBuffer> queue) {
+            super(referent, queue);
+            allocationSite = new Throwable("[ALLOCATOR]Leaked buffer allocated at:");
+        }
+    }
+
+    /*
+     * Released buffers of a size class shared by all threads, counted
+     * separately since ConcurrentLinkedQueue#size() traverses the whole queue.
+     */
+    private static final class Arena {
+
+        private final ConcurrentLinkedQueue<PooledBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        PooledBuffer poll() {
+            final PooledBuffer pooled = buffers.poll();
+            if (pooled != null) {
+                count.decrementAndGet();
+            }
+            return pooled;
+        }
+
+        void offer(PooledBuffer pooled, int size) {
+            if (count.incrementAndGet() <= size) {
+                buffers.add(pooled);
+            } else {
+                count.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class ThreadCache {
+
+        private final PooledBuffer[][] buffers;
+        private final int[] counts = new int[SIZE_CLASSES];
+
+        ThreadCache(int size) {
+            buffers = new PooledBuffer[SIZE_CLASSES][size];
+        }
+
+        PooledBuffer poll(int sizeClass) {
+            if (counts[sizeClass] == 0) {
+                return null;
+            }
+            final int index = --counts[sizeClass];
+            final PooledBuffer pooled = buffers[sizeClass][index];
+            buffers[sizeClass][index] = null;
+            return pooled;
+        }
+
+        boolean offer(PooledBuffer pooled) {
+            final int sizeClass = pooled.sizeClass();
+            if (counts[sizeClass] == buffers[sizeClass].length) {
+                return false;
+            }
+            buffers[sizeClass][counts[sizeClass]++] = pooled;
+            return true;
+        }
+    }
+}
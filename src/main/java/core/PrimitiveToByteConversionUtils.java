@@ -21,6 +21,21 @@ public class PrimitiveToByteConversionUtils {
                 | ((bytes[2] & 0xFF) << 8)
                 | ((bytes[3] & 0xFF) << 0);
     }
+    /**
+     * Converts 4 bytes of given <code>bytes</code>, starting at
+     * <code>offset</code>, to 32 bit integer by using bit shift.
+     *
+     * @param bytes to convert.
+     * @param offset index of the most significant byte.
+     * @return converted <code>bytes</code> as an int.
+     */
+    public static int convertByteArrayToInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24)
+                | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8)
+                | ((bytes[offset + 3] & 0xFF) << 0);
+    }
+
     /**
      * Converts given <code>value</code> integer to byte array by using bit
      * shift.
@@ -32,4 +47,64 @@ public class PrimitiveToByteConversionUtils {
         return new byte[]{(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
     }
 
+    /**
+     * Writes given <code>value</code> integer into 4 bytes of given
+     * <code>bytes</code>, starting at <code>offset</code>, without allocating
+     * a new array.
+     *
+     * @param value to convert.
+     * @param bytes the array to write to.
+     * @param offset index of the most significant byte.
+     */
+    public static void convertIntToByteArray(int value, byte[] bytes, int offset) {
+        bytes[offset] = (byte) (value >> 24);
+        bytes[offset + 1] = (byte) (value >> 16);
+        bytes[offset + 2] = (byte) (value >> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Converts 8 bytes of given <code>bytes</code>, starting at
+     * <code>offset</code>, to 64 bit long by using bit shift.
+     *
+     * @param bytes to convert.
+     * @param offset index of the most significant byte.
+     * @return converted <code>bytes</code> as a long.
+     */
+    public static long convertByteArrayToLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Converts given <code>value</code> long to byte array by using bit shift.
+     *
+     * @param value to convert.
+     * @return converted <code>value</code> as byte[] array.
+     */
+    public static byte[] convertLongToByteArray(long value) {
+        final byte[] bytes = new byte[8];
+        convertLongToByteArray(value, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Writes given <code>value</code> long into 8 bytes of given
+     * <code>bytes</code>, starting at <code>offset</code>, without allocating
+     * a new array.
+     *
+     * @param value to convert.
+     * @param bytes the array to write to.
+     * @param offset index of the most significant byte.
+     */
+    public static void convertLongToByteArray(long value, byte[] bytes, int offset) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>= 8;
+        }
+    }
+
 }
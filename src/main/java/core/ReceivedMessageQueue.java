@@ -0,0 +1,236 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+
+/**
+ * Holds messages received by a {@link SocketTransceiver}. A conflating
+ * message, see
+ * {@link NetMessageRegister#setConflating(java.lang.Class, core.NetMessageRegister.ConflationKeyExtractor)},
+ * takes a single place in the queue per key, held by the first message of
+ * that key, while newer messages of the key replace each other in its slot.
+ * Every operation reading or removing messages sees the latest message of
+ * the slot, and removing it frees the slot, so the next message of the key
+ * is queued again. The queue is handed to applications as a plain
+ * {@link ConcurrentLinkedQueue}, so all of them go through {@link #poll()}
+ * or {@link #iterator()} rather than on the nodes of the superclass.
+ *
+ * Messages may be added by any thread. Conflating messages are added by the
+ * reader thread, and by the reader thread of a datagram session of the same
+ * client, a message racing another one of its key is queued on its own
+ * instead of replacing it, so none of them is lost.
+ *
+ * @author Michał Furgał
+ */
+@SuppressWarnings("serial")
+final class ReceivedMessageQueue extends ConcurrentLinkedQueue<AbstractNetMessage> {
+
+    /*
+     * Slots whose messages have not been taken yet, keyed by the uid and key
+     * of their messages.
+     */
+    private final ConcurrentHashMap<OutboundScheduler.ConflationKey, ConflationSlot> slots = new ConcurrentHashMap<>();
+
+    /**
+     * Replaces the waiting message of the same key by given message, keeping
+     * its place, or appends given message if no such message is waiting.
+     *
+     * @param message the received message.
+     * @param key the uid and conflation key of the message.
+     * @return true if a waiting message has been replaced.
+     */
+    boolean addConflating(AbstractNetMessage message, OutboundScheduler.ConflationKey key) {
+        final ConflationSlot waiting = slots.get(key);
+        if (waiting != null && waiting.replace(message)) {
+            return true;
+        }
+        //not waiting anymore, or taken right now
+        final ConflationSlot slot = new ConflationSlot(message, key);
+        message.conflationSlot = slot;
+        slots.put(key, slot);
+        add(message);
+        return false;
+    }
+
+    @Override
+    public AbstractNetMessage poll() {
+        final AbstractNetMessage head = super.poll();
+        return head != null ? take(head) : null;
+    }
+
+    @Override
+    public AbstractNetMessage peek() {
+        final AbstractNetMessage head = super.peek();
+        return head != null ? latest(head) : null;
+    }
+
+    @Override
+    public void clear() {
+        //taking every slot, so no newer message goes into a slot which is not queued anymore
+        while (poll() != null) {
+        }
+    }
+
+    @Override
+    public Iterator<AbstractNetMessage> iterator() {
+        final Iterator<AbstractNetMessage> queued = super.iterator();
+        return new Iterator<AbstractNetMessage>() {
+            private AbstractNetMessage current;
+
+            @Override
+            public boolean hasNext() {
+                return queued.hasNext();
+            }
+
+            @Override
+            public AbstractNetMessage next() {
+                current = queued.next();
+                return latest(current);
+            }
+
+            @Override
+            public void remove() {
+                queued.remove();
+                take(current);
+            }
+        };
+    }
+
+    @Override
+    public void forEach(Consumer<? super AbstractNetMessage> action) {
+        for (AbstractNetMessage message : this) {
+            action.accept(message);
+        }
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        for (AbstractNetMessage message : this) {
+            if (message.equals(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        for (Iterator<AbstractNetMessage> it = iterator(); it.hasNext();) {
+            if (it.next().equals(o)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super AbstractNetMessage> filter) {
+        boolean removed = false;
+        for (Iterator<AbstractNetMessage> it = iterator(); it.hasNext();) {
+            if (filter.test(it.next())) {
+                it.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean removeAll(final Collection<?> c) {
+        return removeIf(new Predicate<AbstractNetMessage>() {
+            @Override
+            public boolean test(AbstractNetMessage message) {
+                return c.contains(message);
+            }
+        });
+    }
+
+    @Override
+    public boolean retainAll(final Collection<?> c) {
+        return removeIf(new Predicate<AbstractNetMessage>() {
+            @Override
+            public boolean test(AbstractNetMessage message) {
+                return !c.contains(message);
+            }
+        });
+    }
+
+    @Override
+    public Object[] toArray() {
+        return snapshot().toArray();
+    }
+
+    @Override
+    public <T> T[] toArray(T[] a) {
+        return snapshot().toArray(a);
+    }
+
+    @Override
+    public Spliterator<AbstractNetMessage> spliterator() {
+        //streams use it as well
+        return Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.CONCURRENT);
+    }
+
+    private ArrayList<AbstractNetMessage> snapshot() {
+        final ArrayList<AbstractNetMessage> messages = new ArrayList<>();
+        for (AbstractNetMessage message : this) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /*
+     * Returns the latest message of the slot held by given message, which
+     * can not be replaced afterwards, newer messages get a slot of their own.
+     */
+    private AbstractNetMessage take(AbstractNetMessage head) {
+        final ConflationSlot slot = head.conflationSlot;
+        if (slot == null) {
+            return head;
+        }
+        //the message may be added again by whoever takes it
+        head.conflationSlot = null;
+        slots.remove(slot.key, slot);
+        final AbstractNetMessage latest = slot.getAndSet(null);
+        return latest != null ? latest : head;
+    }
+
+    private static AbstractNetMessage latest(AbstractNetMessage head) {
+        final ConflationSlot slot = head.conflationSlot;
+        final AbstractNetMessage latest = slot != null ? slot.get() : null;
+        return latest != null ? latest : head;
+    }
+
+    /*
+     * Holds the latest message of a key, until the slot is taken.
+     */
+    static final class ConflationSlot extends AtomicReference<AbstractNetMessage> {
+
+        final OutboundScheduler.ConflationKey key;
+
+        ConflationSlot(AbstractNetMessage message, OutboundScheduler.ConflationKey key) {
+            super(message);
+            this.key = key;
+        }
+
+        boolean replace(AbstractNetMessage message) {
+            AbstractNetMessage current;
+            while ((current = get()) != null) {
+                if (compareAndSet(current, message)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -1,10 +1,28 @@
 package core;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.nio.channels.ServerSocketChannel;
+import java.security.SecureRandom;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,13 +38,72 @@ import java.util.logging.Logger;
  */
 public class Server {
 
+    private static final long STARTUP_TIMEOUT_IN_MILLISECONDS = 2500;
 
     private ConcurrentLinkedQueue<ClientConnection> activeConnections;
+    /*
+     * The UDP port used by datagram transport, -1 if datagram transport is
+     * disabled.
+     */
+    private int datagramPort = -1;
+    private DatagramTransceiver datagramTransceiver;
+    private final AtomicInteger activeConnectionsCount = new AtomicInteger();
+    /*
+     * Connections accepted above this limit are closed immediately.
+     */
+    private volatile int maxConnections = Integer.MAX_VALUE;
+    private volatile TokenBucket acceptRateLimiter;
+    private volatile TlsConfiguration tlsConfiguration;
+    private volatile int maxBatchSizeBytes;
+    private volatile long maxBatchDelayInMicroseconds;
+    private volatile long asyncWriteTimeoutInMilliseconds = 10000;
+    private volatile DecodePool decodePool;
+    private volatile TrafficCapture trafficCapture;
+    private volatile SocketTransceiver.ForwardedMessageHandler forwardedMessageHandler;
+    private volatile byte[] forwardingSecret;
+    private volatile SharedMemoryConfiguration sharedMemoryConfiguration;
+    private volatile NetMessageRegister register;
+    /*
+     * Topics having at least one subscriber. A topic is created by its first
+     * subscription and removed with its last one, so churn does not leave
+     * empty topics behind.
+     */
+    private final ConcurrentHashMap<String, Topic> topics = new ConcurrentHashMap<>();
+    /*
+     * A subscriber with more messages waiting to be written misses published
+     * messages, and is disconnected if disconnectSlowSubscribers is set.
+     */
+    private volatile int maxSubscriberQueuedMessages = 1024;
+    private volatile boolean disconnectSlowSubscribers = false;
+    private volatile double inboundMessagesPerSecond;
+    private volatile int inboundMessagesBurst;
+    /*
+     * Load shedding starts when messages waiting in queues of all connections
+     * exceed maxQueuedMessages or a single dispatch pass takes longer than
+     * maxDispatchLatencyInMilliseconds, and stops when both fall below half of
+     * these thresholds.
+     */
+    private volatile int maxQueuedMessages = Integer.MAX_VALUE;
+    private volatile long maxDispatchLatencyInMilliseconds = Long.MAX_VALUE;
+    private volatile boolean shedding = false;
+    private final AtomicLong shedMessagesCount = new AtomicLong();
+    private final AtomicLong rejectedConnectionsCount = new AtomicLong();
     private OnClientConnectedListener onClientConnectedListener;
     private OnClientDisconnectedListener onClientDisconnectedListener;
     private OnClientMessageListener onClientMessageListener;
-    private Thread serverIncomingConnectionAcceptorThread;
-    private volatile boolean serverIncomingConnectionAcceptorThreadRunning = false;
+    private final MessageDispatcher dispatcher = new MessageDispatcher();
+    private final List<Thread> serverIncomingConnectionAcceptorThreads = new CopyOnWriteArrayList<>();
+    /*
+     * Maximum length of the queue of incoming connections waiting to be
+     * accepted, per acceptor thread.
+     */
+    private volatile int acceptBacklog = 50;
+    /*
+     * Number of threads accepting connections, each with its own server socket
+     * bound to the same port with SO_REUSEPORT, so the kernel spreads incoming
+     * connections between them.
+     */
+    private volatile int acceptorThreads = 1;
     /*
      * A value in milliseconds used to specify how often to check for received messages
      * from clients.
@@ -35,7 +112,7 @@ public class Server {
     private Thread serverMessageReceiverThread;
     private volatile boolean serverMessageReceiverThreadRunning = false;
     private volatile boolean serverRunning;
-    private volatile ServerSocket serverSocketUsedByServerThread;
+    private final List<ServerSocketChannel> serverSocketsUsedByServerThreads = new CopyOnWriteArrayList<>();
 
     public OnClientConnectedListener getOnClientConnectedListener() {
         return onClientConnectedListener;
@@ -71,6 +148,393 @@ public class Server {
         this.onClientMessageListener = onClientMessageListener;
     }
 
+    public <T extends AbstractNetMessage> void onMessage(Class<T> messageClass, MessageHandler<? super T> handler) {
+        onMessage(messageClass, handler, null);
+    }
+
+    /**
+     * Sets the handler of received messages of specified type. Once any
+     * handler is set, each received message is taken from the queue of its
+     * client exactly once and passed to the handler of its type, while
+     * messages of types without a handler are passed to the
+     * {@link OnClientMessageListener}, if any, in a queue of their own.
+     *
+     * @param <T> the type of messages.
+     * @param messageClass the registered class of messages.
+     * @param handler the handler, or null to remove the handler of the type.
+     * @param executor the executor running the handler, or null to run it on
+     * the thread propagating received messages. Messages of a client are
+     * handled in order only by a single threaded executor.
+     */
+    public <T extends AbstractNetMessage> void onMessage(Class<T> messageClass, MessageHandler<? super T> handler, Executor executor) {
+        dispatcher.put(messageClass, handler, executor);
+    }
+
+    public int getDatagramPort() {
+        return datagramPort;
+    }
+
+    /**
+     * Enables datagram transport on specified UDP port. Each
+     * {@link ClientConnection} then gets a {@link DatagramSession}, which its
+     * client attaches to by calling {@link Client#connectDatagram()}. Must be
+     * called before {@link Server#startServer(int, NetMessageRegister)}.
+     *
+     * @param datagramPort the UDP port number, 0 to pick any free port or -1
+     * to disable datagram transport.
+     */
+    public void setDatagramPort(int datagramPort) {
+        this.datagramPort = datagramPort;
+    }
+
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    /**
+     * Changes the maximum length of the queue of incoming connections waiting
+     * to be accepted. Must be called before starting the server.
+     *
+     * @param acceptBacklog the backlog length, per acceptor thread.
+     */
+    public void setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+    }
+
+    public int getAcceptorThreads() {
+        return acceptorThreads;
+    }
+
+    /**
+     * Changes the number of threads accepting incoming connections. Each of
+     * them binds its own socket to the server port with SO_REUSEPORT, so the
+     * kernel spreads connection storms between them. Falls back to a single
+     * thread if SO_REUSEPORT is not supported. Must be called before starting
+     * the server.
+     *
+     * @param acceptorThreads the number of acceptor threads.
+     */
+    public void setAcceptorThreads(int acceptorThreads) {
+        this.acceptorThreads = acceptorThreads;
+    }
+
+    /**
+     *
+     * @return the port the server is listening on, or -1 if it is not bound.
+     */
+    public int getLocalPort() {
+        for (ServerSocketChannel serverSocket : serverSocketsUsedByServerThreads) {
+            if (serverSocket.isOpen()) {
+                return serverSocket.socket().getLocalPort();
+            }
+        }
+        return -1;
+    }
+
+    public TlsConfiguration getTlsConfiguration() {
+        return tlsConfiguration;
+    }
+
+    /**
+     * Enables TLS on connections accepted afterwards. The handshake is
+     * performed by the reader thread of each connection.
+     *
+     * @param tlsConfiguration the configuration holding the server
+     * certificate, or null to disable TLS.
+     */
+    public void setTlsConfiguration(TlsConfiguration tlsConfiguration) {
+        this.tlsConfiguration = tlsConfiguration;
+    }
+
+    /**
+     * Enables batching of messages sent to clients connecting afterwards.
+     *
+     * @param maxBatchSizeBytes the uncompressed size of a batch which is
+     * written immediately, or 0 to disable batching.
+     * @param maxBatchDelayInMicroseconds how long a batch may wait for more
+     * messages.
+     * @see SocketTransceiver#setBatching(int, long)
+     */
+    public void setBatching(int maxBatchSizeBytes, long maxBatchDelayInMicroseconds) {
+        this.maxBatchSizeBytes = maxBatchSizeBytes;
+        this.maxBatchDelayInMicroseconds = maxBatchDelayInMicroseconds;
+    }
+
+    /**
+     * Makes messages received from clients connecting afterwards decoded by
+     * given pool, so that decoding is spread across its threads instead of
+     * running on the reader thread of each connection.
+     *
+     * @param decodePool the pool, or null to decode on reader threads.
+     * @see SocketTransceiver#setDecodePool(core.DecodePool)
+     */
+    public void setDecodePool(DecodePool decodePool) {
+        this.decodePool = decodePool;
+    }
+
+    /**
+     * Records raw frames of clients connecting afterwards, identified by
+     * {@link ClientConnection#uid} in the capture.
+     *
+     * @param trafficCapture the capture, or null to stop recording new
+     * connections.
+     * @see TrafficReplayer
+     */
+    public void setTrafficCapture(TrafficCapture trafficCapture) {
+        this.trafficCapture = trafficCapture;
+    }
+
+    /**
+     * Sets the handler of messages forwarded by clients connecting
+     * afterwards, used by {@link ClusterNode} to accept links of other nodes.
+     *
+     * @param forwardedMessageHandler the handler, or null to drop forwarded
+     * messages.
+     * @see SocketTransceiver#forward(long, java.util.Collection)
+     */
+    public void setForwardedMessageHandler(SocketTransceiver.ForwardedMessageHandler forwardedMessageHandler) {
+        this.forwardedMessageHandler = forwardedMessageHandler;
+    }
+
+    /**
+     * Requires clients connecting afterwards to prove they know the secret
+     * before forwarding messages, clients forwarding without the proof are
+     * disconnected.
+     *
+     * @param forwardingSecret the secret shared by nodes of a cluster, or null
+     * to accept forwarded messages from anyone.
+     * @see SocketTransceiver#setForwardingSecret(byte[])
+     */
+    public void setForwardingSecret(byte[] forwardingSecret) {
+        this.forwardingSecret = forwardingSecret != null ? forwardingSecret.clone() : null;
+    }
+
+    /**
+     * Lets clients connecting afterwards from the same host move their
+     * connections to shared memory, see {@link Client#setSharedMemoryConfiguration(core.SharedMemoryConfiguration)}.
+     *
+     * @param sharedMemoryConfiguration the configuration, or null to keep all
+     * connections on TCP.
+     */
+    public void setSharedMemoryConfiguration(SharedMemoryConfiguration sharedMemoryConfiguration) {
+        this.sharedMemoryConfiguration = sharedMemoryConfiguration;
+    }
+
+    /**
+     * Sets how publishing treats subscribers which do not keep up with
+     * published messages.
+     *
+     * @param maxQueuedMessages messages waiting to be written to a
+     * subscriber, above which it misses published messages.
+     * @param disconnect true to disconnect such a subscriber instead, so it
+     * can reconnect and resynchronize.
+     */
+    public void setSlowSubscriberPolicy(int maxQueuedMessages, boolean disconnect) {
+        this.maxSubscriberQueuedMessages = maxQueuedMessages;
+        this.disconnectSlowSubscribers = disconnect;
+    }
+
+    /**
+     * Limits how long writing published messages to a client connecting
+     * afterwards may block a shared writer thread, before the client is
+     * disconnected.
+     *
+     * @param asyncWriteTimeoutInMilliseconds the limit, or 0 to wait forever.
+     * @see SocketTransceiver#setAsyncWriteTimeout(long)
+     */
+    public void setAsyncWriteTimeout(long asyncWriteTimeoutInMilliseconds) {
+        if (asyncWriteTimeoutInMilliseconds < 0) {
+            throw new IllegalArgumentException("asyncWriteTimeoutInMilliseconds < 0");
+        }
+        this.asyncWriteTimeoutInMilliseconds = asyncWriteTimeoutInMilliseconds;
+    }
+
+    /**
+     * Subscribes a client to a topic. Clients may subscribe themselves by
+     * {@link Client#subscribe(java.lang.String)}.
+     *
+     * @param topic the name of the topic.
+     * @param clientConnection the subscribing client.
+     */
+    public void subscribe(String topic, final ClientConnection clientConnection) {
+        topics.compute(topic, new BiFunction<String, Topic, Topic>() {
+            @Override
+            public Topic apply(String name, Topic current) {
+                final Topic subscribed = current != null ? current : new Topic(name);
+                subscribed.subscribers.add(clientConnection);
+                return subscribed;
+            }
+        });
+        clientConnection.subscribedTopics.add(topic);
+    }
+
+    /**
+     * Unsubscribes a client from a topic, removing the topic if it was its
+     * last subscriber.
+     *
+     * @param topic the name of the topic.
+     * @param clientConnection the subscribed client.
+     */
+    public void unsubscribe(String topic, final ClientConnection clientConnection) {
+        clientConnection.subscribedTopics.remove(topic);
+        topics.computeIfPresent(topic, new BiFunction<String, Topic, Topic>() {
+            @Override
+            public Topic apply(String name, Topic current) {
+                current.subscribers.remove(clientConnection);
+                return current.subscribers.isEmpty() ? null : current;
+            }
+        });
+    }
+
+    /**
+     * Sends a message to all current subscribers of a topic. The message is
+     * encoded once and appended to outbound lanes of subscribers, which are
+     * written by shared writer threads, so publishing never blocks on a slow
+     * subscriber. A subscriber blocking such a thread for longer than
+     * {@link Server#setAsyncWriteTimeout(long)} is disconnected. Must be
+     * called while the server is running.
+     *
+     * @param topic the name of the topic.
+     * @param message the message to publish.
+     * @return the number of subscribers the message has been queued for.
+     */
+    public int publish(String topic, AbstractNetMessage message) {
+        final Topic published = topics.get(topic);
+        if (published == null) {
+            return 0;
+        }
+        final EncodedMessage encoded;
+        try {
+            encoded = EncodedMessage.encode(register, message);
+        } catch (IOException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, "[SERVER]Could not encode message published to topic:" + topic, ex);
+            return 0;
+        }
+        published.publishedCount.incrementAndGet();
+        final List<AbstractNetMessage> toSend = Collections.<AbstractNetMessage>singletonList(encoded);
+        final int queueLimit = maxSubscriberQueuedMessages;
+        int queued = 0;
+        for (ClientConnection subscriber : published.subscribers) {
+            final SocketTransceiver transceiver = subscriber.transceiver;
+            if (transceiver.isDead()) {
+                //unsubscribed once the connection is dropped
+                continue;
+            }
+            if (transceiver.getOutboundScheduler().size() >= queueLimit) {
+                published.droppedCount.incrementAndGet();
+                if (disconnectSlowSubscribers) {
+                    Logger.getLogger(Server.class.getName()).log(Level.WARNING, "[SERVER]Disconnecting slow subscriber of topic:" + topic + " " + subscriber);
+                    transceiver.disconnect();
+                }
+                continue;
+            }
+            transceiver.sendAsync(null, toSend);
+            queued++;
+        }
+        published.queuedCount.addAndGet(queued);
+        return queued;
+    }
+
+    /**
+     *
+     * @param topic the name of the topic.
+     * @return current statistics of the topic, or null if it has no
+     * subscribers.
+     */
+    public TopicStatistics getTopicStatistics(String topic) {
+        final Topic current = topics.get(topic);
+        return current != null ? current.getStatistics() : null;
+    }
+
+    /**
+     *
+     * @return the number of topics having at least one subscriber.
+     */
+    public int getTopicsCount() {
+        return topics.size();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Limits the number of simultaneously connected clients, connections
+     * above that limit are accepted and closed immediately.
+     *
+     * @param maxConnections the maximum number of connected clients.
+     */
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Limits how fast incoming connections are accepted. Connections above
+     * the rate wait in the accept backlog of the server socket.
+     *
+     * @param connectionsPerSecond the average accept rate, or 0 to disable
+     * the limit.
+     * @param burst how many connections may be accepted at once.
+     */
+    public void setAcceptRateLimit(double connectionsPerSecond, int burst) {
+        acceptRateLimiter = connectionsPerSecond > 0 ? new TokenBucket(connectionsPerSecond, burst) : null;
+    }
+
+    /**
+     * Limits how fast messages are read from each connected client. A client
+     * sending faster is not read until it is within the limit, which pushes
+     * back on it via TCP flow control. Applies to clients connecting
+     * afterwards.
+     *
+     * @param messagesPerSecond the average rate per client, or 0 to disable
+     * the limit.
+     * @param burst how many messages may be read at once.
+     */
+    public void setInboundRateLimit(double messagesPerSecond, int burst) {
+        this.inboundMessagesBurst = burst;
+        this.inboundMessagesPerSecond = messagesPerSecond;
+    }
+
+    /**
+     * Sets thresholds of server-wide load shedding. While shedding, new
+     * connections are rejected and received messages other than
+     * {@link MessagePriority#HIGH} are dropped.
+     *
+     * @param maxQueuedMessages the number of received, not yet consumed
+     * messages of all clients, which starts shedding.
+     * @param maxDispatchLatencyInMilliseconds the duration of propagating
+     * messages to {@link OnClientMessageListener}, which starts shedding.
+     */
+    public void setLoadSheddingThresholds(int maxQueuedMessages, long maxDispatchLatencyInMilliseconds) {
+        this.maxQueuedMessages = maxQueuedMessages;
+        this.maxDispatchLatencyInMilliseconds = maxDispatchLatencyInMilliseconds;
+    }
+
+    /**
+     *
+     * @return true if the server is currently shedding load.
+     */
+    public boolean isShedding() {
+        return shedding;
+    }
+
+    /**
+     *
+     * @return how many received messages have been dropped by load shedding.
+     */
+    public long getShedMessagesCount() {
+        return shedMessagesCount.get();
+    }
+
+    /**
+     *
+     * @return how many connections have been rejected by connection limit or
+     * load shedding.
+     */
+    public long getRejectedConnectionsCount() {
+        return rejectedConnectionsCount.get();
+    }
+
     /**
      *
      * @return A value in milliseconds used to specify how often to receive
@@ -102,47 +566,80 @@ public class Server {
 
     /**
      * Starts the server on specified port and with specified
-     * {@link NetMessageRegister}.
+     * {@link NetMessageRegister}, blocking until it is bound. Bind failures
+     * are logged, use
+     * {@link Server#startServerAsync(int, core.NetMessageRegister)} to handle
+     * them.
      *
      * @param portNumber
      * @param registers
      */
     public void startServer(int portNumber, final NetMessageRegister registers) {
-        activeConnections = new ConcurrentLinkedQueue<>();
-        this.serverIncomingConnectionAcceptorThread = startServerAcceptorThread(portNumber, registers);
-
-        serverMessageReceiverThread = new Thread(() -> {
-            runServerMessageReceiverThread();
-        });
-        serverMessageReceiverThread.start();
-
-        //Wait until server-socket is created
-        while (!Thread.currentThread().isInterrupted() && serverSocketUsedByServerThread == null) {
-            try {
-                Thread.sleep(1);
-            } catch (Exception ex) {
-                Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
-                return;
-            }
+        try {
+            startServerAsync(portNumber, registers).get(STARTUP_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]Server started and worker threads are running.");
+        } catch (ExecutionException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, "[SERVER]Could not start server.", ex.getCause());
+        } catch (TimeoutException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, "[SERVER]Could not start server.(Timeout)");
+            stopServer();
+        } catch (InterruptedException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
+            Thread.currentThread().interrupt();
+            stopServer();
         }
+    }
 
-        int timeout = 10;
-        while (timeout-- > 0 && serverMessageReceiverThreadRunning != true && serverIncomingConnectionAcceptorThreadRunning != true) {
+    /**
+     * Starts the server on specified port and with specified
+     * {@link NetMessageRegister} without waiting for it.
+     *
+     * @param portNumber the port to listen on, 0 to pick any free port(only
+     * with a single acceptor thread).
+     * @param registers
+     * @return a future completed with this server once all acceptor threads
+     * have bound their sockets, or completed exceptionally with the bind
+     * exception, in which case the server is already stopped.
+     */
+    public CompletableFuture<Server> startServerAsync(int portNumber, final NetMessageRegister registers) {
+        final CompletableFuture<Server> ready = new CompletableFuture<>();
+        register = registers;
+        dispatcher.compile(registers);
+        activeConnections = new ConcurrentLinkedQueue<>();
+        activeConnectionsCount.set(0);
+        shedding = false;
+        if (datagramPort >= 0) {
+            datagramTransceiver = new DatagramTransceiver(registers);
             try {
-                Thread.sleep(250);
-            } catch (InterruptedException ex) {
+                datagramTransceiver.bind(datagramPort);
+                Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]datagram transport started on port:" + datagramTransceiver.getLocalPort());
+            } catch (IOException ex) {
                 Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
-                stopServer();
+                datagramTransceiver.close();
+                datagramTransceiver = null;
             }
         }
 
-        if (timeout <= 0) {
-            Logger.getLogger(Server.class.getName()).log(Level.SEVERE, "[SERVER]Could not start server.(Timeout)");
-            stopServer();
-        } else {
-            Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]Server started and worker threads are running.");
+        int acceptors = Math.max(1, acceptorThreads);
+        if (acceptors > 1 && (portNumber == 0 || findReusePortOption() == null)) {
+            Logger.getLogger(Server.class.getName()).log(Level.WARNING, "[SERVER]SO_REUSEPORT is not available or port is not fixed, using single acceptor thread.");
+            acceptors = 1;
         }
+        //the receiver thread must exist before any acceptor can fail to bind
+        //and stop the server, otherwise it would never be interrupted
+        serverMessageReceiverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runServerMessageReceiverThread();
+            }
+        }, "server-message-receiver");
+        serverMessageReceiverThread.start();
 
+        final AtomicInteger pendingBinds = new AtomicInteger(acceptors);
+        for (int i = 0; i < acceptors; i++) {
+            serverIncomingConnectionAcceptorThreads.add(startServerAcceptorThread(portNumber, registers, acceptors > 1, ready, pendingBinds));
+        }
+        return ready;
     }
 
     /**
@@ -152,25 +649,32 @@ public class Server {
     public void stopServer() {
         serverRunning = false;
         Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]stopping server...");
-        if (serverSocketUsedByServerThread != null && serverSocketUsedByServerThread.isClosed() == false) {
+        for (ServerSocketChannel serverSocket : serverSocketsUsedByServerThreads) {
             try {
                 Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]closing serverSocket...");
-                serverSocketUsedByServerThread.close();
+                serverSocket.close();
             } catch (IOException ex) {
                 Logger.getLogger(Server.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        serverSocketsUsedByServerThreads.clear();
 
-        if (serverIncomingConnectionAcceptorThread != null) {
+        if (datagramTransceiver != null) {
+            Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]closing datagram transport...");
+            datagramTransceiver.close();
+            datagramTransceiver = null;
+        }
+
+        for (Thread acceptorThread : serverIncomingConnectionAcceptorThreads) {
             Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]interrupting  serverIncomingConnectionAcceptorThread...");
-            serverIncomingConnectionAcceptorThread.interrupt();
+            acceptorThread.interrupt();
         }
+        serverIncomingConnectionAcceptorThreads.clear();
         if (serverMessageReceiverThread != null) {
             Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]interrupting  serverMessageReceiverThread...");
             serverMessageReceiverThread.interrupt();
         }
         serverMessageReceiverThread = null;
-        serverIncomingConnectionAcceptorThread = null;
     }
 
     private void dropDeadClientConnections() {
@@ -179,8 +683,19 @@ public class Server {
             final ClientConnection next = it.next();
             if (next.isDead()) {
                 Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]Dropping dead connection:" + next);
+                //messages received right before the client disconnected are still propagated
+                if (!next.transceiver.getReceivedMessages().isEmpty()) {
+                    propagateReceivedMessages(next);
+                }
                 next.transceiver.disconnect();
+                for (String topic : next.subscribedTopics) {
+                    unsubscribe(topic, next);
+                }
+                if (datagramTransceiver != null) {
+                    datagramTransceiver.removeSession(next.sessionToken);
+                }
                 it.remove();
+                activeConnectionsCount.decrementAndGet();
                 if (onClientDisconnectedListener != null) {
                     onClientDisconnectedListener.onClientDisconnected(next);
                 }
@@ -192,15 +707,33 @@ public class Server {
         for (Iterator<ClientConnection> it = activeConnections.iterator(); it.hasNext();) {
             final ClientConnection clientConn = it.next();
 
-            if (clientConn.transceiver.getReceivedMessages().size() > 0) {
-                final ConcurrentLinkedQueue<AbstractNetMessage> receivedMessages = clientConn.transceiver.getReceivedMessages();
-                if (onClientMessageListener != null) {
-                    onClientMessageListener.onClientMessage(clientConn, receivedMessages);
-                } else {
-                    receivedMessages.clear();
-                }
+            if (!clientConn.transceiver.getReceivedMessages().isEmpty()) {
+                propagateReceivedMessages(clientConn);
+            }
+        }
+    }
 
+    private void propagateReceivedMessages(ClientConnection clientConn) {
+        final ConcurrentLinkedQueue<AbstractNetMessage> receivedMessages = clientConn.transceiver.getReceivedMessages();
+        final ConcurrentLinkedQueue<AbstractNetMessage> toListener;
+        if (dispatcher.hasRoutes()) {
+            AbstractNetMessage msg;
+            while ((msg = receivedMessages.poll()) != null) {
+                if (!dispatcher.dispatch(clientConn, msg)) {
+                    clientConn.unroutedMessages.add(msg);
+                }
+            }
+            toListener = clientConn.unroutedMessages;
+            if (toListener.isEmpty()) {
+                return;
             }
+        } else {
+            toListener = receivedMessages;
+        }
+        if (onClientMessageListener != null) {
+            onClientMessageListener.onClientMessage(clientConn, toListener);
+        } else {
+            toListener.clear();
         }
     }
 
@@ -209,7 +742,9 @@ public class Server {
         serverMessageReceiverThreadRunning = true;
         while (!Thread.interrupted()) {
             dropDeadClientConnections();
+            final long dispatchStartNanos = System.nanoTime();
             receiveAndPropagateMessageFromClients();
+            updateShedding((System.nanoTime() - dispatchStartNanos) / 1_000_000);
             try {
                 Thread.sleep(15);
             } catch (InterruptedException ex) {
@@ -222,32 +757,155 @@ public class Server {
         Logger.getLogger(Server.class.getName()).log(Level.FINE, "[SERVER]runServerMessageReceiverThread() has exited");
     }
 
-    private Thread startServerAcceptorThread(int portNumber, final NetMessageRegister registers) {
+    private void updateShedding(long dispatchLatencyInMilliseconds) {
+        final int queueLimit = maxQueuedMessages;
+        final long latencyLimit = maxDispatchLatencyInMilliseconds;
+        if (queueLimit == Integer.MAX_VALUE && latencyLimit == Long.MAX_VALUE) {
+            shedding = false;
+            return;
+        }
+        final int queued = countQueuedMessages(queueLimit);
+        if (!shedding && (queued >= queueLimit || dispatchLatencyInMilliseconds > latencyLimit)) {
+            shedding = true;
+            Logger.getLogger(Server.class.getName()).log(Level.WARNING, "[SERVER]Overloaded, started shedding load. queued=" + queued + " dispatchLatencyInMilliseconds=" + dispatchLatencyInMilliseconds);
+        } else if (shedding && queued < queueLimit / 2 && dispatchLatencyInMilliseconds <= latencyLimit / 2) {
+            shedding = false;
+            Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]Stopped shedding load, shed messages so far:" + shedMessagesCount.get());
+        }
+    }
+
+    /*
+     * Counts messages waiting in queues of all connections, stopping at limit,
+     * since ConcurrentLinkedQueue#size() traverses the whole queue.
+     */
+    private int countQueuedMessages(int limit) {
+        int queued = 0;
+        for (ClientConnection clientConn : activeConnections) {
+            for (Iterator<AbstractNetMessage> it = clientConn.transceiver.getReceivedMessages().iterator(); it.hasNext() && queued < limit; it.next()) {
+                queued++;
+            }
+            if (queued >= limit) {
+                break;
+            }
+        }
+        return queued;
+    }
+
+    /*
+     * Reserves a slot for the connection, so acceptor threads accepting at the
+     * same time never admit more than maxConnections clients. The slot is
+     * released when the connection is dropped, or when its setup fails.
+     */
+    private boolean admitConnection(Socket clientSocket) {
+        if (!shedding) {
+            for (int active = activeConnectionsCount.get(); active < maxConnections; active = activeConnectionsCount.get()) {
+                if (activeConnectionsCount.compareAndSet(active, active + 1)) {
+                    return true;
+                }
+            }
+        }
+        rejectedConnectionsCount.incrementAndGet();
+        Logger.getLogger(Server.class.getName()).log(Level.WARNING, "[SERVER]Rejecting incoming connection from socket:" + clientSocket + " shedding=" + shedding + " activeConnections=" + activeConnectionsCount.get());
+        try {
+            clientSocket.close();
+        } catch (IOException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.FINE, null, ex);
+        }
+        return false;
+    }
+
+    private void configureInboundLimits(SocketTransceiver transceiver, final NetMessageRegister registers) {
+        final double messagesPerSecond = inboundMessagesPerSecond;
+        if (messagesPerSecond > 0) {
+            transceiver.setInboundRateLimiter(new TokenBucket(messagesPerSecond, Math.max(1, inboundMessagesBurst)));
+        }
+        transceiver.setInboundAdmissionPolicy(new SocketTransceiver.InboundAdmissionPolicy() {
+            @Override
+            public boolean admit(AbstractNetMessage message) {
+                if (shedding && registers.getPriority(message.receivedUid) != MessagePriority.HIGH) {
+                    shedMessagesCount.incrementAndGet();
+                    return false;
+                }
+                return true;
+            }
+        });
+    }
+
+    /*
+     * Announces the session to every client, it binds datagram transport and
+     * shared memory to the connection. The datagram port is -1 without
+     * datagram transport.
+     */
+    private void attachDatagramSession(ClientConnection clientConnection) {
+        final DatagramTransceiver datagram = datagramTransceiver;
+        if (datagram != null) {
+            clientConnection.datagramSession = datagram.createSession(clientConnection.sessionToken, clientConnection.sessionSecret, clientConnection.transceiver);
+            clientConnection.datagramSession.setOnSessionFailedListener(new DatagramSession.OnSessionFailedListener() {
+                @Override
+                public void onSessionFailed(DatagramSession session) {
+                    //the client waits for the lost packet forever, only closing the connection tells it
+                    Logger.getLogger(Server.class.getName()).log(Level.WARNING, "[SERVER]Datagram session failed, disconnecting client:" + clientConnection.uid);
+                    clientConnection.transceiver.disconnect();
+                }
+            });
+        }
+        clientConnection.transceiver.announceSession(clientConnection.sessionToken, clientConnection.sessionSecret, datagram != null ? datagram.getLocalPort() : -1);
+    }
+
+    private Thread startServerAcceptorThread(int portNumber, final NetMessageRegister registers, final boolean reusePort, final CompletableFuture<Server> ready, final AtomicInteger pendingBinds) {
         final Runnable acceptorRunnable = new Runnable() {
             @Override
             public void run() {
                 //Create the server socket
                 final ServerSocket serverSocket;
                 try {
-                    serverSocket = new ServerSocket(portNumber);
-                    Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]server started on port:" + portNumber);
-                    serverSocketUsedByServerThread = serverSocket;
-                    serverRunning = true;
+                    final ServerSocketChannel channel = ServerSocketChannel.open();
+                    serverSocketsUsedByServerThreads.add(channel);
+                    if (reusePort) {
+                        channel.setOption(findReusePortOption(), true);
+                    }
+                    channel.bind(new InetSocketAddress(portNumber), acceptBacklog);
+                    serverSocket = channel.socket();
+                    Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]server started on port:" + serverSocket.getLocalPort());
                 } catch (IOException ex) {
                     Logger.getLogger(Server.class
                             .getName()).log(Level.SEVERE, null, ex);
-
+                    if (ready.completeExceptionally(ex)) {
+                        stopServer();
+                    }
                     return;
                 }
+                if (pendingBinds.decrementAndGet() == 0) {
+                    serverRunning = true;
+                    ready.complete(Server.this);
+                }
 
-                serverIncomingConnectionAcceptorThreadRunning = true;
                 //Start the accepting thread
                 while (!Thread.interrupted()) {
                     try {
+                        final TokenBucket limiter = acceptRateLimiter;
+                        if (limiter != null) {
+                            limiter.acquire();
+                        }
                         //Accept next incoming connection
                         final Socket clientSocket = serverSocket.accept();
+                        if (!admitConnection(clientSocket)) {
+                            continue;
+                        }
                         Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]Accepting incoming connection from socket:" + clientSocket);
-                        final ClientConnection clientConnection = new ClientConnection(clientSocket, registers);
+                        final ClientConnection clientConnection;
+                        try {
+                            clientConnection = setUpClientConnection(clientSocket, registers);
+                        } catch (RuntimeException ex) {
+                            activeConnectionsCount.decrementAndGet();
+                            Logger.getLogger(Server.class.getName()).log(Level.WARNING, "[SERVER]Setting up connection from socket:" + clientSocket + " failed.", ex);
+                            try {
+                                clientSocket.close();
+                            } catch (IOException closeEx) {
+                                Logger.getLogger(Server.class.getName()).log(Level.FINE, null, closeEx);
+                            }
+                            continue;
+                        }
                         activeConnections.add(clientConnection);
                         if (onClientConnectedListener != null) {
                             onClientConnectedListener.onClientConnected(clientConnection);
@@ -255,12 +913,10 @@ public class Server {
 
                     } catch (Exception ex) {
                         Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]exitting startServerAcceptorThread()");
-                        serverIncomingConnectionAcceptorThreadRunning = false;
                         break;
                     }
                 }
                 Logger.getLogger(Server.class.getName()).log(Level.INFO, "[SERVER]startServerAcceptorThread() has exited");
-                serverIncomingConnectionAcceptorThreadRunning = false;
             }
         };
 
@@ -269,6 +925,52 @@ public class Server {
         return t;
     }
 
+    private ClientConnection setUpClientConnection(Socket clientSocket, final NetMessageRegister registers) {
+        final ClientConnection clientConnection = new ClientConnection(clientSocket, registers, false);
+        configureInboundLimits(clientConnection.transceiver, registers);
+        clientConnection.transceiver.setTlsConfiguration(tlsConfiguration);
+        clientConnection.transceiver.setBatching(maxBatchSizeBytes, maxBatchDelayInMicroseconds);
+        clientConnection.transceiver.setAsyncWriteTimeout(asyncWriteTimeoutInMilliseconds);
+        clientConnection.transceiver.setDecodePool(decodePool);
+        clientConnection.transceiver.setTrafficCapture(trafficCapture, clientConnection.uid);
+        clientConnection.transceiver.setForwardedMessageHandler(forwardedMessageHandler);
+        clientConnection.transceiver.setForwardingSecret(forwardingSecret);
+        clientConnection.transceiver.setSharedMemoryConfiguration(sharedMemoryConfiguration);
+        clientConnection.transceiver.setSubscriptionHandler(new SocketTransceiver.SubscriptionHandler() {
+            @Override
+            public void onSubscribe(String topic) {
+                subscribe(topic, clientConnection);
+            }
+
+            @Override
+            public void onUnsubscribe(String topic) {
+                unsubscribe(topic, clientConnection);
+            }
+        });
+        clientConnection.transceiver.run();
+        attachDatagramSession(clientConnection);
+        return clientConnection;
+    }
+
+    /*
+     * SO_REUSEPORT is available since Java 9 and only on some platforms, so it
+     * is looked up by name among options supported by server socket channels.
+     */
+    private static SocketOption<Boolean> findReusePortOption() {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            for (SocketOption<?> option : channel.supportedOptions()) {
+                if ("SO_REUSEPORT".equals(option.name()) && option.type() == Boolean.class) {
+                    @SuppressWarnings("unchecked")
+                    final SocketOption<Boolean> reusePort = (SocketOption<Boolean>) option;
+                    return reusePort;
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(Server.class.getName()).log(Level.FINE, null, ex);
+        }
+        return null;
+    }
+
     /**
      * Fired after one of the connected clients sends an message to server.
      */
@@ -277,6 +979,17 @@ public class Server {
         public void onClientMessage(ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages);
     }
 
+    /**
+     * Handles received messages of a single type, registered by
+     * {@link Server#onMessage(java.lang.Class, core.Server.MessageHandler, java.util.concurrent.Executor)}.
+     *
+     * @param <T> the type of handled messages.
+     */
+    public static interface MessageHandler<T extends AbstractNetMessage> {
+
+        public void onMessage(ClientConnection clientConnection, T message);
+    }
+
     /**
      * Fired after one of the connected clients connects to server.
      */
@@ -293,20 +1006,103 @@ public class Server {
         public void onClientDisconnected(ClientConnection clientConnection);
     }
 
+    private static final class Topic {
+
+        final String name;
+        //copied on every change, so publishing iterates a snapshot without locking
+        final CopyOnWriteArraySet<ClientConnection> subscribers = new CopyOnWriteArraySet<>();
+        final AtomicLong publishedCount = new AtomicLong();
+        final AtomicLong queuedCount = new AtomicLong();
+        final AtomicLong droppedCount = new AtomicLong();
+
+        Topic(String name) {
+            this.name = name;
+        }
+
+        TopicStatistics getStatistics() {
+            return new TopicStatistics(name, subscribers.size(), publishedCount.get(), queuedCount.get(), droppedCount.get());
+        }
+    }
+
+    /**
+     * A snapshot of subscribers and counters of one topic. Counters start
+     * from zero when a topic is created by its first subscription.
+     */
+    public static final class TopicStatistics {
+
+        public final String topic;
+        public final int subscribers;
+        public final long publishedCount;
+        //messages queued for subscribers, one per subscriber of each published message
+        public final long queuedCount;
+        //messages missed by slow subscribers
+        public final long droppedCount;
+
+        TopicStatistics(String topic, int subscribers, long publishedCount, long queuedCount, long droppedCount) {
+            this.topic = topic;
+            this.subscribers = subscribers;
+            this.publishedCount = publishedCount;
+            this.queuedCount = queuedCount;
+            this.droppedCount = droppedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "TopicStatistics[" + "topic=" + topic + " subscribers=" + subscribers + " publishedCount=" + publishedCount + " queuedCount=" + queuedCount + " droppedCount=" + droppedCount + "]";
+        }
+    }
+
     /**
      * Represents one of the clients currently connected to server.
      */
     public static final class ClientConnection {
 
         private static volatile long pool = 0;
+        private static final SecureRandom SESSION_TOKEN_RANDOM = new SecureRandom();
         public Socket clientSocket;
         public SocketTransceiver transceiver;
+        /*
+         * The datagram session of this client, null if datagram transport is
+         * disabled.
+         */
+        public DatagramSession datagramSession;
         public final long uid = pool++;
+        /*
+         * A secret token identifying this connection, used by the client to
+         * attach its datagram session.
+         */
+        public final long sessionToken = SESSION_TOKEN_RANDOM.nextLong();
+        /*
+         * A secret sent only over the TCP connection, unlike the token which
+         * is sent in every datagram, proving the client attaching a datagram
+         * session is the one the session has been announced to.
+         */
+        final byte[] sessionSecret = new byte[SocketTransceiver.SESSION_SECRET_LENGTH_BYTES];
+
+        {
+            SESSION_TOKEN_RANDOM.nextBytes(sessionSecret);
+        }
+        /*
+         * Topics this client is subscribed to, unsubscribed once it is
+         * dropped.
+         */
+        final Set<String> subscribedTopics = ConcurrentHashMap.newKeySet();
+        /*
+         * Received messages without a MessageHandler, passed to the
+         * OnClientMessageListener.
+         */
+        final ConcurrentLinkedQueue<AbstractNetMessage> unroutedMessages = new ConcurrentLinkedQueue<>();
 
         public ClientConnection(Socket clientSocket, NetMessageRegister registers) {
+            this(clientSocket, registers, true);
+        }
+
+        ClientConnection(Socket clientSocket, NetMessageRegister registers, boolean startReading) {
             this.clientSocket = clientSocket;
             transceiver = new SocketTransceiver(registers, clientSocket);
-            transceiver.run();
+            if (startReading) {
+                transceiver.run();
+            }
         }
 
         @Override
@@ -0,0 +1,335 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+
+/**
+ * A pair of single producer, single consumer byte rings in a memory mapped
+ * file, one per direction, carrying the same frames a socket would. Each ring
+ * is written only by the writeLock holder of one {@link SocketTransceiver}
+ * and read only by the reader thread of the other, so its positions are
+ * published with memory fences instead of locks.
+ *
+ * The file starts with a header(magic, version, ring capacity and the session
+ * token of the connection it is offered on), followed by the client to server
+ * ring and the server to client ring. The token binds the file to a single
+ * connection, so no other local process can make the server write into the
+ * rings of a live client. Each ring starts
+ * with its write position, read position and closed flags of both sides, each
+ * on a cache line of its own, followed by its data.
+ *
+ * @author Michał Furgał
+ */
+final class SharedMemoryChannel {
+
+    static final int MAX_RING_CAPACITY_BYTES = 64 * 1024 * 1024;
+    static final String FILE_PREFIX = "ipc-";
+    private static final int MAGIC = 0x49504352;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE_BYTES = 64;
+    private static final int SESSION_TOKEN_OFFSET = 16;
+    private static final int WRITE_POSITION_OFFSET = 0;
+    private static final int READ_POSITION_OFFSET = 64;
+    private static final int WRITER_CLOSED_OFFSET = 128;
+    private static final int READER_CLOSED_OFFSET = 192;
+    private static final int RING_HEADER_SIZE_BYTES = 256;
+
+    private final File file;
+    private final MappedByteBuffer mapped;
+    private final WaitStrategy waitStrategy;
+    private final Ring inbound;
+    private final Ring outbound;
+    private volatile boolean closed;
+
+    private SharedMemoryChannel(File file, MappedByteBuffer mapped, int capacity, boolean client, WaitStrategy waitStrategy) {
+        this.file = file;
+        this.mapped = mapped;
+        this.waitStrategy = waitStrategy;
+        final Ring clientToServer = new Ring(HEADER_SIZE_BYTES, capacity);
+        final Ring serverToClient = new Ring(HEADER_SIZE_BYTES + RING_HEADER_SIZE_BYTES + capacity, capacity);
+        this.inbound = client ? serverToClient : clientToServer;
+        this.outbound = client ? clientToServer : serverToClient;
+    }
+
+    /**
+     *
+     * @return false if memory fences are not available on this JVM.
+     */
+    static boolean isSupported() {
+        return MemoryFences.isAvailable();
+    }
+
+    /**
+     * Creates a new file holding empty rings, used by the client offering it.
+     *
+     * @param configuration the configuration of the client.
+     * @param sessionToken the session token announced by the server.
+     * @return the created channel.
+     * @throws IOException if the file could not be created or mapped.
+     */
+    static SharedMemoryChannel create(SharedMemoryConfiguration configuration, long sessionToken) throws IOException {
+        final int capacity = configuration.getRingCapacityBytes();
+        final File file = File.createTempFile(FILE_PREFIX, ".ring", configuration.getDirectory());
+        try {
+            if (file.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+                //only processes of the same user may map the rings
+                Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-------"));
+            }
+            final MappedByteBuffer mapped;
+            //the mapping stays valid once the file is closed
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+                randomAccessFile.setLength(sizeFor(capacity));
+                mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, sizeFor(capacity));
+            }
+            mapped.putInt(4, VERSION);
+            mapped.putInt(8, capacity);
+            mapped.putLong(SESSION_TOKEN_OFFSET, sessionToken);
+            MemoryFences.storeFence();
+            mapped.putInt(0, MAGIC);
+            return new SharedMemoryChannel(file, mapped, capacity, true, configuration.getWaitStrategy());
+        } catch (IOException | RuntimeException ex) {
+            file.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Maps a file offered by a client, used by the server.
+     *
+     * @param path the path of the file.
+     * @param configuration the configuration of the server.
+     * @param sessionToken the session token of the connection the file has
+     * been offered on.
+     * @return the opened channel.
+     * @throws IOException if the file is not in the configured directory, is
+     * not a valid ring file of that connection or could not be mapped.
+     */
+    static SharedMemoryChannel open(String path, SharedMemoryConfiguration configuration, long sessionToken) throws IOException {
+        final File file = new File(path).getCanonicalFile();
+        if (!file.getName().startsWith(FILE_PREFIX) || !configuration.getDirectory().getCanonicalFile().equals(file.getParentFile()) || !file.isFile()) {
+            throw new IOException("[SHARED MEMORY]Refusing file outside of the shared directory:" + path);
+        }
+        final MappedByteBuffer mapped;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            final long length = randomAccessFile.length();
+            if (length < HEADER_SIZE_BYTES || length > sizeFor(MAX_RING_CAPACITY_BYTES)) {
+                throw new IOException("[SHARED MEMORY]Not a ring file, length:" + length);
+            }
+            mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+        final int magic = mapped.getInt(0);
+        MemoryFences.loadFence();
+        final int version = mapped.getInt(4);
+        final int capacity = mapped.getInt(8);
+        if (magic != MAGIC || version != VERSION || capacity <= 0 || Integer.bitCount(capacity) != 1 || sizeFor(capacity) != mapped.capacity()) {
+            throw new IOException("[SHARED MEMORY]Not a ring file, magic:" + magic + " version:" + version + " capacity:" + capacity);
+        }
+        if (mapped.getLong(SESSION_TOKEN_OFFSET) != sessionToken) {
+            throw new IOException("[SHARED MEMORY]The ring file belongs to another connection:" + path);
+        }
+        return new SharedMemoryChannel(file, mapped, capacity, false, configuration.getWaitStrategy());
+    }
+
+    private static long sizeFor(int capacity) {
+        return HEADER_SIZE_BYTES + 2L * (RING_HEADER_SIZE_BYTES + capacity);
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    InputStream getInputStream() {
+        return new RingInputStream(inbound);
+    }
+
+    OutputStream getOutputStream() {
+        return new RingOutputStream(outbound);
+    }
+
+    /**
+     * Removes the file, once both sides have mapped it or the offer has been
+     * rejected. The mapping stays valid until the channel is collected.
+     */
+    void deleteFile() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    /**
+     * Marks both rings closed by this side. The other side reads what has
+     * been written so far and then hits the end of stream, while writing to
+     * the other ring fails.
+     */
+    void close() {
+        closed = true;
+        MemoryFences.storeFence();
+        outbound.markClosed(WRITER_CLOSED_OFFSET);
+        inbound.markClosed(READER_CLOSED_OFFSET);
+    }
+
+    private final class Ring {
+
+        private final int base;
+        private final int capacity;
+        private final int mask;
+        //data of this ring, used only by the single side writing or reading it in this process
+        private final ByteBuffer data;
+        //the write position on the writing side, the read position on the reading side
+        private long position;
+
+        Ring(int base, int capacity) {
+            this.base = base;
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            final ByteBuffer view = mapped.duplicate();
+            view.position(base + RING_HEADER_SIZE_BYTES);
+            view.limit(base + RING_HEADER_SIZE_BYTES + capacity);
+            this.data = view.slice();
+        }
+
+        void write(byte[] bytes, int offset, int length) throws IOException {
+            int idleCount = 0;
+            while (length > 0) {
+                if (closed) {
+                    throw new IOException("[SHARED MEMORY]The channel is closed.");
+                }
+                if (mapped.getInt(base + READER_CLOSED_OFFSET) != 0) {
+                    throw new IOException("[SHARED MEMORY]The peer closed the channel.");
+                }
+                final long readPosition = mapped.getLong(base + READ_POSITION_OFFSET);
+                //the reader is done with the space it released
+                MemoryFences.loadFence();
+                final int free = capacity - (int) (position - readPosition);
+                if (free == 0) {
+                    idle(idleCount++);
+                    continue;
+                }
+                idleCount = 0;
+                final int count = Math.min(free, length);
+                final int index = (int) (position & mask);
+                final int first = Math.min(count, capacity - index);
+                data.position(index);
+                data.put(bytes, offset, first);
+                if (count > first) {
+                    data.position(0);
+                    data.put(bytes, offset + first, count - first);
+                }
+                //bytes become visible before the position publishing them
+                MemoryFences.storeFence();
+                position += count;
+                mapped.putLong(base + WRITE_POSITION_OFFSET, position);
+                offset += count;
+                length -= count;
+            }
+        }
+
+        int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            int idleCount = 0;
+            while (true) {
+                final long writePosition = mapped.getLong(base + WRITE_POSITION_OFFSET);
+                MemoryFences.loadFence();
+                final int available = (int) (writePosition - position);
+                if (available > 0) {
+                    final int count = Math.min(available, length);
+                    final int index = (int) (position & mask);
+                    final int first = Math.min(count, capacity - index);
+                    data.position(index);
+                    data.get(bytes, offset, first);
+                    if (count > first) {
+                        data.position(0);
+                        data.get(bytes, offset + first, count - first);
+                    }
+                    //bytes are copied before the writer may overwrite them
+                    MemoryFences.storeFence();
+                    position += count;
+                    mapped.putLong(base + READ_POSITION_OFFSET, position);
+                    return count;
+                }
+                if (closed) {
+                    throw new IOException("[SHARED MEMORY]The channel is closed.");
+                }
+                if (mapped.getInt(base + WRITER_CLOSED_OFFSET) != 0) {
+                    MemoryFences.loadFence();
+                    if (mapped.getLong(base + WRITE_POSITION_OFFSET) == position) {
+                        return -1;
+                    }
+                    continue;
+                }
+                idle(idleCount++);
+            }
+        }
+
+        int available() {
+            return (int) (mapped.getLong(base + WRITE_POSITION_OFFSET) - position);
+        }
+
+        void markClosed(int flagOffset) {
+            mapped.putInt(base + flagOffset, 1);
+        }
+
+        private void idle(int idleCount) throws InterruptedIOException {
+            waitStrategy.idle(idleCount);
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("[SHARED MEMORY]Interrupted while waiting for the peer.");
+            }
+        }
+    }
+
+    private static final class RingInputStream extends InputStream {
+
+        private final Ring ring;
+        private final byte[] single = new byte[1];
+
+        RingInputStream(Ring ring) {
+            this.ring = ring;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ring.read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return ring.read(bytes, offset, length);
+        }
+
+        @Override
+        public int available() {
+            return ring.available();
+        }
+    }
+
+    private static final class RingOutputStream extends OutputStream {
+
+        private final Ring ring;
+
+        RingOutputStream(Ring ring) {
+            this.ring = ring;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ring.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            ring.write(bytes, offset, length);
+        }
+    }
+}
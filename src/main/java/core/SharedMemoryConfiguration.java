@@ -0,0 +1,63 @@
+package core;
+
+import java.io.File;
+
+
+/**
+ * Configures shared memory transport of connections between a
+ * {@link Client} and a {@link Server} on the same host. The client creates a
+ * file holding two rings, one per direction, in the directory, and offers it
+ * to the server over the established TCP connection. Once the server maps the
+ * file too, frames are exchanged through the rings instead of the socket.
+ * Both sides must use the same directory.
+ *
+ * @author Michał Furgał
+ */
+public class SharedMemoryConfiguration {
+
+    private File directory = new File(System.getProperty("java.io.tmpdir"));
+    private int ringCapacityBytes = 1024 * 1024;
+    private WaitStrategy waitStrategy = WaitStrategy.PARK;
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     *
+     * @param directory the directory of files shared by clients and servers,
+     * preferably on a memory backed file system such as /dev/shm.
+     */
+    public void setDirectory(File directory) {
+        this.directory = directory;
+    }
+
+    public int getRingCapacityBytes() {
+        return ringCapacityBytes;
+    }
+
+    /**
+     * Changes the capacity of rings created by clients, a writer waits once
+     * its ring is full.
+     *
+     * @param ringCapacityBytes the capacity of each ring, a power of two.
+     */
+    public void setRingCapacityBytes(int ringCapacityBytes) {
+        if (ringCapacityBytes < 4096 || ringCapacityBytes > SharedMemoryChannel.MAX_RING_CAPACITY_BYTES || Integer.bitCount(ringCapacityBytes) != 1) {
+            throw new IllegalArgumentException("ringCapacityBytes must be a power of two between 4096 and " + SharedMemoryChannel.MAX_RING_CAPACITY_BYTES + ":" + ringCapacityBytes);
+        }
+        this.ringCapacityBytes = ringCapacityBytes;
+    }
+
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     *
+     * @param waitStrategy how threads of this side wait for the other side.
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy) {
+        this.waitStrategy = waitStrategy;
+    }
+}
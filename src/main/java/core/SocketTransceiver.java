@@ -6,10 +6,35 @@ import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLSession;
 import sun.tools.jar.resources.jar;
 
 
@@ -22,15 +47,210 @@ import sun.tools.jar.resources.jar;
 public class SocketTransceiver {
 
     public static final int PACKET_SIZE_BYTES = 128;
-    private volatile ConcurrentLinkedQueue<AbstractNetMessage> justReceivedMessages = new ConcurrentLinkedQueue<>();
+    /*
+     * The largest frame accepted from the peer, checked before anything is
+     * allocated for it. Frames of messages are never larger than a
+     * compressed packet, control frames(batches) are limited by this.
+     */
+    public static final int MAX_FRAME_LENGTH_BYTES = 1024 * 1024;
+    private static final int MAX_MESSAGE_FRAME_LENGTH_BYTES = CompressionUtils.maxCompressedLength(PACKET_SIZE_BYTES);
+    /*
+     * Every control frame is sent under this uid, which has always been
+     * reserved, followed by its length and a byte of its type. The constants
+     * below are those types, so control frames never take uids of
+     * applications.
+     */
+    static final int CONTROL_FRAME_UID = -1;
+    /*
+     * Length of the header of control frames, the type byte included.
+     */
+    private static final int CONTROL_FRAME_HEADER_LENGTH_BYTES = 9;
+    /*
+     * Control frame sent by server to a newly connected client, carrying the
+     * session token(8 bytes), datagram port(4 bytes) of the server and the
+     * session secret(16 bytes), which never appears in datagrams.
+     */
+    static final int CONTROL_FRAME_SESSION = 1;
+    /*
+     * Length of the secret following the token and datagram port in the
+     * session frame.
+     */
+    static final int SESSION_SECRET_LENGTH_BYTES = 16;
+    /*
+     * Control frame carrying message uid(4 bytes) followed by compressed XOR of
+     * the encoded message against the previous message of the same uid.
+     */
+    static final int CONTROL_FRAME_DELTA = 2;
+    /*
+     * Control frame carrying message uid(4 bytes), for which the receiver has
+     * no baseline, so the next message of that uid must be a keyframe.
+     */
+    static final int CONTROL_FRAME_RESYNC = 3;
+    /*
+     * Control frame carrying many messages compressed as one unit, see
+     * BatchFrameBuilder for the layout of the uncompressed payload.
+     */
+    static final int CONTROL_FRAME_BATCH = 4;
+    /*
+     * Control frame carrying message uid(4 bytes) followed by compressed key(8
+     * bytes) and encoded message, forwarded by another node of a cluster to
+     * the connection bound to that key.
+     */
+    static final int CONTROL_FRAME_FORWARD = 5;
+    /*
+     * Control frames sent by a client to subscribe to or unsubscribe from a
+     * topic of the server, carrying the UTF-8 name of the topic.
+     */
+    static final int CONTROL_FRAME_SUBSCRIBE = 6;
+    static final int CONTROL_FRAME_UNSUBSCRIBE = 7;
+    /*
+     * Control frames moving a connection to shared memory: the offer of a
+     * client carries the UTF-8 path of its ring file, the switch marks the
+     * last frame sent over TCP in its direction, the reject keeps TCP.
+     */
+    static final int CONTROL_FRAME_SHARED_MEMORY_OFFER = 8;
+    static final int CONTROL_FRAME_SHARED_MEMORY_SWITCH = 9;
+    static final int CONTROL_FRAME_SHARED_MEMORY_REJECT = 10;
+    /*
+     * Control frame sent by a node right after opening a cluster link,
+     * carrying HMAC-SHA256 of the session token keyed by the forwarding
+     * secret, which is never sent itself.
+     */
+    static final int CONTROL_FRAME_FORWARDING_PROOF = 11;
+    private static final String FORWARDING_PROOF_ALGORITHM = "HmacSHA256";
+    private static final ScheduledExecutorService BATCH_FLUSHER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "batch-flusher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /*
+     * Writes messages sent by sendAsync(), so that their senders never block
+     * on slow connections.
+     */
+    private static final ExecutorService ASYNC_WRITERS = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "async-writer-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    /*
+     * Disconnects connections whose async writes block for longer than their
+     * timeout, so a slow connection never holds an async writer for long.
+     * Nearly every timeout is cancelled, so cancelled ones are removed at
+     * once instead of waiting until they are due.
+     */
+    private static final ScheduledThreadPoolExecutor ASYNC_WRITE_TIMEOUTS = createAsyncWriteTimeouts();
+    private volatile int datagramPort = -1;
+    private volatile boolean deltaEncodingEnabled = false;
+    /*
+     * How many delta frames of the same uid may be sent in a row, before a full
+     * frame(keyframe) is sent again.
+     */
+    private volatile int deltaKeyframeInterval = 64;
+    /*
+     * Last encoded bytes per uid, sent and received respectively. Outgoing ones
+     * are used under writeLock, incoming ones only by the reader thread, or
+     * under publishLock if frames are decoded by a DecodePool.
+     */
+    private final ConcurrentHashMap<Integer, DeltaBaseline> outgoingBaselines = new ConcurrentHashMap<>();
+    private final HashMap<Integer, byte[]> incomingBaselines = new HashMap<>();
+    /*
+     * Messages of a received batch frame, not yet returned by read(). Used
+     * only by the reader thread.
+     */
+    private final ArrayDeque<AbstractNetMessage> pendingReadMessages = new ArrayDeque<>();
+    private final ReceivedMessageQueue justReceivedMessages = new ReceivedMessageQueue();
+    private final AtomicLong conflatedReceivedCount = new AtomicLong();
+    /*
+     * Counts write errors, so a sender whose messages were taken by another
+     * thread learns they may have been dropped.
+     */
+    private final AtomicLong writeErrorsCount = new AtomicLong();
+    /*
+     * Set while connected in poll mode, where frames are read and decoded by
+     * poll() on the thread of the caller instead of a reader thread. The
+     * inbound buffer holds bytes of frames not complete yet, in write mode.
+     */
+    private volatile SocketChannel pollChannel;
+    private volatile NonBlockingChannelOutputStream pollOutputStream;
+    private ByteBuffer pollInbound;
+    private static final int POLL_INBOUND_BUFFER_SIZE_BYTES = 16 * 1024;
+    /*
+     * Frames handed to the DecodePool in the order they have been received,
+     * published from the head once decoded.
+     */
+    private final ConcurrentLinkedQueue<InboundFrame> decodingFrames = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock publishLock = new ReentrantLock();
+    /*
+     * Limits frames waiting for decode, so a slow pool pushes back on the
+     * reader instead of buffering the whole stream.
+     */
+    private final Semaphore decodeWindow = new Semaphore(MAX_FRAMES_IN_DECODE);
+    private static final int MAX_FRAMES_IN_DECODE = 256;
+    private volatile boolean decodeFailed;
+    private volatile DecodePool decodePool;
+    private volatile TrafficCapture trafficCapture;
+    private volatile long trafficCaptureConnectionId;
+    private volatile ForwardedMessageHandler forwardedMessageHandler;
+    private volatile SubscriptionHandler subscriptionHandler;
+    /*
+     * Set on accepted connections which may be moved to shared memory.
+     */
+    private volatile SharedMemoryConfiguration sharedMemoryConfiguration;
+    /*
+     * The ring file offered by this client, until the server switches or
+     * rejects it, then the channel used by both sides. Each stream is
+     * switched at the switch frame of its direction, the socket stays open
+     * only to notice the peer going away.
+     */
+    private volatile SharedMemoryChannel offeredSharedMemory;
+    private volatile SharedMemoryChannel sharedMemory;
+    private volatile InputStream sharedMemoryInput;
+    private volatile OutputStream sharedMemoryOutput;
     private Runnable readerRunnable = new Runnable() {
         @Override
         public void run() {
+            final DecodePool pool = decodePool;
+            final SslEngineStreams tls = tlsStreams;
+            if (tls != null && tlsHandshakePending) {
+                try {
+                    socket.setSoTimeout(TLS_HANDSHAKE_TIMEOUT_IN_MILLISECONDS);
+                    tls.handshake();
+                    tlsHandshakePending = false;
+                    if (!writeSessionAnnouncement()) {
+                        throw new IOException("[TRANSCEIVER]Could not announce session.");
+                    }
+                } catch (Exception ex) {
+                    onReaderError(ex);
+                    return;
+                }
+            }
             while (socket != null && !socket.isClosed() && socket.isConnected()) {
                 try {
+                    final TokenBucket limiter = inboundRateLimiter;
+                    if (limiter != null) {
+                        //do not read from the socket until within the limit, pushing back on the sender
+                        limiter.acquire();
+                    }
+                    if (pool != null) {
+                        //only extract the frame, it is decoded and published by the pool
+                        final InboundFrame frame = readFrame(inputStream());
+                        if (frame == null) {
+                            throw new Exception("[TRANSCEIVER]A null message has been received, closing the transceiver.");
+                        }
+                        submitFrame(pool, frame);
+                        continue;
+                    }
                     AbstractNetMessage msg = read();
                     if (msg != null) {
-                        justReceivedMessages.add(msg);
+                        admitReceived(msg);
                     } else {
                         throw new Exception("[TRANSCEIVER]A null message has been received, closing the transceiver.");
                     }
@@ -61,10 +281,121 @@ public class SocketTransceiver {
         }
     };
     private Thread readerThread;
-    private ByteBuffer receiveBuffer = ByteBuffer.allocate(PACKET_SIZE_BYTES);
+    private static final int TLS_HANDSHAKE_TIMEOUT_IN_MILLISECONDS = 10000;
+    private volatile TlsConfiguration tlsConfiguration;
+    private volatile SslEngineStreams tlsStreams;
+    private volatile boolean tlsHandshakePending;
+    private volatile TokenBucket inboundRateLimiter;
+    private volatile InboundAdmissionPolicy inboundAdmissionPolicy;
     private NetMessageRegister register;
+    private final CountDownLatch sessionLatch = new CountDownLatch(1);
+    /*
+     * The session frame payload of an accepted connection, written at once
+     * or, on TLS connections, after the handshake.
+     */
+    private volatile byte[] sessionAnnouncement;
+    private final AtomicBoolean sessionAnnouncementWritten = new AtomicBoolean();
+    private static final long SESSION_TIMEOUT_IN_MILLISECONDS = 2000;
+    private volatile long sessionToken;
+    private volatile byte[] sessionSecret;
+    /*
+     * Secret the remote side must prove before its forwarded messages are
+     * accepted, or null to accept them from anyone.
+     */
+    private volatile byte[] forwardingSecret;
+    private volatile boolean forwardingProven;
     private volatile Socket socket;
     private byte[] writeBuffer = new byte[PACKET_SIZE_BYTES];
+    /*
+     * XOR of writeBuffer against its baseline, guarded by writeLock.
+     */
+    private final byte[] deltaBuffer = new byte[PACKET_SIZE_BYTES];
+    /*
+     * Key followed by writeBuffer of a forwarded message, guarded by
+     * writeLock.
+     */
+    private final byte[] forwardBuffer = new byte[8 + PACKET_SIZE_BYTES];
+    /*
+     * Id and length of the frame being read, used only by the reader thread.
+     */
+    private final byte[] readHeaderBytes = new byte[4];
+    /*
+     * Guards writeBuffer and the socket output stream.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final OutboundScheduler outboundScheduler = new OutboundScheduler();
+    /*
+     * Messages waiting to be written as a single batch frame, null if
+     * batching is disabled. Guarded by writeLock.
+     */
+    private BatchFrameBuilder batch;
+    private volatile int maxBatchSizeBytes;
+    private volatile long maxBatchDelayInMicroseconds;
+    private final AtomicBoolean batchFlushScheduled = new AtomicBoolean();
+    private final AtomicBoolean asyncFlushScheduled = new AtomicBoolean();
+    private volatile long asyncWriteTimeoutInMilliseconds = 10000;
+    private final Runnable asyncFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            asyncFlushScheduled.set(false);
+            final long timeout = asyncWriteTimeoutInMilliseconds;
+            final ScheduledFuture<?> timeoutFuture = timeout > 0 ? ASYNC_WRITE_TIMEOUTS.schedule(asyncWriteTimeoutTask, timeout, TimeUnit.MILLISECONDS) : null;
+            try {
+                //messages enqueued from now on schedule another run, unless flush() takes them
+                flush();
+            } finally {
+                if (timeoutFuture != null) {
+                    timeoutFuture.cancel(false);
+                }
+            }
+        }
+    };
+    private final Runnable asyncWriteTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]Async write blocked for more than " + asyncWriteTimeoutInMilliseconds + "ms, disconnecting.");
+            //closing the socket makes the blocked write fail, which drops waiting messages
+            disconnect();
+        }
+    };
+    private final Runnable batchFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            batchFlushScheduled.set(false);
+            writeLock.lock();
+            try {
+                if (isDead()) {
+                    //disconnected while the batch was waiting, there is nowhere to write it
+                    if (batch != null) {
+                        batch.clear();
+                    }
+                    outboundScheduler.clear();
+                    return;
+                }
+                AbstractNetMessage msg;
+                boolean written = false;
+                while ((msg = outboundScheduler.next()) != null) {
+                    write(msg);
+                    written = true;
+                }
+                if (batch != null && batch.count() > 0) {
+                    writeBatch();
+                    written = true;
+                }
+                if (written) {
+                    outputStream().flush();
+                }
+            } catch (Exception ex) {
+                onWriteError(ex);
+            } finally {
+                releaseWriteLock();
+            }
+            //messages enqueued while the lock was held are left to us by their senders
+            if (!outboundScheduler.isEmpty()) {
+                flush();
+            }
+        }
+    };
 
     public SocketTransceiver(NetMessageRegister register, Socket socket) {
         this.register = register;
@@ -75,12 +406,212 @@ public class SocketTransceiver {
         this.register = register;
     }
 
+    /**
+     * Limits how fast messages are read by the reader thread. While no token
+     * is available the socket is not read, so the remote side is slowed down
+     * by TCP flow control.
+     *
+     * @param inboundRateLimiter the limiter, or null to read as fast as
+     * possible.
+     */
+    public void setInboundRateLimiter(TokenBucket inboundRateLimiter) {
+        this.inboundRateLimiter = inboundRateLimiter;
+    }
+
+    /**
+     * Sets the policy deciding whether a received message is added to
+     * received messages or dropped.
+     *
+     * @param inboundAdmissionPolicy the policy, or null to admit every
+     * message.
+     */
+    public void setInboundAdmissionPolicy(InboundAdmissionPolicy inboundAdmissionPolicy) {
+        this.inboundAdmissionPolicy = inboundAdmissionPolicy;
+    }
+
+    public boolean isDeltaEncodingEnabled() {
+        return deltaEncodingEnabled;
+    }
+
+    /**
+     * Enables or disables delta encoding of sent messages. When enabled, a
+     * message is sent as XOR against the previous message of the same uid,
+     * which compresses very well if most of its fields did not change. Any
+     * {@link SocketTransceiver} is able to receive delta encoded messages, so
+     * it is enough to enable it on the sending side.
+     *
+     * @param deltaEncodingEnabled true to send delta encoded messages.
+     */
+    public void setDeltaEncodingEnabled(boolean deltaEncodingEnabled) {
+        this.deltaEncodingEnabled = deltaEncodingEnabled;
+        outgoingBaselines.clear();
+    }
+
+    public int getDeltaKeyframeInterval() {
+        return deltaKeyframeInterval;
+    }
+
+    /**
+     * Changes how many delta encoded messages of the same uid are sent in a
+     * row, before a full message(keyframe) is sent again.
+     *
+     * @param deltaKeyframeInterval the keyframe interval, must be positive.
+     */
+    public void setDeltaKeyframeInterval(int deltaKeyframeInterval) {
+        if (deltaKeyframeInterval <= 0) {
+            throw new IllegalArgumentException("deltaKeyframeInterval <= 0");
+        }
+        this.deltaKeyframeInterval = deltaKeyframeInterval;
+    }
+
+    public int getMaxBatchSizeBytes() {
+        return maxBatchSizeBytes;
+    }
+
+    public long getMaxBatchDelayInMicroseconds() {
+        return maxBatchDelayInMicroseconds;
+    }
+
+    /**
+     * Enables or disables batching of sent messages. When enabled, waiting
+     * messages are written as batch frames, each compressed as one unit, so a
+     * burst of messages shares a single frame header and compression can use
+     * redundancy between them. A batch is written when it reaches specified
+     * size, or specified time after its first message has been added. Any
+     * {@link SocketTransceiver} is able to receive batch frames, so it is
+     * enough to enable it on the sending side.
+     *
+     * @param maxBatchSizeBytes the uncompressed size of a batch which is
+     * written immediately, or 0 to disable batching.
+     * @param maxBatchDelayInMicroseconds how long a batch may wait for more
+     * messages, 0 to batch only messages already waiting at the time of
+     * sending.
+     */
+    public void setBatching(int maxBatchSizeBytes, long maxBatchDelayInMicroseconds) {
+        if (maxBatchSizeBytes < 0 || maxBatchDelayInMicroseconds < 0) {
+            throw new IllegalArgumentException("maxBatchSizeBytes < 0 || maxBatchDelayInMicroseconds < 0");
+        }
+        if (maxBatchSizeBytes > MAX_FRAME_LENGTH_BYTES / 2) {
+            //a batch grows past the size by one message before it is written, and must fit in a frame of the receiver
+            throw new IllegalArgumentException("maxBatchSizeBytes > " + MAX_FRAME_LENGTH_BYTES / 2);
+        }
+        writeLock.lock();
+        try {
+            if (batch != null && batch.count() > 0) {
+                //messages of the previous batch must not be reordered with the following ones
+                writeBatch();
+                outputStream().flush();
+            }
+        } catch (Exception ex) {
+            onWriteError(ex);
+        } finally {
+            this.maxBatchSizeBytes = maxBatchSizeBytes;
+            this.maxBatchDelayInMicroseconds = maxBatchDelayInMicroseconds;
+            batch = maxBatchSizeBytes > 0 ? new BatchFrameBuilder() : null;
+            releaseWriteLock();
+        }
+    }
+
+    /**
+     * Makes frames received by connections started afterwards decoded by
+     * given pool instead of the reader thread of this transceiver, which then
+     * only reads raw frames from the socket.
+     *
+     * @param decodePool the pool, or null to decode on the reader thread.
+     */
+    public void setDecodePool(DecodePool decodePool) {
+        this.decodePool = decodePool;
+    }
+
+    /**
+     * Records raw frames sent and received by this transceiver.
+     *
+     * @param trafficCapture the capture, or null to stop recording.
+     * @param connectionId the id identifying this connection in the capture.
+     */
+    public void setTrafficCapture(TrafficCapture trafficCapture, long connectionId) {
+        this.trafficCaptureConnectionId = connectionId;
+        this.trafficCapture = trafficCapture;
+    }
+
+    /**
+     * Sets the handler of messages forwarded to this transceiver by
+     * {@link SocketTransceiver#forward(long, java.util.Collection)} of the
+     * remote side. Forwarded messages are not added to received messages.
+     *
+     * @param forwardedMessageHandler the handler, or null to drop forwarded
+     * messages.
+     */
+    public void setForwardedMessageHandler(ForwardedMessageHandler forwardedMessageHandler) {
+        this.forwardedMessageHandler = forwardedMessageHandler;
+    }
+
+    /**
+     * Sets the secret shared by nodes of a cluster. An accepted connection
+     * disconnects a remote side forwarding messages before proving it knows
+     * the secret, a connecting side proves it by
+     * {@link #proveForwardingSecret()}.
+     *
+     * @param forwardingSecret the secret, or null to accept forwarded
+     * messages from anyone.
+     */
+    public void setForwardingSecret(byte[] forwardingSecret) {
+        this.forwardingSecret = forwardingSecret != null ? forwardingSecret.clone() : null;
+    }
+
+    /**
+     * Proves the remote side that this side knows the forwarding secret, by
+     * sending the MAC of the session token announced by the server, so a
+     * recorded proof is worthless on any other connection. Waits for the
+     * session announcement.
+     *
+     * @return true if the proof has been written.
+     */
+    boolean proveForwardingSecret() {
+        final byte[] secret = forwardingSecret;
+        if (secret == null) {
+            return false;
+        }
+        if (!awaitSession(SESSION_TIMEOUT_IN_MILLISECONDS)) {
+            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]No session announced by the server, can not prove the forwarding secret.");
+            return false;
+        }
+        return writeControlFrame(CONTROL_FRAME_FORWARDING_PROOF, forwardingProof(secret, sessionToken));
+    }
+
+    private static byte[] forwardingProof(byte[] secret, long token) {
+        try {
+            final Mac mac = Mac.getInstance(FORWARDING_PROOF_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, FORWARDING_PROOF_ALGORITHM));
+            final byte[] signed = new byte[8];
+            PrimitiveToByteConversionUtils.convertLongToByteArray(token, signed, 0);
+            return mac.doFinal(signed);
+        } catch (GeneralSecurityException ex) {
+            //every JRE supports HmacSHA256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Sets the handler of topic subscriptions requested by the remote side.
+     *
+     * @param subscriptionHandler the handler, or null to ignore
+     * subscriptions.
+     */
+    public void setSubscriptionHandler(SubscriptionHandler subscriptionHandler) {
+        this.subscriptionHandler = subscriptionHandler;
+    }
+
     /**
      * Tries to stop the connection gracefully by closing the socket
      * encapsulated by this {@link SocketTransceiver} object and any
      * interrupting any of the worker threads.
      */
     public void disconnect() {
+        final SslEngineStreams tls = tlsStreams;
+        if (tls != null) {
+            tls.close();
+        }
         if (socket != null) {
             if (!socket.isClosed()) {
                 try {
@@ -91,11 +622,58 @@ public class SocketTransceiver {
             }
             socket = null;
         }
+        pollChannel = null;
+        final SharedMemoryChannel offered = offeredSharedMemory;
+        if (offered != null) {
+            offered.close();
+            offered.deleteFile();
+            offeredSharedMemory = null;
+        }
+        final SharedMemoryChannel shared = sharedMemory;
+        if (shared != null) {
+            shared.close();
+            sharedMemory = null;
+            sharedMemoryInput = null;
+            sharedMemoryOutput = null;
+        }
 
         if (readerThread != null) {
             readerThread.interrupt();
             readerThread = null;
         }
+        if (tls != null) {
+            tls.releaseBuffers();
+            tlsStreams = null;
+        }
+    }
+
+    /**
+     * Enables TLS on connections established afterwards, by
+     * {@link SocketTransceiver#tryConnect(java.lang.String, int)} or by the
+     * {@link Server} accepting the socket of this {@link SocketTransceiver}.
+     *
+     * @param tlsConfiguration the configuration, or null to disable TLS.
+     */
+    public void setTlsConfiguration(TlsConfiguration tlsConfiguration) {
+        this.tlsConfiguration = tlsConfiguration;
+    }
+
+    /**
+     *
+     * @return true if this connection is encrypted.
+     */
+    public boolean isTlsEnabled() {
+        return tlsStreams != null;
+    }
+
+    /**
+     *
+     * @return the TLS session of this connection, or null if it is not
+     * encrypted.
+     */
+    public SSLSession getTlsSession() {
+        final SslEngineStreams tls = tlsStreams;
+        return tls != null ? tls.getSession() : null;
     }
 
     /**
@@ -111,6 +689,47 @@ public class SocketTransceiver {
         return justReceivedMessages;
     }
 
+    /**
+     * Blocks until the server announces the session of this connection, which
+     * is needed to attach a {@link DatagramSession} to it.
+     *
+     * @param timeoutInMilliseconds how long to wait.
+     * @return true if the session has been announced.
+     */
+    public boolean awaitSession(long timeoutInMilliseconds) {
+        try {
+            return sessionLatch.await(timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @return the session token announced by the server.
+     */
+    public long getSessionToken() {
+        return sessionToken;
+    }
+
+    /*
+     * The secret announced by the server along with the token, proving
+     * datagram handshakes come from this client.
+     */
+    byte[] getSessionSecret() {
+        return sessionSecret;
+    }
+
+    /**
+     *
+     * @return the datagram port announced by the server, -1 if the server has
+     * no datagram transport.
+     */
+    public int getDatagramPort() {
+        return datagramPort;
+    }
+
     /**
      * A {@link SocketTransceiver} is dead if an IO error occured during
      * communication via socket encapsulated by this {@link SocketTransceiver}
@@ -138,143 +757,1418 @@ public class SocketTransceiver {
      * message read.
      */
     public AbstractNetMessage read() throws IOException, InstantiationException, Exception {
-        receiveBuffer.clear();
-        InputStream in = socket.getInputStream();
-        socket.setSoTimeout(0);//keep waiting until some data comes
-        int messageId;
-        {//step 1. read message id
-            byte[] _int4Bytes = new byte[4];
-            in.read(_int4Bytes);
-            messageId = PrimitiveToByteConversionUtils.convertByteArrayToInt(_int4Bytes);
-            socket.setSoTimeout(2000);//data transmit may stop halfway, so we keep a timeout of 2 seconds for that convenience
-        }
-        AbstractNetMessage m = null;
-
-        if (messageId == -1 || messageId == 0) {
-            return null;
-        }
-        //step 2. create instance of that message type
-        final Class<? extends AbstractNetMessage> get = register.get(messageId);
-        if (get == null) {
-            throw new Exception("Received non existing message type:" + messageId);
+        AbstractNetMessage m = pendingReadMessages.poll();
+        if (m != null) {
+            //the rest of a previously received batch frame
+            return m;
         }
-        m = get.newInstance();
-
-        //step 3. receive the length of bytes to receive for that message
-        int howManyBytesToReceive;
-        {
-            byte[] _int4Bytes = new byte[4];
-            for (int i = 0; i < 4; i++) {
-                int x = in.read();
-                _int4Bytes[i] = (byte) x;
+        while (m == null) {
+            //the stream changes once the connection is moved to shared memory
+            final InboundFrame frame = readFrame(inputStream());
+            if (frame == null) {
+                return null;
             }
-            howManyBytesToReceive = PrimitiveToByteConversionUtils.convertByteArrayToInt(_int4Bytes);
-        }
-        //sanity check
-        if (howManyBytesToReceive <= 0) {
-            throw new Exception("howManyBytesToReceive <= 0, " + socket);
+            inflateFrame(frame);
+            //control frames may carry zero or more messages
+            publishFrame(frame, pendingReadMessages);
+            m = pendingReadMessages.poll();
         }
+        return m;
+    }
 
-        //step 4. receive the exact amount of bytes needed for that message
-        int totalCountReceived = 0;
-        do {
-            byte[] exactExpectedSizeBa = new byte[howManyBytesToReceive - totalCountReceived];
-            int howManyReadenThisStep = in.read(exactExpectedSizeBa);
-            if (howManyReadenThisStep > 0) {
-                receiveBuffer.put(exactExpectedSizeBa, 0, howManyReadenThisStep);
-                totalCountReceived += howManyReadenThisStep;
-            } else {
-                throw new Exception("hit the EOF, totalCount of readen bytes so far=, " + totalCountReceived);
-            }
-            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.FINEST, "totalBytesCountReceived/howManyReceiveWasDeclared=" + totalCountReceived + "/" + howManyBytesToReceive + " howManyBytesReadenThisStep:" + howManyReadenThisStep);
-        } while (totalCountReceived < howManyBytesToReceive);
-        if (totalCountReceived != howManyBytesToReceive) {
-            throw new Exception("broken packet:totalCount != howManyBytesToReceive");
-        }
-        receiveBuffer.position(0);
+    /*
+     * Takes a token of the inbound rate limiter without waiting, for messages
+     * not read by the reader thread.
+     */
+    boolean tryAcquireInbound() {
+        final TokenBucket limiter = inboundRateLimiter;
+        return limiter == null || limiter.tryAcquire();
+    }
 
-        //copy received data from receiveBuffer
-        byte[] receivedBytes = new byte[totalCountReceived];
-        for (int i = 0; i < totalCountReceived; i++) {
-            receivedBytes[i] = receiveBuffer.get();
+    /*
+     * Adds a received message to received messages, unless the admission
+     * policy drops it. Called by the reader thread, and by the reader thread
+     * of a datagram session of the same client.
+     */
+    void admitReceived(AbstractNetMessage msg) {
+        final InboundAdmissionPolicy policy = inboundAdmissionPolicy;
+        if (policy != null && !policy.admit(msg)) {
+            return;
+        }
+        final NetMessageRegister.ConflationKeyExtractor<AbstractNetMessage> conflation = msg.receivedUid != 0 ? register.getConflation(msg.receivedUid) : null;
+        if (conflation == null) {
+            justReceivedMessages.add(msg);
+        } else if (justReceivedMessages.addConflating(msg, new OutboundScheduler.ConflationKey(msg.receivedUid, conflation.keyOf(msg)))) {
+            conflatedReceivedCount.incrementAndGet();
         }
-        //decompress received data bytes
-        receivedBytes = CompressionUtils.decompressByteArray(receivedBytes);
-        //recreate message from received bytes
-        m.fromBytes(receivedBytes);
-        return m;
     }
 
+    /**
+     *
+     * @return how many received messages have been replaced by newer ones
+     * before being consumed.
+     */
+    public long getConflatedReceivedCount() {
+        return conflatedReceivedCount.get();
+    }
 
-    public synchronized boolean send(Collection<AbstractNetMessage> toSend) {
-        for (AbstractNetMessage msg : toSend) {
-            try {
-                write(msg);
-            } catch (Exception ex) {
-                Logger.getLogger(SocketTransceiver.class.getName()).log(Level.SEVERE, null, ex);
-                return false;
+    private void submitFrame(DecodePool pool, final InboundFrame frame) throws InterruptedException {
+        decodeWindow.acquire();
+        decodingFrames.add(frame);
+        final Runnable decodeTask = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    inflateFrame(frame);
+                } catch (Exception ex) {
+                    frame.failure = ex;
+                }
+                frame.decoded = true;
+                publishDecodedFrames();
             }
+        };
+        try {
+            pool.execute(decodeTask);
+        } catch (RuntimeException ex) {
+            decodingFrames.remove(frame);
+            decodeWindow.release();
+            frame.payload.release();
+            throw ex;
         }
-        return true;
     }
 
-    public synchronized boolean send(AbstractNetMessage... stringMessage) {
-        for (AbstractNetMessage msg : stringMessage) {
+    /*
+     * Publishes decoded frames from the head of decodingFrames. A frame decoded
+     * before its predecessors is left to the thread decoding the last of them.
+     */
+    private void publishDecodedFrames() {
+        InboundFrame head;
+        final ArrayList<AbstractNetMessage> published = new ArrayList<>();
+        while ((head = decodingFrames.peek()) != null && head.decoded && publishLock.tryLock()) {
             try {
-                write(msg);
-            } catch (Exception ex) {
-                Logger.getLogger(SocketTransceiver.class.getName()).log(Level.SEVERE, null, ex);
-                return false;
+                while ((head = decodingFrames.peek()) != null && head.decoded) {
+                    decodingFrames.poll();
+                    if (!decodeFailed) {
+                        try {
+                            if (head.failure != null) {
+                                throw head.failure;
+                            }
+                            publishFrame(head, published);
+                        } catch (Exception ex) {
+                            onDecodeError(ex);
+                        }
+                        for (AbstractNetMessage msg : published) {
+                            admitReceived(msg);
+                        }
+                        published.clear();
+                    }
+                    //released once its messages are received, so awaitDecoded() sees them
+                    decodeWindow.release();
+                }
+            } finally {
+                publishLock.unlock();
             }
+            //frames decoded after the last check, but before unlock, must not be left behind
         }
-        return true;
     }
 
-    /**
-     * Tries to connect to specifed host.
-     *
-     * @param host the host ip adress
-     * @param port the host port number
-     * @return true if successfully conected
+    /*
+     * Waits until every frame handed to the DecodePool has been decoded and
+     * its messages added to received messages. Returns false if decoding any
+     * frame failed.
      */
-    public boolean tryConnect(String host, int port) {
-        if (socket == null) {
-            socket = new Socket();
-        }
+    boolean awaitDecoded() throws InterruptedException {
+        decodeWindow.acquire(MAX_FRAMES_IN_DECODE);
+        decodeWindow.release(MAX_FRAMES_IN_DECODE);
+        return !decodeFailed;
+    }
 
+    private void onDecodeError(Exception ex) {
+        Logger.getLogger(SocketTransceiver.class.getName()).log(Level.INFO, "[TRANSCEIVER]Decoding a received frame failed, closing the connection.", ex);
+        decodeFailed = true;
+        final Socket s = socket;
         try {
-            socket.connect(new InetSocketAddress(host, port));
-            run();
-            return true;
-        } catch (IOException ex) {
-            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.SEVERE, null, ex);
-            return false;
+            if (s != null && !s.isClosed()) {
+                s.close();
+            }
+        } catch (IOException ex2) {
+            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.SEVERE, null, ex2);
         }
     }
 
-    private void write(AbstractNetMessage message) throws IOException, Exception {
-        //Reset write buffer
-        for (int i = 0; i < writeBuffer.length; i++) {
-            writeBuffer[i] = 0;
+    /*
+     * Reads the next frame without decoding it, returns null at the end of
+     * stream.
+     */
+    private InboundFrame readFrame(InputStream in) throws Exception {
+        //step 1. read message id
+        final int messageId = readMessageId(in);
+        if (messageId == 0) {
+            return null;
         }
-        //Convert message into bytes
-        message.intoBytes(writeBuffer);
-        OutputStream out = socket.getOutputStream();
-        //Compress message bytes previously written to writeBuffer
-        final byte[] dataCompressed = CompressionUtils.compressByteArray(writeBuffer);
-        //In following steps,write data to the 'out' OutputStream:
-        //step 1. write message uid
-        final int messageId = register.get(message.getClass());
-        final byte[] ba = PrimitiveToByteConversionUtils.convertIntToByteArray(messageId);
-        out.write(ba);
-        //step 2. write data(byte array) length
-        out.write(PrimitiveToByteConversionUtils.convertIntToByteArray(dataCompressed.length));
-        //step 3. write data byte array
-        out.write(dataCompressed);
-    }
+        final boolean controlFrame = messageId == CONTROL_FRAME_UID;
+        //step 2. check if that message type exists
+        if (!controlFrame && register.get(messageId) == null) {
+            throw new Exception("Received non existing message type:" + messageId);
+        }
+
+        //step 3. receive the length of bytes to receive for that message
+        readFully(in, readHeaderBytes, 0, 4);
+        final int howManyBytesToReceive = PrimitiveToByteConversionUtils.convertByteArrayToInt(readHeaderBytes);
+        checkFrameLength(controlFrame, howManyBytesToReceive);
+
+        //step 4. receive the exact amount of bytes needed for that message, released once inflated
+        //a heap buffer, since streams read into byte arrays only, a direct buffer would add a copy
+        final PooledBuffer payload = PooledBufferAllocator.sharedHeap().allocate(howManyBytesToReceive);
+        try {
+            readFully(in, payload.array(), 0, howManyBytesToReceive);
+        } catch (Exception ex) {
+            payload.release();
+            throw ex;
+        }
+        final TrafficCapture capture = trafficCapture;
+        if (capture != null) {
+            capture.record(trafficCaptureConnectionId, TrafficCapture.DIRECTION_INBOUND, messageId, payload.array(), 0, howManyBytesToReceive);
+        }
+        final InboundFrame frame = new InboundFrame(messageId, payload, howManyBytesToReceive);
+        if (frame.controlType >= CONTROL_FRAME_SHARED_MEMORY_OFFER && frame.controlType <= CONTROL_FRAME_SHARED_MEMORY_REJECT) {
+            try {
+                onSharedMemoryFrame(frame.controlType, new String(payload.array(), 1, howManyBytesToReceive - 1, StandardCharsets.UTF_8));
+            } finally {
+                payload.release();
+            }
+            //handled before reading any further, following frames may come from shared memory
+            return readFrame(inputStream());
+        }
+        return frame;
+    }
+
+    private void checkFrameLength(boolean controlFrame, int length) throws IOException {
+        //sanity check, control frames carry at least their type
+        if (length <= 0) {
+            throw new IOException("howManyBytesToReceive <= 0, " + socket);
+        }
+        if (length > (controlFrame ? MAX_FRAME_LENGTH_BYTES : MAX_MESSAGE_FRAME_LENGTH_BYTES)) {
+            throw new IOException("Frame too large, length:" + length + " " + socket);
+        }
+    }
+
+    /*
+     * Decodes a frame as if it had been read from the socket, used by
+     * TrafficReplayer on transceivers without a reader thread.
+     */
+    void replayFrame(int frameId, byte[] bytes, int length) throws Exception {
+        if (frameId != CONTROL_FRAME_UID && register.get(frameId) == null) {
+            throw new Exception("Received non existing message type:" + frameId);
+        }
+        checkFrameLength(frameId == CONTROL_FRAME_UID, length);
+        final PooledBuffer payload = PooledBufferAllocator.sharedHeap().allocate(length);
+        System.arraycopy(bytes, 0, payload.array(), 0, length);
+        final InboundFrame frame = new InboundFrame(frameId, payload, length);
+        final DecodePool pool = decodePool;
+        if (pool != null) {
+            submitFrame(pool, frame);
+            return;
+        }
+        inflateFrame(frame);
+        publishFrame(frame, pendingReadMessages);
+        AbstractNetMessage msg;
+        while ((msg = pendingReadMessages.poll()) != null) {
+            admitReceived(msg);
+        }
+    }
+
+    /*
+     * Returns 0, which is never a uid, at the end of stream.
+     */
+    private int readMessageId(InputStream in) throws Exception {
+        final boolean tcp = in != sharedMemoryInput;
+        if (tcp) {
+            socket.setSoTimeout(0);//keep waiting until some data comes
+        }
+        final int count = in.read(readHeaderBytes, 0, 4);
+        if (count < 0) {
+            return 0;
+        }
+        if (tcp) {
+            socket.setSoTimeout(2000);//data transmit may stop halfway, so we keep a timeout of 2 seconds for that convenience
+        }
+        readFully(in, readHeaderBytes, count, 4 - count);
+        return PrimitiveToByteConversionUtils.convertByteArrayToInt(readHeaderBytes);
+    }
+
+    private static void readFully(InputStream in, byte[] bytes, int offset, int length) throws Exception {
+        int totalCountReceived = 0;
+        while (totalCountReceived < length) {
+            int howManyReadenThisStep = in.read(bytes, offset + totalCountReceived, length - totalCountReceived);
+            if (howManyReadenThisStep < 0) {
+                throw new Exception("hit the EOF, totalCount of readen bytes so far=, " + totalCountReceived);
+            }
+            totalCountReceived += howManyReadenThisStep;
+        }
+    }
+
+    /*
+     * Decompresses the frame and recreates its message, unless it depends on
+     * previous frames. Touches no state of this transceiver, so frames may be
+     * inflated on any thread and in any order.
+     */
+    private void inflateFrame(InboundFrame frame) throws Exception {
+        final byte[] payload = frame.payload.array();
+        try {
+            //control frames start with their type
+            if (frame.controlType == CONTROL_FRAME_DELTA || frame.controlType == CONTROL_FRAME_FORWARD) {
+                frame.wrappedMessageId = PrimitiveToByteConversionUtils.convertByteArrayToInt(payload, 1);
+                //a forwarded message is preceded by its key
+                frame.inflated = CompressionUtils.decompressByteArray(payload, 5, frame.length - 5, 8 + PACKET_SIZE_BYTES);
+            } else if (frame.controlType == CONTROL_FRAME_BATCH) {
+                frame.inflated = CompressionUtils.decompressByteArray(payload, 1, frame.length - 1, MAX_FRAME_LENGTH_BYTES);
+            } else if (frame.uid == CONTROL_FRAME_UID) {
+                frame.inflated = Arrays.copyOfRange(payload, 1, frame.length);
+            } else {
+                frame.inflated = CompressionUtils.decompressByteArray(payload, 0, frame.length, PACKET_SIZE_BYTES);
+                final AbstractNetMessage m = register.get(frame.uid).newInstance();
+                m.receivedUid = frame.uid;
+                m.fromBytes(frame.inflated);
+                frame.message = m;
+            }
+        } finally {
+            frame.payload.release();
+        }
+    }
+
+    /*
+     * Applies an inflated frame to this transceiver and adds messages it
+     * carries to given collection. Frames must be published in the order they
+     * have been received.
+     */
+    private void publishFrame(InboundFrame frame, Collection<AbstractNetMessage> published) throws Exception {
+        if (frame.message != null) {
+            //keep received bytes as baseline for following delta encoded messages
+            incomingBaselines.put(frame.uid, frame.inflated);
+            published.add(frame.message);
+        } else if (frame.controlType == CONTROL_FRAME_DELTA) {
+            final AbstractNetMessage m = decode(frame.wrappedMessageId, frame.inflated, true);
+            if (m != null) {
+                published.add(m);
+            }
+        } else if (frame.controlType == CONTROL_FRAME_FORWARD) {
+            onForwarded(frame.wrappedMessageId, frame.inflated);
+        } else if (frame.controlType == CONTROL_FRAME_BATCH) {
+            publishBatchEntries(frame.inflated, published);
+        } else {
+            onControlFrame(frame.controlType, frame.inflated);
+        }
+    }
+
+    private void publishBatchEntries(byte[] bytes, Collection<AbstractNetMessage> published) throws Exception {
+        final int count = PrimitiveToByteConversionUtils.convertByteArrayToInt(bytes, 0);
+        int dataOffset = 4 + count * BatchFrameBuilder.INDEX_ENTRY_SIZE_BYTES;
+        if (count < 0 || dataOffset > bytes.length) {
+            throw new Exception("broken batch frame, entry count:" + count + " payload length:" + bytes.length);
+        }
+        for (int i = 0; i < count; i++) {
+            final int indexOffset = 4 + i * BatchFrameBuilder.INDEX_ENTRY_SIZE_BYTES;
+            final int messageId = PrimitiveToByteConversionUtils.convertByteArrayToInt(bytes, indexOffset);
+            final byte flags = bytes[indexOffset + 4];
+            final int length = PrimitiveToByteConversionUtils.convertByteArrayToInt(bytes, indexOffset + 5);
+            if (length < 0 || dataOffset + length > bytes.length) {
+                throw new Exception("broken batch frame, entry length:" + length + " at:" + dataOffset);
+            }
+            if ((flags & BatchFrameBuilder.FLAG_FORWARDED) != 0) {
+                onForwarded(messageId, Arrays.copyOfRange(bytes, dataOffset, dataOffset + length));
+                dataOffset += length;
+                continue;
+            }
+            final AbstractNetMessage m = decode(messageId, Arrays.copyOfRange(bytes, dataOffset, dataOffset + length), (flags & BatchFrameBuilder.FLAG_DELTA) != 0);
+            if (m != null) {
+                published.add(m);
+            }
+            dataOffset += length;
+        }
+    }
+
+    /*
+     * Recreates message from its decompressed bytes, which are XOR against the
+     * baseline of the uid if delta is true. Returns null if there is no such
+     * baseline.
+     */
+    private AbstractNetMessage decode(int messageId, byte[] bytes, boolean delta) throws Exception {
+        final Class<? extends AbstractNetMessage> get = register.get(messageId);
+        if (get == null) {
+            throw new Exception("Received non existing message type:" + messageId);
+        }
+        if (delta) {
+            final byte[] baseline = incomingBaselines.get(messageId);
+            if (baseline == null) {
+                //the keyframe has not been received, ask the sender for a new one
+                Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]Received delta without baseline for uid:" + messageId + ", requesting resync.");
+                writeControlFrame(CONTROL_FRAME_RESYNC, PrimitiveToByteConversionUtils.convertIntToByteArray(messageId));
+                return null;
+            }
+            if (bytes.length != baseline.length) {
+                throw new Exception("delta length " + bytes.length + " != baseline length " + baseline.length);
+            }
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] ^= baseline[i];
+            }
+        }
+        //keep received bytes as baseline for following delta encoded messages
+        incomingBaselines.put(messageId, bytes);
+        final AbstractNetMessage m = get.newInstance();
+        m.receivedUid = messageId;
+        m.fromBytes(bytes);
+        return m;
+    }
+
+    /*
+     * Recreates a forwarded message from key(8 bytes) followed by its encoded
+     * bytes and hands it to the handler. Forwarded messages never take part
+     * in delta encoding, so baselines are left untouched.
+     */
+    private void onForwarded(int messageId, byte[] bytes) throws Exception {
+        final Class<? extends AbstractNetMessage> get = register.get(messageId);
+        if (get == null) {
+            throw new Exception("Received non existing message type:" + messageId);
+        }
+        if (bytes.length < 8) {
+            throw new Exception("broken forwarded message, length:" + bytes.length);
+        }
+        if (forwardingSecret != null && !forwardingProven) {
+            throw new Exception("forwarded message of uid:" + messageId + " before the forwarding secret has been proven");
+        }
+        final ForwardedMessageHandler handler = forwardedMessageHandler;
+        if (handler == null) {
+            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]Dropping forwarded message of uid:" + messageId + ", no handler is set.");
+            return;
+        }
+        final AbstractNetMessage m = get.newInstance();
+        m.receivedUid = messageId;
+        m.fromBytes(Arrays.copyOfRange(bytes, 8, bytes.length));
+        handler.onForwardedMessage(PrimitiveToByteConversionUtils.convertByteArrayToLong(bytes, 0), m);
+    }
+
+    private void onControlFrame(int controlType, byte[] payload) {
+        switch (controlType) {
+            case CONTROL_FRAME_RESYNC:
+                outgoingBaselines.remove(PrimitiveToByteConversionUtils.convertByteArrayToInt(payload, 0));
+                break;
+            case CONTROL_FRAME_SUBSCRIBE:
+            case CONTROL_FRAME_UNSUBSCRIBE:
+                final SubscriptionHandler handler = subscriptionHandler;
+                if (handler == null) {
+                    Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]Ignoring subscription, no handler is set.");
+                } else if (controlType == CONTROL_FRAME_SUBSCRIBE) {
+                    handler.onSubscribe(new String(payload, StandardCharsets.UTF_8));
+                } else {
+                    handler.onUnsubscribe(new String(payload, StandardCharsets.UTF_8));
+                }
+                break;
+            case CONTROL_FRAME_SESSION:
+                if (payload.length != 12 + SESSION_SECRET_LENGTH_BYTES) {
+                    Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]Ignoring session frame of length:" + payload.length);
+                    break;
+                }
+                sessionToken = PrimitiveToByteConversionUtils.convertByteArrayToLong(payload, 0);
+                datagramPort = PrimitiveToByteConversionUtils.convertByteArrayToInt(payload, 8);
+                sessionSecret = Arrays.copyOfRange(payload, 12, payload.length);
+                sessionLatch.countDown();
+                break;
+            case CONTROL_FRAME_FORWARDING_PROOF:
+                final byte[] secret = forwardingSecret;
+                if (secret == null) {
+                    break;
+                }
+                //the token of an accepted connection is set before its announcement is written, so before any proof can arrive
+                if (MessageDigest.isEqual(forwardingProof(secret, sessionToken), payload)) {
+                    forwardingProven = true;
+                } else {
+                    Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]Wrong forwarding secret, disconnecting.");
+                    disconnect();
+                }
+                break;
+            default:
+                Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]Ignoring unknown control frame:" + controlType);
+        }
+    }
+
+    /**
+     * Lets the client of this accepted connection move it to shared memory,
+     * if it connected from the same host.
+     *
+     * @param sharedMemoryConfiguration the configuration, or null to keep
+     * the connection on TCP.
+     */
+    public void setSharedMemoryConfiguration(SharedMemoryConfiguration sharedMemoryConfiguration) {
+        this.sharedMemoryConfiguration = sharedMemoryConfiguration;
+    }
+
+    /**
+     *
+     * @return true if frames are both written and read through shared
+     * memory.
+     */
+    public boolean isSharedMemoryEnabled() {
+        return sharedMemoryInput != null && sharedMemoryOutput != null;
+    }
+
+    /**
+     * Offers the server to move this connection to shared memory, if it is
+     * connected to the same host without TLS. Waits for the session announced
+     * by the server, whose token binds the offered file to this connection.
+     * Frames keep going over TCP until the server accepts the offer, so
+     * nothing waits for the answer.
+     *
+     * @param configuration the configuration of the client.
+     * @return true if the offer has been sent.
+     */
+    boolean offerSharedMemory(SharedMemoryConfiguration configuration) {
+        final Socket connected = socket;
+        if (connected == null || !connected.getInetAddress().isLoopbackAddress() || tlsStreams != null || pollChannel != null || !SharedMemoryChannel.isSupported()) {
+            return false;
+        }
+        if (!awaitSession(SESSION_TIMEOUT_IN_MILLISECONDS)) {
+            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]No session announced by the server, staying on TCP.");
+            return false;
+        }
+        final SharedMemoryChannel offered;
+        try {
+            offered = SharedMemoryChannel.create(configuration, sessionToken);
+        } catch (IOException ex) {
+            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]Could not create shared memory, staying on TCP.", ex);
+            return false;
+        }
+        offeredSharedMemory = offered;
+        if (!writeControlFrame(CONTROL_FRAME_SHARED_MEMORY_OFFER, offered.getFile().getAbsolutePath().getBytes(StandardCharsets.UTF_8))) {
+            offeredSharedMemory = null;
+            offered.close();
+            offered.deleteFile();
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * Called by the reader thread right after reading the frame, as frames
+     * following a switch frame are read from shared memory.
+     */
+    private void onSharedMemoryFrame(int controlType, String path) throws Exception {
+        final SharedMemoryChannel offered = offeredSharedMemory;
+        switch (controlType) {
+            case CONTROL_FRAME_SHARED_MEMORY_OFFER:
+                final SharedMemoryConfiguration configuration = sharedMemoryConfiguration;
+                SharedMemoryChannel opened = null;
+                //the token is known only once the session has been announced to the client
+                if (configuration != null && sessionLatch.getCount() == 0 && socket.getInetAddress().isLoopbackAddress() && tlsStreams == null && sharedMemory == null && SharedMemoryChannel.isSupported()) {
+                    try {
+                        opened = SharedMemoryChannel.open(path, configuration, sessionToken);
+                    } catch (IOException ex) {
+                        Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]Rejecting shared memory offered by " + socket, ex);
+                    }
+                }
+                if (opened == null) {
+                    writeControlFrame(CONTROL_FRAME_SHARED_MEMORY_REJECT, new byte[0]);
+                    return;
+                }
+                sharedMemory = opened;
+                switchOutputToSharedMemory(opened);
+                break;
+            case CONTROL_FRAME_SHARED_MEMORY_SWITCH:
+                if (offered != null) {
+                    //the server has mapped the file and sends nothing more over TCP
+                    offeredSharedMemory = null;
+                    offered.deleteFile();
+                    sharedMemory = offered;
+                    sharedMemoryInput = offered.getInputStream();
+                    switchOutputToSharedMemory(offered);
+                } else if (sharedMemory != null && sharedMemoryInput == null) {
+                    sharedMemoryInput = sharedMemory.getInputStream();
+                } else {
+                    throw new Exception("[TRANSCEIVER]Unexpected shared memory switch from " + socket);
+                }
+                watchSocket();
+                Logger.getLogger(SocketTransceiver.class.getName()).log(Level.INFO, "[TRANSCEIVER]Connection moved to shared memory:" + socket);
+                break;
+            default:
+                Logger.getLogger(SocketTransceiver.class.getName()).log(Level.INFO, "[TRANSCEIVER]Shared memory rejected by the server, staying on TCP.");
+                if (offered != null) {
+                    offeredSharedMemory = null;
+                    offered.close();
+                    offered.deleteFile();
+                }
+        }
+    }
+
+    /*
+     * Writes the switch frame as the last frame sent over TCP, frames written
+     * after it go to shared memory.
+     */
+    private void switchOutputToSharedMemory(SharedMemoryChannel channel) throws IOException {
+        writeLock.lock();
+        try {
+            if (!writeControlFrame(CONTROL_FRAME_SHARED_MEMORY_SWITCH, new byte[0])) {
+                throw new IOException("[TRANSCEIVER]Could not write shared memory switch.");
+            }
+            sharedMemoryOutput = channel.getOutputStream();
+        } finally {
+            releaseWriteLock();
+        }
+    }
+
+    /*
+     * Nothing is read from the socket once both directions use shared
+     * memory, so a thread waits for it to be closed, by the peer exiting or
+     * disconnecting, and closes the channel to wake up the reader and
+     * writers.
+     */
+    private void watchSocket() throws IOException {
+        final Socket watched = socket;
+        final SharedMemoryChannel channel = sharedMemory;
+        watched.setSoTimeout(0);
+        final Thread watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final InputStream in = watched.getInputStream();
+                    while (in.read() >= 0) {
+                        //nothing is sent over TCP anymore
+                    }
+                } catch (IOException ex) {
+                    Logger.getLogger(SocketTransceiver.class.getName()).log(Level.FINE, "[TRANSCEIVER]Socket of shared memory connection closed.", ex);
+                }
+                channel.close();
+            }
+        }, "shared-memory-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Announces the session of this accepted connection to the client, which
+     * needs its token to attach datagram transport or shared memory.
+     *
+     * @param token the session token.
+     * @param secret the secret proving datagram handshakes come from the
+     * client.
+     * @param datagramPort the datagram port of the server, or -1.
+     * @return true if the announcement has been written, or is written once
+     * the TLS handshake completes.
+     */
+    boolean announceSession(long token, byte[] secret, int datagramPort) {
+        sessionToken = token;
+        sessionSecret = secret;
+        this.datagramPort = datagramPort;
+        sessionLatch.countDown();
+        final byte[] session = new byte[12 + SESSION_SECRET_LENGTH_BYTES];
+        PrimitiveToByteConversionUtils.convertLongToByteArray(token, session, 0);
+        PrimitiveToByteConversionUtils.convertIntToByteArray(datagramPort, session, 8);
+        System.arraycopy(secret, 0, session, 12, SESSION_SECRET_LENGTH_BYTES);
+        sessionAnnouncement = session;
+        if (tlsHandshakePending) {
+            //written by the reader thread after the handshake, the caller must not wait for a client which never shakes hands
+            return true;
+        }
+        return writeSessionAnnouncement();
+    }
+
+    /*
+     * Writes the session announcement once, called by announceSession() and
+     * by the reader thread after the TLS handshake. Each checks the other's
+     * flag after setting its own, so at least one of them writes it.
+     */
+    private boolean writeSessionAnnouncement() {
+        final byte[] session = sessionAnnouncement;
+        if (session == null || !sessionAnnouncementWritten.compareAndSet(false, true)) {
+            return true;
+        }
+        return writeControlFrame(CONTROL_FRAME_SESSION, session);
+    }
+
+    /**
+     * Writes a control frame, which is consumed by the reading
+     * {@link SocketTransceiver} itself instead of being added to its received
+     * messages.
+     *
+     * @param controlType the type of the control frame.
+     * @param payload the raw payload of the frame.
+     * @return true if the frame has been written.
+     */
+    boolean writeControlFrame(int controlType, byte[] payload) {
+        writeLock.lock();
+        final PooledBuffer frame = PooledBufferAllocator.sharedHeap().allocate(CONTROL_FRAME_HEADER_LENGTH_BYTES + payload.length);
+        try {
+            final byte[] array = frame.array();
+            PrimitiveToByteConversionUtils.convertIntToByteArray(CONTROL_FRAME_UID, array, 0);
+            PrimitiveToByteConversionUtils.convertIntToByteArray(1 + payload.length, array, 4);
+            array[8] = (byte) controlType;
+            System.arraycopy(payload, 0, array, CONTROL_FRAME_HEADER_LENGTH_BYTES, payload.length);
+            OutputStream out = outputStream();
+            out.write(array, 0, CONTROL_FRAME_HEADER_LENGTH_BYTES + payload.length);
+            out.flush();
+            captureOutbound(CONTROL_FRAME_UID, array, 1 + payload.length);
+            return true;
+        } catch (Exception ex) {
+            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.SEVERE, null, ex);
+            return false;
+        } finally {
+            frame.release();
+            releaseWriteLock();
+        }
+    }
+
+    /**
+     * Sends given messages using lanes of their types, as set by
+     * {@link NetMessageRegister#setPriority(java.lang.Class, core.MessagePriority)}.
+     *
+     * @param toSend messages to send.
+     * @return true if the messages have been queued, false if a write error
+     * occurred on the calling thread.
+     * @see SocketTransceiver#send(core.MessagePriority, java.util.Collection)
+     */
+    public boolean send(Collection<AbstractNetMessage> toSend) {
+        return send(null, toSend);
+    }
+
+    public boolean send(AbstractNetMessage... stringMessage) {
+        return send(null, Arrays.asList(stringMessage));
+    }
+
+    /**
+     * Appends given messages to the lane of specified priority and blocks
+     * until they have been written. The thread holding the write lock writes
+     * waiting messages in the order chosen by the {@link OutboundScheduler},
+     * including messages of other threads, but only until its own messages
+     * have been written, so it is never kept writing for threads sending
+     * faster than the connection drains.
+     *
+     * @param priority the lane to use, or null to use lanes set for message
+     * types in {@link NetMessageRegister}.
+     * @param toSend messages to send.
+     * @return true if the messages have been written, or replaced by newer
+     * conflating messages, false if a write error occurred, in which case all
+     * waiting messages are dropped.
+     */
+    public boolean send(MessagePriority priority, Collection<AbstractNetMessage> toSend) {
+        final long writeErrorsBefore = writeErrorsCount.get();
+        final ArrayList<OutboundScheduler.Entry> own = new ArrayList<>(toSend.size());
+        for (AbstractNetMessage msg : toSend) {
+            own.add(enqueue(msg, priority));
+        }
+        writeLock.lock();
+        try {
+            int writtenOwn = 0;
+            boolean written = false;
+            while (true) {
+                //skip own messages already written, by this thread or by the previous holder of the lock
+                while (writtenOwn < own.size() && own.get(writtenOwn).isTaken()) {
+                    writtenOwn++;
+                }
+                final AbstractNetMessage msg;
+                if (writtenOwn == own.size() || (msg = outboundScheduler.next()) == null) {
+                    break;
+                }
+                write(msg);
+                written = true;
+            }
+            scheduleBatchFlush();
+            if (written) {
+                outputStream().flush();
+            }
+        } catch (Exception ex) {
+            onWriteError(ex);
+        } finally {
+            releaseWriteLock();
+        }
+        //own messages written by another thread may have been dropped by its write error
+        return writeErrorsCount.get() == writeErrorsBefore;
+    }
+
+    /**
+     * Appends given messages to the lane of specified priority and returns
+     * immediately. Waiting messages are written by a thread shared by all
+     * transceivers, so the caller never blocks on a slow connection, nor
+     * learns about write errors. A connection blocking that thread for longer
+     * than {@link SocketTransceiver#setAsyncWriteTimeout(long)} is
+     * disconnected.
+     *
+     * @param priority the lane to use, or null to use lanes set for message
+     * types in {@link NetMessageRegister}.
+     * @param toSend messages to send.
+     */
+    public void sendAsync(MessagePriority priority, Collection<AbstractNetMessage> toSend) {
+        for (AbstractNetMessage msg : toSend) {
+            enqueue(msg, priority);
+        }
+        scheduleAsyncFlush();
+    }
+
+    /**
+     * Limits how long an async writer may be blocked writing messages sent by
+     * {@link SocketTransceiver#sendAsync(core.MessagePriority, java.util.Collection)},
+     * the connection is disconnected once the limit is exceeded, so that a
+     * slow remote side can not hold the writers shared by all transceivers.
+     *
+     * @param asyncWriteTimeoutInMilliseconds the limit, or 0 to wait forever.
+     */
+    public void setAsyncWriteTimeout(long asyncWriteTimeoutInMilliseconds) {
+        if (asyncWriteTimeoutInMilliseconds < 0) {
+            throw new IllegalArgumentException("asyncWriteTimeoutInMilliseconds < 0");
+        }
+        this.asyncWriteTimeoutInMilliseconds = asyncWriteTimeoutInMilliseconds;
+    }
+
+    /*
+     * Appends a message to its lane, replacing a waiting message it conflates
+     * with, see NetMessageRegister#setConflating.
+     */
+    private OutboundScheduler.Entry enqueue(AbstractNetMessage msg, MessagePriority priority) {
+        final boolean encoded = msg instanceof EncodedMessage;
+        final int uid = encoded ? ((EncodedMessage) msg).uid : register.get(msg.getClass());
+        final MessagePriority lane = priority != null ? priority : register.getPriority(uid);
+        final NetMessageRegister.ConflationKeyExtractor<AbstractNetMessage> conflation = register.getConflation(uid);
+        if (conflation == null) {
+            return outboundScheduler.append(msg, lane);
+        }
+        return outboundScheduler.appendConflating(msg, lane, uid, conflation.keyOf(encoded ? ((EncodedMessage) msg).message : msg));
+    }
+
+    /**
+     * Sends given messages to the remote side on behalf of specified key, so
+     * that they are handed to its {@link ForwardedMessageHandler} instead of
+     * its received messages. Forwarded messages use the lanes of their types
+     * and are batched like other messages if batching is enabled.
+     *
+     * @param key the key passed to the handler of the remote side.
+     * @param toSend messages to forward.
+     * @return true if the messages have been queued, false if a write error
+     * occurred on the calling thread.
+     */
+    public boolean forward(long key, Collection<AbstractNetMessage> toSend) {
+        for (AbstractNetMessage msg : toSend) {
+            outboundScheduler.enqueue(new ForwardedMessage(key, msg), register.getPriority(register.get(msg.getClass())));
+        }
+        return flush();
+    }
+
+    /**
+     *
+     * @return the scheduler holding messages waiting to be written.
+     */
+    public OutboundScheduler getOutboundScheduler() {
+        return outboundScheduler;
+    }
+
+    /**
+     *
+     * @param priority the lane to describe.
+     * @return queue depth and wait times of specified outbound lane.
+     */
+    public OutboundScheduler.LaneStatistics getLaneStatistics(MessagePriority priority) {
+        return outboundScheduler.getStatistics(priority);
+    }
+
+    /*
+     * Writes at most one round of waiting messages, see
+     * OutboundScheduler#getRoundSize, unless another thread is writing, used
+     * by forwarding and the async writers, which never wait for the lock.
+     * Whatever is left is handed to the async writers when the lock is
+     * released.
+     */
+    private boolean flush() {
+        if (!writeLock.tryLock()) {
+            //queued, the thread holding the lock hands them over when it releases the lock
+            return true;
+        }
+        boolean success = true;
+        try {
+            AbstractNetMessage msg;
+            boolean written = false;
+            int budget = outboundScheduler.getRoundSize();
+            while (budget-- > 0 && (msg = outboundScheduler.next()) != null) {
+                write(msg);
+                written = true;
+            }
+            scheduleBatchFlush();
+            if (written) {
+                outputStream().flush();
+            }
+        } catch (Exception ex) {
+            onWriteError(ex);
+            success = false;
+        } finally {
+            releaseWriteLock();
+        }
+        return success;
+    }
+
+    /*
+     * Writes the pending batch at once if batches must not wait, or makes sure
+     * it is written once its delay passes. Called by the write lock holder.
+     */
+    private void scheduleBatchFlush() throws IOException {
+        if (batch != null && batch.count() > 0) {
+            if (maxBatchDelayInMicroseconds == 0) {
+                writeBatch();
+            } else if (pollChannel != null) {
+                //the batch is written by the next poll(), keeping all work on the polling thread
+            } else if (batchFlushScheduled.compareAndSet(false, true)) {
+                //the rest of the batch is written by the flusher, unless it fills up earlier
+                BATCH_FLUSHER.schedule(batchFlushTask, maxBatchDelayInMicroseconds, TimeUnit.MICROSECONDS);
+            }
+        }
+    }
+
+    /*
+     * Unlocks the write lock, handing messages enqueued while it was held to
+     * the async writers, or in poll mode leaving them to the next poll().
+     * Senders failing to take the lock rely on this, so every holder of the
+     * lock must release it here.
+     */
+    private void releaseWriteLock() {
+        writeLock.unlock();
+        if (!writeLock.isHeldByCurrentThread() && pollChannel == null && !outboundScheduler.isEmpty()) {
+            scheduleAsyncFlush();
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor createAsyncWriteTimeouts() {
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "async-write-timeouts");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    private void scheduleAsyncFlush() {
+        if (asyncFlushScheduled.compareAndSet(false, true)) {
+            ASYNC_WRITERS.execute(asyncFlushTask);
+        }
+    }
+
+    private void onWriteError(Exception ex) {
+        writeErrorsCount.incrementAndGet();
+        Logger.getLogger(SocketTransceiver.class.getName()).log(Level.SEVERE, null, ex);
+        int dropped = outboundScheduler.clear();
+        if (batch != null) {
+            dropped += batch.count();
+            batch.clear();
+        }
+        Logger.getLogger(SocketTransceiver.class.getName()).log(Level.WARNING, "[TRANSCEIVER]Dropped " + dropped + " waiting messages after write error.");
+    }
+
+    /**
+     * Tries to connect to specifed host.
+     *
+     * @param host the host ip adress
+     * @param port the host port number
+     * @return true if successfully conected
+     */
+    public boolean tryConnect(String host, int port) {
+        if (socket == null) {
+            socket = new Socket();
+        }
+
+        outgoingBaselines.clear();
+        publishLock.lock();
+        try {
+            incomingBaselines.clear();
+            decodeFailed = false;
+        } finally {
+            publishLock.unlock();
+        }
+        pendingReadMessages.clear();
+        try {
+            socket.connect(new InetSocketAddress(host, port));
+            final TlsConfiguration tls = tlsConfiguration;
+            if (tls != null) {
+                tlsStreams = new SslEngineStreams(socket, tls.createClientEngine(host, port), PooledBufferAllocator.sharedHeap());
+                socket.setSoTimeout(TLS_HANDSHAKE_TIMEOUT_IN_MILLISECONDS);
+                tlsStreams.handshake();
+            }
+            run();
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.SEVERE, null, ex);
+            if (tlsStreams != null) {
+                disconnect();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Connects to specified host in poll mode, without a reader thread.
+     * Received messages are read and decoded, and messages waiting to be
+     * written are flushed, only by {@link SocketTransceiver#poll(int)} on the
+     * thread of the caller. TLS is not supported in poll mode.
+     *
+     * @param host the host ip adress
+     * @param port the host port number
+     * @return true if successfully conected
+     */
+    public boolean tryConnectPolled(String host, int port) {
+        if (tlsConfiguration != null) {
+            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.SEVERE, "[TRANSCEIVER]TLS is not supported in poll mode.");
+            return false;
+        }
+        outgoingBaselines.clear();
+        incomingBaselines.clear();
+        decodeFailed = false;
+        pendingReadMessages.clear();
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.configureBlocking(false);
+            if (pollInbound == null) {
+                pollInbound = ByteBuffer.allocate(POLL_INBOUND_BUFFER_SIZE_BYTES);
+            }
+            pollInbound.clear();
+            pollOutputStream = new NonBlockingChannelOutputStream(channel);
+            pollChannel = channel;
+            socket = channel.socket();
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.SEVERE, null, ex);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ex2) {
+                    Logger.getLogger(SocketTransceiver.class.getName()).log(Level.FINE, null, ex2);
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Does the work of the reader and writer threads of a connection in poll
+     * mode, without blocking: writes waiting messages and batches, reads
+     * whatever bytes are available and decodes complete frames. Frames not
+     * complete yet, or above the limit of messages, are decoded by following
+     * calls. Must be called by a single thread.
+     *
+     * @param maxMessages the maximum number of messages to add to received
+     * messages.
+     * @return the number of messages added to received messages, or -1 if
+     * the connection is closed.
+     */
+    public int poll(int maxMessages) {
+        final SocketChannel channel = pollChannel;
+        if (channel == null || isDead()) {
+            return -1;
+        }
+        int received = 0;
+        try {
+            writeLock.lock();
+            try {
+                //the polling thread is the writer of all messages left by senders
+                AbstractNetMessage msg;
+                while ((msg = outboundScheduler.next()) != null) {
+                    write(msg);
+                }
+                if (batch != null && batch.count() > 0) {
+                    writeBatch();
+                }
+                pollOutputStream.flush();
+            } finally {
+                releaseWriteLock();
+            }
+            received = admitPendingReadMessages(maxMessages);
+            while (received < maxMessages) {
+                if (decodeBufferedFrame()) {
+                    received += admitPendingReadMessages(maxMessages - received);
+                    continue;
+                }
+                //no complete frame is buffered, take whatever the socket has
+                final int read = channel.read(pollInbound);
+                if (read < 0) {
+                    throw new IOException("[TRANSCEIVER]Connection closed by the peer.");
+                }
+                if (read == 0) {
+                    break;
+                }
+            }
+            return received;
+        } catch (Exception ex) {
+            Logger.getLogger(SocketTransceiver.class.getName()).log(Level.INFO, "[TRANSCEIVER]Polling the connection failed, closing it.", ex);
+            disconnect();
+            return received > 0 ? received : -1;
+        }
+    }
+
+    private int admitPendingReadMessages(int maxMessages) {
+        int admitted = 0;
+        AbstractNetMessage msg;
+        while (admitted < maxMessages && (msg = pendingReadMessages.poll()) != null) {
+            admitReceived(msg);
+            admitted++;
+        }
+        return admitted;
+    }
+
+    /*
+     * Decodes the first frame buffered by poll() into pendingReadMessages,
+     * returns false if it is not complete yet.
+     */
+    private boolean decodeBufferedFrame() throws Exception {
+        if (pollInbound.position() < 8) {
+            return false;
+        }
+        final byte[] buffered = pollInbound.array();
+        final int messageId = PrimitiveToByteConversionUtils.convertByteArrayToInt(buffered, 0);
+        final int length = PrimitiveToByteConversionUtils.convertByteArrayToInt(buffered, 4);
+        final boolean controlFrame = messageId == CONTROL_FRAME_UID;
+        if (!controlFrame && register.get(messageId) == null) {
+            throw new Exception("Received non existing message type:" + messageId);
+        }
+        //checked before growing the buffer, so a declared length can not make it any larger
+        checkFrameLength(controlFrame, length);
+        if (pollInbound.position() < 8 + length) {
+            if (pollInbound.capacity() < 8 + length) {
+                //a frame larger than the buffer, read the rest of it into a larger one, at most MAX_FRAME_LENGTH_BYTES
+                final ByteBuffer grown = ByteBuffer.allocate(8 + length);
+                pollInbound.flip();
+                grown.put(pollInbound);
+                pollInbound = grown;
+            }
+            return false;
+        }
+        final PooledBuffer payload = PooledBufferAllocator.sharedHeap().allocate(length);
+        System.arraycopy(buffered, 8, payload.array(), 0, length);
+        final TrafficCapture capture = trafficCapture;
+        if (capture != null) {
+            capture.record(trafficCaptureConnectionId, TrafficCapture.DIRECTION_INBOUND, messageId, buffered, 8, length);
+        }
+        //drop the frame from the buffer, keeping bytes of following frames
+        pollInbound.flip();
+        pollInbound.position(8 + length);
+        if (pollInbound.capacity() > POLL_INBOUND_BUFFER_SIZE_BYTES && pollInbound.remaining() <= POLL_INBOUND_BUFFER_SIZE_BYTES) {
+            //shrink back after a large frame
+            final ByteBuffer shrunk = ByteBuffer.allocate(POLL_INBOUND_BUFFER_SIZE_BYTES);
+            shrunk.put(pollInbound);
+            pollInbound = shrunk;
+        } else {
+            pollInbound.compact();
+        }
+        final InboundFrame frame = new InboundFrame(messageId, payload, length);
+        inflateFrame(frame);
+        publishFrame(frame, pendingReadMessages);
+        return true;
+    }
+
+    private void write(AbstractNetMessage message) throws IOException, Exception {
+        //Reset write buffer
+        for (int i = 0; i < writeBuffer.length; i++) {
+            writeBuffer[i] = 0;
+        }
+        if (message instanceof ForwardedMessage) {
+            writeForwarded((ForwardedMessage) message);
+            return;
+        }
+        if (message instanceof EncodedMessage) {
+            writeEncoded((EncodedMessage) message);
+            return;
+        }
+        //Convert message into bytes
+        message.intoBytes(writeBuffer);
+        final int messageId = register.get(message.getClass());
+        final boolean delta = deltaEncodingEnabled && encodeDelta(messageId);
+        if (batch != null) {
+            //entries are compressed together when the batch is written
+            if (delta) {
+                batch.add(messageId, BatchFrameBuilder.FLAG_DELTA, deltaBuffer);
+            } else {
+                batch.add(messageId, (byte) 0, writeBuffer);
+            }
+            if (batch.size() >= maxBatchSizeBytes) {
+                writeBatch();
+            }
+            return;
+        }
+        if (delta) {
+            writeCompressedFrame(CONTROL_FRAME_DELTA, messageId, deltaBuffer, deltaBuffer.length);
+            return;
+        }
+        //Compress message bytes previously written to writeBuffer and write them as a frame
+        writeCompressedFrame(0, messageId, writeBuffer, writeBuffer.length);
+    }
+
+    /*
+     * Writes key and bytes of the wrapped message, never delta encoded, since
+     * messages forwarded to different keys do not share baselines. Must be
+     * called holding writeLock.
+     */
+    private void writeForwarded(ForwardedMessage forwarded) throws IOException {
+        forwarded.message.intoBytes(writeBuffer);
+        final int messageId = register.get(forwarded.message.getClass());
+        PrimitiveToByteConversionUtils.convertLongToByteArray(forwarded.key, forwardBuffer, 0);
+        System.arraycopy(writeBuffer, 0, forwardBuffer, 8, writeBuffer.length);
+        if (batch != null) {
+            batch.add(messageId, BatchFrameBuilder.FLAG_FORWARDED, forwardBuffer);
+            if (batch.size() >= maxBatchSizeBytes) {
+                writeBatch();
+            }
+            return;
+        }
+        writeCompressedFrame(CONTROL_FRAME_FORWARD, messageId, forwardBuffer, forwardBuffer.length);
+    }
+
+    /*
+     * Writes the frame of a message encoded once for many transceivers, or
+     * adds its bytes to the batch. It is always a full message, which
+     * becomes the baseline of following delta encoded messages of its uid.
+     * Must be called holding writeLock.
+     */
+    private void writeEncoded(EncodedMessage encoded) throws IOException {
+        if (deltaEncodingEnabled) {
+            outgoingBaselines.put(encoded.uid, new DeltaBaseline(encoded.bytes.clone()));
+        }
+        if (batch != null) {
+            batch.add(encoded.uid, (byte) 0, encoded.bytes);
+            if (batch.size() >= maxBatchSizeBytes) {
+                writeBatch();
+            }
+            return;
+        }
+        outputStream().write(encoded.frame, 0, encoded.frame.length);
+        captureOutbound(encoded.uid, encoded.frame, encoded.frame.length - 8);
+    }
+
+    /*
+     * Writes a frame of compressed bytes with a single write to the stream,
+     * a message frame of messageId if controlType is 0, or a control frame of
+     * that type. Delta and forward frames carry messageId in front of the
+     * compressed bytes. Must be called holding writeLock.
+     */
+    private void writeCompressedFrame(int controlType, int messageId, byte[] bytes, int length) throws IOException {
+        final int headerLength;
+        if (controlType == 0) {
+            headerLength = 8;
+        } else if (controlType == CONTROL_FRAME_DELTA || controlType == CONTROL_FRAME_FORWARD) {
+            headerLength = CONTROL_FRAME_HEADER_LENGTH_BYTES + 4;
+        } else {
+            headerLength = CONTROL_FRAME_HEADER_LENGTH_BYTES;
+        }
+        final int frameId = controlType == 0 ? messageId : CONTROL_FRAME_UID;
+        final PooledBuffer frame = PooledBufferAllocator.sharedHeap().allocate(headerLength + CompressionUtils.maxCompressedLength(length));
+        try {
+            final byte[] array = frame.array();
+            final int compressedLength = CompressionUtils.compressByteArray(bytes, 0, length, array, headerLength);
+            //step 1. write message uid, or the uid of control frames followed by their type
+            PrimitiveToByteConversionUtils.convertIntToByteArray(frameId, array, 0);
+            if (controlType != 0) {
+                array[8] = (byte) controlType;
+            }
+            //step 2. write data(byte array) length
+            PrimitiveToByteConversionUtils.convertIntToByteArray(headerLength - 8 + compressedLength, array, 4);
+            if (headerLength > CONTROL_FRAME_HEADER_LENGTH_BYTES) {
+                PrimitiveToByteConversionUtils.convertIntToByteArray(messageId, array, CONTROL_FRAME_HEADER_LENGTH_BYTES);
+            }
+            //step 3. write the whole frame
+            outputStream().write(array, 0, headerLength + compressedLength);
+            captureOutbound(frameId, array, headerLength - 8 + compressedLength);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /*
+     * Writes XOR of writeBuffer against the baseline of messageId into
+     * deltaBuffer, returns false if a keyframe must be written instead. In
+     * both cases writeBuffer becomes the new baseline.
+     */
+    private boolean encodeDelta(int messageId) {
+        final DeltaBaseline baseline = outgoingBaselines.get(messageId);
+        if (baseline == null || baseline.deltasSinceKeyframe >= deltaKeyframeInterval) {
+            outgoingBaselines.put(messageId, new DeltaBaseline(writeBuffer.clone()));
+            return false;
+        }
+        for (int i = 0; i < deltaBuffer.length; i++) {
+            deltaBuffer[i] = (byte) (writeBuffer[i] ^ baseline.bytes[i]);
+            baseline.bytes[i] = writeBuffer[i];
+        }
+        baseline.deltasSinceKeyframe++;
+        return true;
+    }
+
+    /*
+     * Writes all entries of the batch as a single frame. Must be called
+     * holding writeLock.
+     */
+    private void writeBatch() throws IOException {
+        final PooledBuffer payload = PooledBufferAllocator.sharedHeap().allocate(batch.size());
+        try {
+            final int length = batch.drainInto(payload.array());
+            writeCompressedFrame(CONTROL_FRAME_BATCH, 0, payload.array(), length);
+        } finally {
+            payload.release();
+        }
+    }
+
+    /*
+     * Records an outbound frame, whose payload follows the 8 byte header in
+     * the frame array.
+     */
+    private void captureOutbound(int frameId, byte[] frame, int payloadLength) {
+        final TrafficCapture capture = trafficCapture;
+        if (capture != null) {
+            capture.record(trafficCaptureConnectionId, TrafficCapture.DIRECTION_OUTBOUND, frameId, frame, 8, payloadLength);
+        }
+    }
+
+    /*
+     * Streams used to read and write frames, encrypted if TLS is enabled.
+     */
+    private InputStream inputStream() throws IOException {
+        final InputStream shared = sharedMemoryInput;
+        if (shared != null) {
+            return shared;
+        }
+        final SslEngineStreams tls = tlsStreams;
+        if (tls != null) {
+            return tls.getInputStream();
+        }
+        final Socket currentSocket = socket;
+        if (currentSocket == null) {
+            throw new IOException("[TRANSCEIVER]Socket is closed.");
+        }
+        return currentSocket.getInputStream();
+    }
+
+    private OutputStream outputStream() throws IOException {
+        final NonBlockingChannelOutputStream polled = pollOutputStream;
+        if (polled != null && pollChannel != null) {
+            return polled;
+        }
+        final OutputStream shared = sharedMemoryOutput;
+        if (shared != null) {
+            return shared;
+        }
+        final SslEngineStreams tls = tlsStreams;
+        if (tls != null) {
+            return tls.getOutputStream();
+        }
+        final Socket currentSocket = socket;
+        if (currentSocket == null) {
+            throw new IOException("[TRANSCEIVER]Socket is closed.");
+        }
+        return currentSocket.getOutputStream();
+    }
+
     protected void run() {
+        final TlsConfiguration tls = tlsConfiguration;
+        if (tls != null && tlsStreams == null && socket != null) {
+            //accepted connection, the handshake is performed by the reader thread and writes wait for it
+            try {
+                tlsStreams = new SslEngineStreams(socket, tls.createServerEngine(), PooledBufferAllocator.sharedHeap());
+                tlsHandshakePending = true;
+            } catch (IOException ex) {
+                Logger.getLogger(SocketTransceiver.class.getName()).log(Level.SEVERE, null, ex);
+                disconnect();
+                return;
+            }
+        }
         readerThread = new Thread(readerRunnable);
         readerThread.start();
     }
 
+    /**
+     * Decides whether a received message is added to received messages of
+     * the {@link SocketTransceiver}, called by its reader thread.
+     */
+    public static interface InboundAdmissionPolicy {
+
+        public boolean admit(AbstractNetMessage message);
+    }
+
+    /**
+     * Receives topic subscriptions requested by the remote side, called by
+     * the reader thread.
+     */
+    public static interface SubscriptionHandler {
+
+        public void onSubscribe(String topic);
+
+        public void onUnsubscribe(String topic);
+    }
+
+    /**
+     * Receives messages forwarded by the remote side, called by the reader
+     * thread, or by a thread of the {@link DecodePool}, in the order they
+     * have been forwarded.
+     */
+    public static interface ForwardedMessageHandler {
+
+        public void onForwardedMessage(long key, AbstractNetMessage message);
+    }
+
+    private static final class InboundFrame {
+
+        final int uid;
+        //type of a control frame, read from the first byte of its payload, or 0
+        final int controlType;
+        //raw payload as read from the stream, released once inflated
+        final PooledBuffer payload;
+        final int length;
+        //decompressed payload, or a copy of the payload of other control frames
+        byte[] inflated;
+        //uid of the message carried by a delta or forward frame
+        int wrappedMessageId;
+        AbstractNetMessage message;
+        Exception failure;
+        volatile boolean decoded;
+
+        InboundFrame(int uid, PooledBuffer payload, int length) {
+            this.uid = uid;
+            this.controlType = uid == CONTROL_FRAME_UID ? payload.array()[0] : 0;
+            this.payload = payload;
+            this.length = length;
+        }
+    }
+
+    /*
+     * Envelope of a message waiting in the outbound scheduler to be
+     * forwarded, never written as a message of its own.
+     */
+    private static final class ForwardedMessage extends AbstractNetMessage {
+
+        final long key;
+        final AbstractNetMessage message;
+
+        ForwardedMessage(long key, AbstractNetMessage message) {
+            this.key = key;
+            this.message = message;
+        }
+
+        @Override
+        public void fromBytes(byte[] bytes) {
+            message.fromBytes(bytes);
+        }
+
+        @Override
+        public void intoBytes(byte[] bytes) {
+            message.intoBytes(bytes);
+        }
+
+        @Override
+        public byte[] intoBytes2() {
+            return message.intoBytes2();
+        }
+    }
+
+    private static final class DeltaBaseline {
+
+        final byte[] bytes;
+        int deltasSinceKeyframe;
+
+        DeltaBaseline(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
 }
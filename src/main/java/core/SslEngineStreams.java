@@ -0,0 +1,389 @@
+package core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+
+/**
+ * Encrypts and decrypts data of a {@link Socket} with an {@link SSLEngine},
+ * exposing plaintext {@link InputStream} and {@link OutputStream} used by
+ * {@link SocketTransceiver}. Unlike {@link javax.net.ssl.SSLSocket}, it works
+ * on the threads already used by the transceiver and takes its packet and
+ * application buffers from a {@link PooledBufferAllocator}. Encrypted bytes
+ * are read from and written to streams of the socket, which take only byte
+ * arrays, so heap buffers are used, a direct one would add a copy.
+ *
+ * Reading and writing may happen concurrently on different threads. Written
+ * data is buffered until {@link OutputStream#flush()}, so a whole frame is
+ * sent as a single TLS record.
+ *
+ * @author Michał Furgał
+ */
+public class SslEngineStreams {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final long HANDSHAKE_TIMEOUT_IN_MILLISECONDS = 10000;
+
+    private final SSLEngine engine;
+    private final InputStream rawIn;
+    private final OutputStream rawOut;
+    private final PooledBufferAllocator allocator;
+    private final Object unwrapLock = new Object();
+    private final Object wrapLock = new Object();
+    private final CountDownLatch handshakeLatch = new CountDownLatch(1);
+    private volatile IOException handshakeFailure;
+    private volatile boolean closed;
+    //encrypted bytes read from socket, in write mode; guarded by unwrapLock
+    private PooledBuffer netIn;
+    //decrypted bytes not yet read, in write mode; guarded by unwrapLock
+    private PooledBuffer appIn;
+    //encrypted bytes to write to socket; guarded by wrapLock
+    private PooledBuffer netOut;
+    //plaintext bytes waiting for flush, in write mode; guarded by wrapLock
+    private PooledBuffer appOut;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return readPlaintext(b, off, len);
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writePlaintext(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushPlaintext();
+        }
+    };
+
+    /**
+     *
+     * @param socket the connected socket.
+     * @param engine the engine encrypting the connection.
+     * @param allocator the allocator of heap buffers, like
+     * {@link PooledBufferAllocator#sharedHeap()}.
+     * @throws IOException if streams of the socket are not available.
+     */
+    public SslEngineStreams(Socket socket, SSLEngine engine, PooledBufferAllocator allocator) throws IOException {
+        if (allocator.isDirect()) {
+            throw new IllegalArgumentException("TLS streams need an allocator of heap buffers.");
+        }
+        this.engine = engine;
+        this.rawIn = socket.getInputStream();
+        this.rawOut = socket.getOutputStream();
+        this.allocator = allocator;
+        final int packetSize = engine.getSession().getPacketBufferSize();
+        final int applicationSize = engine.getSession().getApplicationBufferSize();
+        netIn = allocator.allocate(packetSize);
+        netOut = allocator.allocate(packetSize);
+        appIn = allocator.allocate(applicationSize);
+        appOut = allocator.allocate(applicationSize);
+    }
+
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     *
+     * @return the session negotiated by the handshake.
+     */
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Performs the TLS handshake, blocking until it completes. Writes issued
+     * meanwhile by other threads wait for it.
+     *
+     * @throws IOException if the handshake failed.
+     */
+    public void handshake() throws IOException {
+        try {
+            engine.beginHandshake();
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                switch (status) {
+                    case NEED_WRAP:
+                        synchronized (wrapLock) {
+                            status = wrap(EMPTY);
+                        }
+                        break;
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        status = engine.getHandshakeStatus();
+                        break;
+                    default:
+                        //NEED_UNWRAP and NEED_UNWRAP_AGAIN
+                        synchronized (unwrapLock) {
+                            status = unwrap();
+                        }
+                        break;
+                }
+            }
+        } catch (IOException ex) {
+            handshakeFailure = ex;
+            throw ex;
+        } finally {
+            handshakeLatch.countDown();
+        }
+    }
+
+    /**
+     * Sends close_notify to the remote side, if possible. Following reads and
+     * writes fail.
+     */
+    public void close() {
+        closed = true;
+        engine.closeOutbound();
+        synchronized (wrapLock) {
+            if (netOut == null || handshakeLatch.getCount() > 0) {
+                return;
+            }
+            try {
+                wrap(EMPTY);
+            } catch (IOException ex) {
+                //the remote side may have already closed the connection
+            }
+        }
+    }
+
+    /**
+     * Returns buffers to the allocator. The socket must be closed before, so
+     * that a reader blocked on it releases the buffers it uses.
+     */
+    public void releaseBuffers() {
+        closed = true;
+        synchronized (unwrapLock) {
+            synchronized (wrapLock) {
+                if (netIn == null) {
+                    //already released
+                    return;
+                }
+                netIn.release();
+                netOut.release();
+                appIn.release();
+                appOut.release();
+                netIn = null;
+                netOut = null;
+                appIn = null;
+                appOut = null;
+            }
+        }
+    }
+
+    private int readPlaintext(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        synchronized (unwrapLock) {
+            ensureOpen();
+            while (appIn.buffer().position() == 0) {
+                if (unwrapRecord() < 0) {
+                    return -1;
+                }
+            }
+            final ByteBuffer plaintext = appIn.buffer();
+            plaintext.flip();
+            final int count = Math.min(len, plaintext.remaining());
+            plaintext.get(b, off, count);
+            plaintext.compact();
+            return count;
+        }
+    }
+
+    /*
+     * Unwraps records until some application data is available. Returns -1 on
+     * end of stream.
+     */
+    private int unwrapRecord() throws IOException {
+        while (true) {
+            final SSLEngineResult.HandshakeStatus status = unwrap();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                //post handshake messages, like key updates, need an answer
+                synchronized (wrapLock) {
+                    ensureOpen();
+                    wrap(EMPTY);
+                }
+            }
+            if (appIn.buffer().position() > 0) {
+                return appIn.buffer().position();
+            }
+            if (engine.isInboundDone()) {
+                return -1;
+            }
+        }
+    }
+
+    /*
+     * Unwraps a single record, reading more bytes from the socket if needed.
+     * Must be called holding unwrapLock.
+     */
+    private SSLEngineResult.HandshakeStatus unwrap() throws IOException {
+        while (true) {
+            ensureOpen();
+            final ByteBuffer encrypted = netIn.buffer();
+            encrypted.flip();
+            final SSLEngineResult result = engine.unwrap(encrypted, appIn.buffer());
+            encrypted.compact();
+            switch (result.getStatus()) {
+                case OK:
+                    if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                        runDelegatedTasks();
+                        return engine.getHandshakeStatus();
+                    }
+                    return result.getHandshakeStatus();
+                case BUFFER_UNDERFLOW:
+                    if (encrypted.remaining() == 0) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    final ByteBuffer unread = netIn.buffer();
+                    final int count = rawIn.read(unread.array(), unread.arrayOffset() + unread.position(), unread.remaining());
+                    if (count < 0) {
+                        throw new EOFException("[TLS]Connection closed during TLS record.");
+                    }
+                    unread.position(unread.position() + count);
+                    break;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                case CLOSED:
+                    return result.getHandshakeStatus();
+            }
+        }
+    }
+
+    private void writePlaintext(byte[] b, int off, int len) throws IOException {
+        awaitHandshake();
+        synchronized (wrapLock) {
+            ensureOpen();
+            while (len > 0) {
+                if (appOut.buffer().remaining() == 0) {
+                    flushPlaintext();
+                }
+                final int count = Math.min(len, appOut.buffer().remaining());
+                appOut.buffer().put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+    }
+
+    private void flushPlaintext() throws IOException {
+        awaitHandshake();
+        synchronized (wrapLock) {
+            ensureOpen();
+            final ByteBuffer plaintext = appOut.buffer();
+            plaintext.flip();
+            while (plaintext.hasRemaining()) {
+                wrap(plaintext);
+            }
+            plaintext.clear();
+        }
+    }
+
+    /*
+     * Wraps given data into a record and writes it to socket. Must be called
+     * holding wrapLock.
+     */
+    private SSLEngineResult.HandshakeStatus wrap(ByteBuffer source) throws IOException {
+        while (true) {
+            final ByteBuffer encrypted = netOut.buffer();
+            encrypted.clear();
+            final SSLEngineResult result = engine.wrap(source, encrypted);
+            switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                    continue;
+                case CLOSED:
+                    if (!closed) {
+                        throw new SSLException("[TLS]Engine closed.");
+                    }
+                    break;
+                default:
+                    break;
+            }
+            encrypted.flip();
+            rawOut.write(encrypted.array(), encrypted.arrayOffset(), encrypted.remaining());
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runDelegatedTasks();
+                return engine.getHandshakeStatus();
+            }
+            return result.getHandshakeStatus();
+        }
+    }
+
+    private void awaitHandshake() throws IOException {
+        try {
+            if (!handshakeLatch.await(HANDSHAKE_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("[TLS]Handshake timeout.");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[TLS]Interrupted while waiting for handshake.", ex);
+        }
+        if (handshakeFailure != null) {
+            throw new IOException("[TLS]Handshake failed.", handshakeFailure);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("[TLS]Streams are closed.");
+        }
+    }
+
+    /*
+     * Moves the content of given buffer, in write mode, to a larger buffer of
+     * the allocator and releases it.
+     */
+    private PooledBuffer grow(PooledBuffer pooled, int minimumCapacity) {
+        final ByteBuffer buffer = pooled.buffer();
+        final PooledBuffer bigger = allocator.allocate(Math.max(minimumCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.buffer().put(buffer);
+        pooled.release();
+        return bigger;
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+}
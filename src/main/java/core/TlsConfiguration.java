@@ -0,0 +1,101 @@
+package core;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+
+
+/**
+ * Holds the {@link SSLContext} used to create {@link SSLEngine}s of encrypted
+ * connections. Client engines are created for the host and port they connect
+ * to, which lets the client session cache of the context resume previous
+ * sessions, making reconnects cheap.
+ *
+ * @author Michał Furgał
+ */
+public class TlsConfiguration {
+
+    private final SSLContext sslContext;
+    private boolean needClientAuth = false;
+
+    public TlsConfiguration(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Creates configuration from given key and trust stores.
+     *
+     * @param keyStore the store holding own private key and certificate, may
+     * be null on clients.
+     * @param keyPassword the password of the private key.
+     * @param trustStore the store holding trusted certificates, or null to use
+     * default trusted certificate authorities.
+     * @return the created configuration.
+     * @throws GeneralSecurityException if the stores could not be used.
+     */
+    public static TlsConfiguration create(KeyStore keyStore, char[] keyPassword, KeyStore trustStore) throws GeneralSecurityException {
+        KeyManagerFactory keyManagerFactory = null;
+        if (keyStore != null) {
+            keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, keyPassword);
+        }
+        final TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(trustStore);
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory == null ? null : keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        return new TlsConfiguration(context);
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    public boolean isNeedClientAuth() {
+        return needClientAuth;
+    }
+
+    /**
+     * Makes server engines require a certificate from connecting clients.
+     *
+     * @param needClientAuth true to require client certificates.
+     */
+    public void setNeedClientAuth(boolean needClientAuth) {
+        this.needClientAuth = needClientAuth;
+    }
+
+    /**
+     * Changes how many client sessions are kept for resumption and for how
+     * long.
+     *
+     * @param size maximum number of cached sessions, 0 for no limit.
+     * @param timeoutInSeconds how long a session may be resumed.
+     */
+    public void setClientSessionCache(int size, int timeoutInSeconds) {
+        sslContext.getClientSessionContext().setSessionCacheSize(size);
+        sslContext.getClientSessionContext().setSessionTimeout(timeoutInSeconds);
+    }
+
+    /*
+     * The certificate of the server must be issued for the host the client
+     * connects to, otherwise any certificate of a trusted authority would do.
+     */
+    SSLEngine createClientEngine(String host, int port) {
+        final SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        final SSLParameters parameters = engine.getSSLParameters();
+        parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    SSLEngine createServerEngine() {
+        final SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(needClientAuth);
+        return engine;
+    }
+}
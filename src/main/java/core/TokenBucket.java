@@ -0,0 +1,75 @@
+package core;
+
+/**
+ * A token bucket rate limiter. Tokens are refilled continuously at a fixed
+ * rate, up to the capacity of the bucket, which allows for short bursts above
+ * the average rate.
+ *
+ * @author Michał Furgał
+ */
+public class TokenBucket {
+
+    private final double tokensPerNanosecond;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillNanos;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param tokensPerSecond the average rate at which tokens are refilled.
+     * @param capacity the maximum number of tokens, which is the largest
+     * allowed burst.
+     */
+    public TokenBucket(double tokensPerSecond, int capacity) {
+        if (tokensPerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("tokensPerSecond and capacity must be positive");
+        }
+        this.tokensPerNanosecond = tokensPerSecond / 1_000_000_000d;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    /**
+     * Takes one token if available.
+     *
+     * @return true if a token has been taken.
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes one token, blocking the current thread until it becomes available.
+     *
+     * @throws InterruptedException if the current thread is interrupted while
+     * waiting.
+     */
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        while ((waitNanos = tryAcquireOrGetWaitNanos()) > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    private synchronized long tryAcquireOrGetWaitNanos() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) ((1 - tokens) / tokensPerNanosecond));
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNanosecond);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,171 @@
+package core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Appends raw frames sent and received by {@link SocketTransceiver}s to a log
+ * of memory mapped segment files, which can be replayed by
+ * {@link TrafficReplayer}. Frames are recorded exactly as they appear on the
+ * wire, before decompression, so recording costs a copy into the mapped
+ * segment and no encoding.
+ *
+ * Each segment starts with {@value #SEGMENT_MAGIC} and
+ * {@value #SEGMENT_VERSION}, followed by records: record length(4 bytes,
+ * including itself), connection id(8 bytes), {@link System#nanoTime()} of
+ * the frame(8 bytes), direction(1 byte), frame id(4 bytes) and the raw
+ * payload. A record length of 0 marks the end of a segment.
+ *
+ * @author Michał Furgał
+ */
+public class TrafficCapture {
+
+    public static final byte DIRECTION_INBOUND = 0;
+    public static final byte DIRECTION_OUTBOUND = 1;
+    public static final int SEGMENT_MAGIC = 0x4E455443;
+    public static final int SEGMENT_VERSION = 1;
+    static final int SEGMENT_HEADER_SIZE_BYTES = 4 + 4;
+    static final int RECORD_HEADER_SIZE_BYTES = 4 + 8 + 8 + 1 + 4;
+    private static final String SEGMENT_FILE_PREFIX = "capture-";
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentSizeBytes;
+    private final AtomicLong recordsCount = new AtomicLong();
+    private final AtomicLong droppedRecordsCount = new AtomicLong();
+    private MappedByteBuffer segment;
+    private int segmentIndex = -1;
+    private boolean closed;
+
+    /**
+     * Creates the directory if needed and maps the first segment.
+     *
+     * @param directory the directory to write segments to, segments of a
+     * previous capture in it are deleted.
+     * @param segmentSizeBytes the size of a single segment file.
+     * @throws IOException if the first segment could not be created.
+     */
+    public TrafficCapture(File directory, int segmentSizeBytes) throws IOException {
+        if (segmentSizeBytes <= SEGMENT_HEADER_SIZE_BYTES + RECORD_HEADER_SIZE_BYTES) {
+            throw new IllegalArgumentException("segmentSizeBytes too small:" + segmentSizeBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create capture directory:" + directory);
+        }
+        for (int i = 0; segmentFile(directory, i).exists(); i++) {
+            if (!segmentFile(directory, i).delete()) {
+                throw new IOException("Could not delete previous segment:" + segmentFile(directory, i));
+            }
+        }
+        this.directory = directory;
+        this.segmentSizeBytes = segmentSizeBytes;
+        nextSegment();
+    }
+
+    /**
+     * Appends a frame to the log. A frame larger than a segment, or recorded
+     * after {@link #close()}, is dropped.
+     *
+     * @param connectionId the id of the connection of the frame.
+     * @param direction {@link #DIRECTION_INBOUND} or
+     * {@link #DIRECTION_OUTBOUND}.
+     * @param frameId the uid of the message or control frame.
+     * @param payload the array holding the raw payload.
+     * @param offset index of the first payload byte.
+     * @param length the length of the payload.
+     */
+    public void record(long connectionId, byte direction, int frameId, byte[] payload, int offset, int length) {
+        final long timestampNanos = System.nanoTime();
+        final int recordLength = RECORD_HEADER_SIZE_BYTES + length;
+        //a record length of 0 must stay available for the end of segment marker
+        if (recordLength + 4 > segmentSizeBytes - SEGMENT_HEADER_SIZE_BYTES) {
+            droppedRecordsCount.incrementAndGet();
+            return;
+        }
+        synchronized (this) {
+            if (closed) {
+                droppedRecordsCount.incrementAndGet();
+                return;
+            }
+            if (segment.remaining() < recordLength + 4) {
+                try {
+                    nextSegment();
+                } catch (IOException ex) {
+                    Logger.getLogger(TrafficCapture.class.getName()).log(Level.SEVERE, "[CAPTURE]Could not create next segment, closing the capture.", ex);
+                    closed = true;
+                    droppedRecordsCount.incrementAndGet();
+                    return;
+                }
+            }
+            segment.putInt(recordLength);
+            segment.putLong(connectionId);
+            segment.putLong(timestampNanos);
+            segment.put(direction);
+            segment.putInt(frameId);
+            segment.put(payload, offset, length);
+        }
+        recordsCount.incrementAndGet();
+    }
+
+    /**
+     * Writes recorded frames to the disk and stops recording.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        segment.force();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     *
+     * @return the number of recorded frames.
+     */
+    public long getRecordsCount() {
+        return recordsCount.get();
+    }
+
+    /**
+     *
+     * @return the number of frames which could not be recorded.
+     */
+    public long getDroppedRecordsCount() {
+        return droppedRecordsCount.get();
+    }
+
+    static File segmentFile(File directory, int index) {
+        return new File(directory, String.format("%s%05d%s", SEGMENT_FILE_PREFIX, index, SEGMENT_FILE_SUFFIX));
+    }
+
+    /*
+     * Must be called holding the monitor of this capture, except from the
+     * constructor.
+     */
+    private void nextSegment() throws IOException {
+        if (segment != null) {
+            //the rest of a new file is filled with zeros, which is the end marker
+            segment.putInt(0);
+        }
+        segmentIndex++;
+        try (final RandomAccessFile file = new RandomAccessFile(segmentFile(directory, segmentIndex), "rw")) {
+            file.setLength(0);
+            file.setLength(segmentSizeBytes);
+            //the mapping stays valid after the channel is closed
+            segment = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSizeBytes);
+        }
+        segment.putInt(SEGMENT_MAGIC);
+        segment.putInt(SEGMENT_VERSION);
+    }
+}
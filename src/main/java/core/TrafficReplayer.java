@@ -0,0 +1,297 @@
+package core;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Replays frames recorded by {@link TrafficCapture}. Only inbound frames,
+ * received by the capturing side, are replayed, either into a running
+ * {@link Server} over new sockets, one per captured connection, or directly
+ * into the decode path of {@link SocketTransceiver}s without any sockets.
+ * Frames are replayed at the recorded pace multiplied by the speed, or as
+ * fast as possible, which makes replays usable as realistic benchmarks of
+ * decoding and dispatching.
+ *
+ * @author Michał Furgał
+ */
+public class TrafficReplayer {
+
+    private final File directory;
+    private volatile double speed = 0;
+
+    /**
+     *
+     * @param directory the directory of the capture.
+     */
+    public TrafficReplayer(File directory) {
+        this.directory = directory;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Changes the pace of replay.
+     *
+     * @param speed 1 to replay at the recorded pace, 2 for twice as fast and
+     * so on, 0 to replay as fast as possible.
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed < 0");
+        }
+        this.speed = speed;
+    }
+
+    /**
+     * Calls given visitor for every recorded frame, in the recorded order,
+     * without pacing.
+     *
+     * @param visitor the visitor.
+     * @throws IOException if a segment could not be read or the visitor
+     * failed.
+     */
+    public void forEachFrame(FrameVisitor visitor) throws IOException {
+        byte[] payload = new byte[SocketTransceiver.PACKET_SIZE_BYTES];
+        for (int i = 0; TrafficCapture.segmentFile(directory, i).exists(); i++) {
+            final MappedByteBuffer segment;
+            try (final RandomAccessFile file = new RandomAccessFile(TrafficCapture.segmentFile(directory, i), "r")) {
+                segment = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            }
+            if (segment.remaining() < TrafficCapture.SEGMENT_HEADER_SIZE_BYTES || segment.getInt() != TrafficCapture.SEGMENT_MAGIC || segment.getInt() != TrafficCapture.SEGMENT_VERSION) {
+                throw new IOException("Not a capture segment:" + TrafficCapture.segmentFile(directory, i));
+            }
+            while (segment.remaining() >= TrafficCapture.RECORD_HEADER_SIZE_BYTES) {
+                final int recordLength = segment.getInt();
+                if (recordLength == 0) {
+                    break;
+                }
+                final int length = recordLength - TrafficCapture.RECORD_HEADER_SIZE_BYTES;
+                if (length < 0 || recordLength - 4 > segment.remaining()) {
+                    throw new IOException("Broken record in segment:" + TrafficCapture.segmentFile(directory, i) + " at:" + (segment.position() - 4));
+                }
+                final long connectionId = segment.getLong();
+                final long timestampNanos = segment.getLong();
+                final byte direction = segment.get();
+                final int frameId = segment.getInt();
+                if (payload.length < length) {
+                    payload = new byte[Math.max(length, payload.length * 2)];
+                }
+                segment.get(payload, 0, length);
+                visitor.onFrame(connectionId, timestampNanos, direction, frameId, payload, length);
+            }
+        }
+    }
+
+    /**
+     * Replays inbound frames into a server, over a new connection for every
+     * captured connection. Anything sent back by the server is discarded.
+     * Only plaintext servers are supported.
+     *
+     * @param host the host of the server.
+     * @param port the port of the server.
+     * @return what has been replayed.
+     * @throws IOException if connecting or writing failed.
+     */
+    public ReplayStatistics replayToServer(final String host, final int port) throws IOException {
+        final Map<Long, OutputStream> connections = new HashMap<>();
+        final Map<Long, Socket> sockets = new HashMap<>();
+        final byte[] header = new byte[8];
+        try {
+            return replay(new FrameVisitor() {
+                @Override
+                public void onFrame(long connectionId, long timestampNanos, byte direction, int frameId, byte[] payload, int length) throws IOException {
+                    OutputStream out = connections.get(connectionId);
+                    if (out == null) {
+                        final Socket socket = new Socket(host, port);
+                        startDiscarding(socket);
+                        sockets.put(connectionId, socket);
+                        out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                        connections.put(connectionId, out);
+                    }
+                    PrimitiveToByteConversionUtils.convertIntToByteArray(frameId, header, 0);
+                    PrimitiveToByteConversionUtils.convertIntToByteArray(length, header, 4);
+                    out.write(header);
+                    out.write(payload, 0, length);
+                    if (speed > 0) {
+                        out.flush();
+                    }
+                }
+            });
+        } finally {
+            for (OutputStream out : connections.values()) {
+                try {
+                    out.flush();
+                } catch (IOException ex) {
+                    Logger.getLogger(TrafficReplayer.class.getName()).log(Level.WARNING, "[REPLAY]Could not flush replayed frames.", ex);
+                }
+            }
+            for (Socket socket : sockets.values()) {
+                socket.shutdownOutput();
+            }
+        }
+    }
+
+    /**
+     * Replays inbound frames into the decode path of transceivers, without
+     * any sockets. Decoded messages are added to received messages of the
+     * transceivers. Returns once all of them have been added, also when
+     * frames are decoded by a pool.
+     *
+     * @param register the register used by created transceivers.
+     * @param decodePool the pool decoding frames of created transceivers, or
+     * null to decode on the replaying thread.
+     * @param transceivers the transceiver of every captured connection,
+     * missing ones are created and added.
+     * @return what has been replayed.
+     * @throws IOException if a frame could not be decoded.
+     */
+    public ReplayStatistics replayToDecoder(final NetMessageRegister register, final DecodePool decodePool, final Map<Long, SocketTransceiver> transceivers) throws IOException {
+        final long startNanos = System.nanoTime();
+        final ReplayStatistics replayed = replay(new FrameVisitor() {
+            @Override
+            public void onFrame(long connectionId, long timestampNanos, byte direction, int frameId, byte[] payload, int length) throws IOException {
+                SocketTransceiver transceiver = transceivers.get(connectionId);
+                if (transceiver == null) {
+                    transceiver = new SocketTransceiver(register);
+                    transceiver.setDecodePool(decodePool);
+                    transceivers.put(connectionId, transceiver);
+                }
+                try {
+                    transceiver.replayFrame(frameId, payload, length);
+                } catch (IOException ex) {
+                    throw ex;
+                } catch (Exception ex) {
+                    throw new IOException("[REPLAY]Could not decode frame of connection:" + connectionId, ex);
+                }
+            }
+        });
+        if (decodePool == null) {
+            return replayed;
+        }
+        //the replay is finished once the pool has decoded every frame, not once the last one is handed to it
+        for (Map.Entry<Long, SocketTransceiver> entry : transceivers.entrySet()) {
+            try {
+                if (!entry.getValue().awaitDecoded()) {
+                    throw new IOException("[REPLAY]Could not decode frames of connection:" + entry.getKey());
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("[REPLAY]Interrupted while waiting for frames to be decoded.");
+            }
+        }
+        return new ReplayStatistics(replayed.frames, replayed.payloadBytes, replayed.connections, System.nanoTime() - startNanos);
+    }
+
+    private ReplayStatistics replay(final FrameVisitor target) throws IOException {
+        final long[] firstTimestampNanos = {Long.MIN_VALUE};
+        final long[] counts = new long[2];
+        final HashSet<Long> connectionIds = new HashSet<>();
+        final long startNanos = System.nanoTime();
+        forEachFrame(new FrameVisitor() {
+            @Override
+            public void onFrame(long connectionId, long timestampNanos, byte direction, int frameId, byte[] payload, int length) throws IOException {
+                if (direction != TrafficCapture.DIRECTION_INBOUND) {
+                    return;
+                }
+                if (firstTimestampNanos[0] == Long.MIN_VALUE) {
+                    firstTimestampNanos[0] = timestampNanos;
+                }
+                final double currentSpeed = speed;
+                if (currentSpeed > 0) {
+                    final long dueNanos = startNanos + (long) ((timestampNanos - firstTimestampNanos[0]) / currentSpeed);
+                    long waitNanos;
+                    while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(waitNanos);
+                    }
+                }
+                target.onFrame(connectionId, timestampNanos, direction, frameId, payload, length);
+                connectionIds.add(connectionId);
+                counts[0]++;
+                counts[1] += length;
+            }
+        });
+        return new ReplayStatistics(counts[0], counts[1], connectionIds.size(), System.nanoTime() - startNanos);
+    }
+
+    private static void startDiscarding(final Socket socket) {
+        final Thread discarder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] discarded = new byte[4096];
+                try {
+                    final InputStream in = socket.getInputStream();
+                    while (in.read(discarded) >= 0) {
+                        //replies of the server are not replayed
+                    }
+                } catch (IOException ex) {
+                    //the server closed the connection
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException ex) {
+                        Logger.getLogger(TrafficReplayer.class.getName()).log(Level.FINE, null, ex);
+                    }
+                }
+            }
+        }, "replay-discarder");
+        discarder.setDaemon(true);
+        discarder.start();
+    }
+
+    /**
+     * Receives recorded frames. The payload array is reused for following
+     * frames.
+     */
+    public static interface FrameVisitor {
+
+        public void onFrame(long connectionId, long timestampNanos, byte direction, int frameId, byte[] payload, int length) throws IOException;
+    }
+
+    /**
+     * Describes a finished replay.
+     */
+    public static final class ReplayStatistics {
+
+        public final long frames;
+        public final long payloadBytes;
+        public final int connections;
+        public final long elapsedNanos;
+
+        ReplayStatistics(long frames, long payloadBytes, int connections, long elapsedNanos) {
+            this.frames = frames;
+            this.payloadBytes = payloadBytes;
+            this.connections = connections;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        /**
+         *
+         * @return replayed frames per second.
+         */
+        public double getFramesPerSecond() {
+            return elapsedNanos > 0 ? frames * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "ReplayStatistics[frames=" + frames + " payloadBytes=" + payloadBytes + " connections=" + connections + " elapsedMs=" + elapsedNanos / 1000000 + " framesPerSecond=" + (long) getFramesPerSecond() + "]";
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package core;
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * How a thread waits for the other side of shared memory, either for bytes to
+ * read or for space to write them. Spinning reacts within nanoseconds but
+ * keeps a core busy, parking frees the core at the cost of wake up latency.
+ *
+ * @author Michał Furgał
+ */
+public enum WaitStrategy {
+
+    /**
+     * Keeps checking without ever giving up the core.
+     */
+    BUSY_SPIN,
+    /**
+     * Gives up the core to other runnable threads between checks.
+     */
+    YIELD,
+    /**
+     * Spins for a while, then parks for periods growing from 1 microsecond
+     * up to 1 millisecond.
+     */
+    PARK;
+
+    private static final int SPINS_BEFORE_PARKING = 1000;
+    private static final long MAX_PARK_IN_NANOSECONDS = 1000000;
+
+    /**
+     * Waits once, before checking the other side again.
+     *
+     * @param idleCount how many checks in a row found nothing to do.
+     */
+    void idle(int idleCount) {
+        switch (this) {
+            case BUSY_SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            default:
+                if (idleCount >= SPINS_BEFORE_PARKING) {
+                    final int doublings = Math.min(idleCount - SPINS_BEFORE_PARKING, 20);
+                    LockSupport.parkNanos(Math.min(MAX_PARK_IN_NANOSECONDS, 1000L << doublings));
+                }
+        }
+    }
+}
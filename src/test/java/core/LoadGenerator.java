@@ -0,0 +1,356 @@
+package core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Loopback load generator. Starts a {@link Server} and a configurable number
+ * of {@link Client}s in this process, makes every client send
+ * {@link LoadTestMessage}s at a fixed rate and lets the server fan them out
+ * back to clients. Reports throughput, end-to-end latency percentiles, CPU and
+ * heap usage.
+ *
+ * Latency is measured from the time a message was meant to be sent, not from
+ * the time it actually was, so stalls of the sender are counted against every
+ * message delayed by them(coordinated omission correction).
+ *
+ * Run with: mvn -Pload-test test-compile exec:java -Dexec.args="--clients
+ * 5000 --rate 20 --size 64 --fanout echo --duration 30"
+ *
+ * @author Michał Furgał
+ */
+public class LoadGenerator {
+
+    private static final int LOAD_TEST_MESSAGE_UID = 4242;
+
+    private int clients = 100;
+    private double ratePerClient = 10;
+    private int payloadSize = 32;
+    private int durationSeconds = 10;
+    private int warmupSeconds = 2;
+    private String fanout = "echo";
+    private int fanoutCount = 4;
+    private int port = 4321;
+    private int senderThreads = 4;
+    private int pollerThreads = 4;
+    private boolean deltaEncoding = false;
+    private int batchBytes = 0;
+    private long batchMicroseconds = 1000;
+    private int decodeThreads = 0;
+    private DecodePool decodePool;
+    private boolean tls = false;
+    private TlsConfiguration clientTls;
+
+    private final NetMessageRegister register = new NetMessageRegister();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong serverReceived = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+    private final List<Server.ClientConnection> serverConnections = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+    private volatile boolean recording = false;
+
+    public static void main(String[] args) throws Exception {
+        final LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            final String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--clients":
+                    clients = Integer.parseInt(value);
+                    break;
+                case "--rate":
+                    ratePerClient = Double.parseDouble(value);
+                    break;
+                case "--size":
+                    payloadSize = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    durationSeconds = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmupSeconds = Integer.parseInt(value);
+                    break;
+                case "--fanout":
+                    fanout = value;
+                    break;
+                case "--fanout-count":
+                    fanoutCount = Integer.parseInt(value);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--sender-threads":
+                    senderThreads = Integer.parseInt(value);
+                    break;
+                case "--poller-threads":
+                    pollerThreads = Integer.parseInt(value);
+                    break;
+                case "--delta":
+                    deltaEncoding = Boolean.parseBoolean(value);
+                    break;
+                case "--batch-bytes":
+                    batchBytes = Integer.parseInt(value);
+                    break;
+                case "--batch-us":
+                    batchMicroseconds = Long.parseLong(value);
+                    break;
+                case "--decode-threads":
+                    decodeThreads = Integer.parseInt(value);
+                    break;
+                case "--tls":
+                    tls = Boolean.parseBoolean(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option:" + args[i] + ", supported: --clients --rate --size --duration --warmup --fanout(echo|broadcast|random|none) --fanout-count --port --sender-threads --poller-threads --delta --batch-bytes --batch-us --decode-threads --tls");
+            }
+            i++;
+        }
+        if (payloadSize < 0 || payloadSize > LoadTestMessage.MAX_PAYLOAD_SIZE_BYTES) {
+            throw new IllegalArgumentException("--size must be within [0, " + LoadTestMessage.MAX_PAYLOAD_SIZE_BYTES + "]");
+        }
+        senderThreads = Math.max(1, Math.min(senderThreads, clients));
+        pollerThreads = Math.max(1, Math.min(pollerThreads, clients));
+    }
+
+    private void run() throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        Logger.getLogger("core").setLevel(Level.WARNING);
+        register.register(LoadTestMessage.class, LOAD_TEST_MESSAGE_UID);
+        System.out.println("clients=" + clients + " ratePerClient=" + ratePerClient + " size=" + payloadSize + " fanout=" + fanout + " tls=" + tls + " duration=" + durationSeconds + "s warmup=" + warmupSeconds + "s");
+
+        if (decodeThreads > 0) {
+            decodePool = new DecodePool(decodeThreads);
+        }
+        final Server server = createServer();
+        if (tls) {
+            server.setTlsConfiguration(SelfSignedCertificates.serverConfiguration());
+            clientTls = SelfSignedCertificates.clientConfiguration();
+        }
+        server.startServer(port, register);
+
+        final Client[] connected = connectClients();
+        final List<Thread> workers = new ArrayList<>();
+        final long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        for (int t = 0; t < senderThreads; t++) {
+            final int threadIndex = t;
+            workers.add(startWorker("load-sender-" + t, new Runnable() {
+                @Override
+                public void run() {
+                    runSender(connected, threadIndex, startNanos);
+                }
+            }));
+        }
+        for (int t = 0; t < pollerThreads; t++) {
+            final int threadIndex = t;
+            workers.add(startWorker("load-poller-" + t, new Runnable() {
+                @Override
+                public void run() {
+                    runPoller(connected, threadIndex);
+                }
+            }));
+        }
+
+        report(warmupSeconds, durationSeconds);
+
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        for (Client client : connected) {
+            client.disconnect();
+        }
+        server.stopServer();
+    }
+
+    private Server createServer() {
+        final Server server = new Server();
+        server.setDecodePool(decodePool);
+        final Random random = new Random();
+        server.setOnClientConnectedListener(new Server.OnClientConnectedListener() {
+            @Override
+            public void onClientConnected(Server.ClientConnection clientConnection) {
+                clientConnection.transceiver.setDeltaEncodingEnabled(deltaEncoding);
+                clientConnection.transceiver.setBatching(batchBytes, batchMicroseconds);
+                serverConnections.add(clientConnection);
+            }
+        });
+        server.setOnClientDisconnectedListener(new Server.OnClientDisconnectedListener() {
+            @Override
+            public void onClientDisconnected(Server.ClientConnection clientConnection) {
+                serverConnections.remove(clientConnection);
+            }
+        });
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    serverReceived.incrementAndGet();
+                    final AbstractNetMessage message = (AbstractNetMessage) next;
+                    switch (fanout) {
+                        case "echo":
+                            clientConnection.transceiver.send(message);
+                            break;
+                        case "broadcast":
+                            for (Server.ClientConnection target : serverConnections) {
+                                target.transceiver.send(message);
+                            }
+                            break;
+                        case "random":
+                            final int size = serverConnections.size();
+                            for (int i = 0; i < fanoutCount && size > 0; i++) {
+                                serverConnections.get(random.nextInt(size)).transceiver.send(message);
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            }
+        });
+        return server;
+    }
+
+    private Client[] connectClients() {
+        final Client[] connected = new Client[clients];
+        int failures = 0;
+        for (int i = 0; i < clients; i++) {
+            connected[i] = new Client("127.0.0.1", port, register);
+            connected[i].setDeltaEncodingEnabled(deltaEncoding);
+            connected[i].setBatching(batchBytes, batchMicroseconds);
+            connected[i].setDecodePool(decodePool);
+            connected[i].setTlsConfiguration(clientTls);
+            if (!connected[i].connect()) {
+                failures++;
+            }
+        }
+        System.out.println("connected clients=" + (clients - failures) + " failed=" + failures);
+        return connected;
+    }
+
+    private void runSender(Client[] connected, int threadIndex, long startNanos) {
+        final long intervalNanos = (long) (1_000_000_000d / ratePerClient);
+        final List<Integer> mine = new ArrayList<>();
+        for (int i = threadIndex; i < connected.length; i += senderThreads) {
+            mine.add(i);
+        }
+        //clients are staggered evenly within one interval, so iterating them in order follows their schedule
+        final long[] nextSendNanos = new long[mine.size()];
+        for (int j = 0; j < nextSendNanos.length; j++) {
+            nextSendNanos[j] = startNanos + intervalNanos * mine.get(j) / connected.length;
+        }
+        final byte[] payload = new byte[payloadSize];
+        while (running) {
+            for (int j = 0; j < nextSendNanos.length && running; j++) {
+                long wait;
+                while ((wait = nextSendNanos[j] - System.nanoTime()) > 0 && running) {
+                    LockSupport.parkNanos(wait);
+                }
+                final LoadTestMessage message = new LoadTestMessage();
+                message.intendedSendNanos = nextSendNanos[j];
+                message.clientIndex = mine.get(j);
+                message.payload = payload;
+                if (connected[mine.get(j)].sendMessages(Collections.<AbstractNetMessage>singletonList(message))) {
+                    sent.incrementAndGet();
+                } else {
+                    sendFailures.incrementAndGet();
+                }
+                nextSendNanos[j] += intervalNanos;
+            }
+        }
+    }
+
+    private void runPoller(Client[] connected, int threadIndex) {
+        while (running) {
+            boolean any = false;
+            for (int i = threadIndex; i < connected.length; i += pollerThreads) {
+                final ConcurrentLinkedQueue<AbstractNetMessage> messages = connected[i].getMessages();
+                AbstractNetMessage next;
+                while ((next = messages.poll()) != null) {
+                    any = true;
+                    final long now = System.nanoTime();
+                    received.incrementAndGet();
+                    if (recording && next instanceof LoadTestMessage) {
+                        histogram.record(now - ((LoadTestMessage) next).intendedSendNanos);
+                    }
+                }
+            }
+            if (!any) {
+                LockSupport.parkNanos(20_000);
+            }
+        }
+    }
+
+    private void report(int warmup, int duration) throws InterruptedException {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        final int processors = Runtime.getRuntime().availableProcessors();
+        long lastSent = 0;
+        long lastReceived = 0;
+        long lastCpuNanos = processCpuNanos(os);
+        long maxHeapUsed = 0;
+        double cpuSum = 0;
+        int cpuSamples = 0;
+        //without warmup the first second is recorded as well
+        recording = warmup == 0;
+        for (int second = 1; second <= warmup + duration; second++) {
+            Thread.sleep(1000);
+            if (second == warmup) {
+                recording = true;
+            }
+            final long nowSent = sent.get();
+            final long nowReceived = received.get();
+            final long cpuNanos = processCpuNanos(os);
+            final double cpu = cpuNanos < 0 ? -1 : (cpuNanos - lastCpuNanos) / 1e9 / processors * 100;
+            final long heapUsed = memory.getHeapMemoryUsage().getUsed();
+            if (second > warmup) {
+                maxHeapUsed = Math.max(maxHeapUsed, heapUsed);
+                if (cpu >= 0) {
+                    cpuSum += cpu;
+                    cpuSamples++;
+                }
+            }
+            System.out.println(String.format("%s %3ds sent/s=%d received/s=%d cpu=%.1f%% heapUsedMB=%d", second <= warmup ? "[warmup]" : "[run]   ", second, nowSent - lastSent, nowReceived - lastReceived, cpu, heapUsed >> 20));
+            lastSent = nowSent;
+            lastReceived = nowReceived;
+            lastCpuNanos = cpuNanos;
+        }
+        System.out.println("=== summary ===");
+        System.out.println("sent=" + sent.get() + " serverReceived=" + serverReceived.get() + " clientReceived=" + received.get() + " sendFailures=" + sendFailures.get());
+        System.out.println(String.format("latency(us) samples=%d p50=%.1f p99=%.1f p999=%.1f max=%.1f", histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3, histogram.getMaxValue() / 1e3));
+        System.out.println(String.format("avgCpu=%.1f%% maxHeapUsedMB=%d", cpuSamples == 0 ? -1d : cpuSum / cpuSamples, maxHeapUsed >> 20));
+    }
+
+    private static long processCpuNanos(OperatingSystemMXBean os) {
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static Thread startWorker(String name, Runnable runnable) {
+        final Thread thread = new Thread(runnable, name);
+        thread.start();
+        return thread;
+    }
+}
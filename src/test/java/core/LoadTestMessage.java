@@ -0,0 +1,48 @@
+package core;
+
+
+/**
+ * A message sent by {@link LoadGenerator}, carrying the time it was meant to
+ * be sent at, index of the sending client and a payload of configurable
+ * size.
+ *
+ * @author Michał Furgał
+ */
+public class LoadTestMessage extends AbstractNetMessage {
+
+    public static final int HEADER_SIZE_BYTES = 8 + 4 + 4;
+    public static final int MAX_PAYLOAD_SIZE_BYTES = SocketTransceiver.PACKET_SIZE_BYTES - HEADER_SIZE_BYTES;
+    public long intendedSendNanos;
+    public int clientIndex;
+    public byte[] payload = new byte[0];
+
+    @Override
+    public void fromBytes(byte[] bytes) {
+        intendedSendNanos = PrimitiveToByteConversionUtils.convertByteArrayToLong(bytes, 0);
+        clientIndex = PrimitiveToByteConversionUtils.convertByteArrayToInt(bytes, 8);
+        int payloadLength = PrimitiveToByteConversionUtils.convertByteArrayToInt(bytes, 12);
+        payload = new byte[payloadLength];
+        System.arraycopy(bytes, HEADER_SIZE_BYTES, payload, 0, payloadLength);
+    }
+
+    @Override
+    public void intoBytes(byte[] bytes) {
+        System.arraycopy(PrimitiveToByteConversionUtils.convertLongToByteArray(intendedSendNanos), 0, bytes, 0, 8);
+        System.arraycopy(PrimitiveToByteConversionUtils.convertIntToByteArray(clientIndex), 0, bytes, 8, 4);
+        System.arraycopy(PrimitiveToByteConversionUtils.convertIntToByteArray(payload.length), 0, bytes, 12, 4);
+        System.arraycopy(payload, 0, bytes, HEADER_SIZE_BYTES, payload.length);
+    }
+
+    @Override
+    public byte[] intoBytes2() {
+        byte[] bytes = new byte[HEADER_SIZE_BYTES + payload.length];
+        intoBytes(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "loadTestMsg:" + clientIndex + "@" + intendedSendNanos;
+    }
+
+}
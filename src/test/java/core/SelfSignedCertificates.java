@@ -0,0 +1,66 @@
+package core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+
+/**
+ * Creates self-signed certificates with keytool of the running JDK, used to
+ * test and benchmark encrypted connections locally. The certificate is issued
+ * for localhost and 127.0.0.1, as clients verify the host name.
+ *
+ * @author Michał Furgał
+ */
+public class SelfSignedCertificates {
+
+    static final char[] PASSWORD = "changeit".toCharArray();
+    private static KeyStore keyStore;
+    private static KeyStore otherHostKeyStore;
+
+    public static synchronized KeyStore getKeyStore() throws Exception {
+        if (keyStore == null) {
+            keyStore = createKeyStore("localhost", "dns:localhost,ip:127.0.0.1");
+        }
+        return keyStore;
+    }
+
+    /**
+     *
+     * @return a store holding a certificate issued for another host, which
+     * clients connecting to localhost must refuse.
+     */
+    public static synchronized KeyStore getOtherHostKeyStore() throws Exception {
+        if (otherHostKeyStore == null) {
+            otherHostKeyStore = createKeyStore("other.invalid", "dns:other.invalid");
+        }
+        return otherHostKeyStore;
+    }
+
+    private static KeyStore createKeyStore(String commonName, String subjectAlternativeNames) throws Exception {
+        final File file = File.createTempFile("javanetworking-test", ".p12");
+        file.delete();
+        file.deleteOnExit();
+        final String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+        final Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=" + commonName, "-ext", "SAN=" + subjectAlternativeNames, "-validity", "2", "-storetype", "PKCS12", "-keystore", file.getAbsolutePath(),
+                "-storepass", new String(PASSWORD), "-keypass", new String(PASSWORD)).inheritIO().start();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException("keytool exited with " + process.exitValue());
+        }
+        final KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(file)) {
+            store.load(in, PASSWORD);
+        }
+        return store;
+    }
+
+    public static TlsConfiguration serverConfiguration() throws Exception {
+        return TlsConfiguration.create(getKeyStore(), PASSWORD, null);
+    }
+
+    public static TlsConfiguration clientConfiguration() throws Exception {
+        return TlsConfiguration.create(null, null, getKeyStore());
+    }
+}
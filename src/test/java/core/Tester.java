@@ -4,13 +4,38 @@ import core.Server;
 import core.AbstractNetMessage;
 import core.NetMessageRegister;
 import core.SocketTransceiver;
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.net.ssl.SSLSession;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.JUnitCore;
@@ -60,6 +85,1594 @@ public class Tester {
         stopServer();
     }
 
+    @Test
+    public void testDatagramReliableOrderedChannel() throws InterruptedException {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        server = new Server();
+        server.setDatagramPort(0);
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    received.add(((MyTestStringMessage) next).s1);
+                }
+            }
+        });
+        server.startServer(portNumber + 1, MyTestMessageRegisterSingleton.getSingleton());
+
+        Client client = new Client(hostName, portNumber + 1, MyTestMessageRegisterSingleton.getSingleton());
+        Assert.assertTrue(client.connect());
+        Assert.assertTrue(client.connectDatagram());
+        client.getDatagramSession().setChannelMode(1, DeliveryMode.RELIABLE_ORDERED);
+
+        final List<AbstractNetMessage> toSend = new ArrayList<AbstractNetMessage>();
+        for (int i = 0; i < 20; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "datagram " + i;
+            toSend.add(stringMessage);
+        }
+        Assert.assertTrue(client.sendDatagramMessages(1, toSend));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.disconnect();
+        server.stopServer();
+        Assert.assertEquals(20, received.size());
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals("datagram " + i, received.get(i));
+        }
+    }
+
+    @Test
+    public void testDatagramHandshakeNeedsSecretAndResendsAreLimited() throws Exception {
+        final long token = 42;
+        final byte[] secret = new byte[SocketTransceiver.SESSION_SECRET_LENGTH_BYTES];
+        Arrays.fill(secret, (byte) 7);
+        final DatagramTransceiver serverSide = new DatagramTransceiver(MyTestMessageRegisterSingleton.getSingleton());
+        final DatagramTransceiver clientSide = new DatagramTransceiver(MyTestMessageRegisterSingleton.getSingleton());
+        final DatagramTransceiver attackerSide = new DatagramTransceiver(MyTestMessageRegisterSingleton.getSingleton());
+        serverSide.bind();
+        clientSide.bind();
+        attackerSide.bind();
+        try {
+            final DatagramSession serverSession = serverSide.createSession(token, secret, new ConcurrentLinkedQueue<AbstractNetMessage>());
+            final InetSocketAddress serverAddress = new InetSocketAddress(hostName, serverSide.getLocalPort());
+            final DatagramSession clientSession = clientSide.createSession(token, secret, new ConcurrentLinkedQueue<AbstractNetMessage>());
+            clientSession.setRemoteAddress(serverAddress);
+            Assert.assertTrue(clientSession.handshake(2000));
+            final SocketAddress clientAddress = serverSession.getRemoteAddress();
+            Assert.assertEquals(clientSide.getLocalPort(), ((InetSocketAddress) clientAddress).getPort());
+
+            //the token alone, as seen in any datagram, does not move the session
+            final DatagramSession forged = attackerSide.createSession(token, new byte[SocketTransceiver.SESSION_SECRET_LENGTH_BYTES], new ConcurrentLinkedQueue<AbstractNetMessage>());
+            forged.setRemoteAddress(serverAddress);
+            Assert.assertFalse(forged.handshake(300));
+            attackerSide.removeSession(token);
+            //neither does a replay of the first handshake of the client, which has the same counter and signature
+            final DatagramSession replayed = attackerSide.createSession(token, secret, new ConcurrentLinkedQueue<AbstractNetMessage>());
+            replayed.setRemoteAddress(serverAddress);
+            Assert.assertFalse(replayed.handshake(300));
+            Assert.assertEquals(clientAddress, serverSession.getRemoteAddress());
+
+            //a reliable packet nobody acknowledges fails the whole session after the resend limit
+            final CountDownLatch failed = new CountDownLatch(1);
+            clientSession.setOnSessionFailedListener(new DatagramSession.OnSessionFailedListener() {
+                @Override
+                public void onSessionFailed(DatagramSession session) {
+                    failed.countDown();
+                }
+            });
+            clientSide.setResendIntervalInMilliseconds(10);
+            clientSide.setMaxResends(3);
+            serverSide.close();
+            clientSession.setChannelMode(1, DeliveryMode.RELIABLE_ORDERED);
+            MyTestStringMessage lost = new MyTestStringMessage();
+            lost.s1 = "lost";
+            Assert.assertTrue(clientSession.send(1, lost, lost));
+            Assert.assertTrue(failed.await(2, TimeUnit.SECONDS));
+            Assert.assertTrue(clientSession.isFailed());
+            Assert.assertEquals(0, clientSession.getUnacknowledgedCount());
+            Assert.assertEquals(2, clientSession.getDroppedCount());
+            //nothing is sent on a failed session, instead of being parked behind the lost packet by the remote side
+            Assert.assertFalse(clientSession.send(1, lost));
+            Assert.assertEquals(0, clientSession.getUnacknowledgedCount());
+        } finally {
+            serverSide.close();
+            clientSide.close();
+            attackerSide.close();
+        }
+    }
+
+    @Test
+    public void testDeltaEncodedMessages() throws InterruptedException {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        server = new Server();
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    received.add(((MyTestStringMessage) next).s1);
+                }
+            }
+        });
+        server.startServer(portNumber + 2, MyTestMessageRegisterSingleton.getSingleton());
+
+        Client client = new Client(hostName, portNumber + 2, MyTestMessageRegisterSingleton.getSingleton());
+        client.setDeltaEncodingEnabled(true);
+        Assert.assertTrue(client.connect());
+        final List<AbstractNetMessage> toSend = new ArrayList<AbstractNetMessage>();
+        for (int i = 0; i < 100; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "position update " + (i % 7);
+            toSend.add(stringMessage);
+        }
+        Assert.assertTrue(client.sendMessages(toSend));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < 100 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.disconnect();
+        server.stopServer();
+        Assert.assertEquals(100, received.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("position update " + (i % 7), received.get(i));
+        }
+    }
+
+    @Test
+    public void testOutboundSchedulerDrainsHighPriorityFirstWithoutStarvingLow() {
+        final OutboundScheduler scheduler = new OutboundScheduler();
+        for (int i = 0; i < 40; i++) {
+            MyTestStringMessage low = new MyTestStringMessage();
+            low.s1 = "low";
+            scheduler.enqueue(low, MessagePriority.LOW);
+            MyTestStringMessage high = new MyTestStringMessage();
+            high.s1 = "high";
+            scheduler.enqueue(high, MessagePriority.HIGH);
+        }
+        Assert.assertEquals(40, scheduler.getStatistics(MessagePriority.LOW).depth);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < 16; i++) {
+                Assert.assertEquals("high", ((MyTestStringMessage) scheduler.next()).s1);
+            }
+            Assert.assertEquals("low", ((MyTestStringMessage) scheduler.next()).s1);
+        }
+        Assert.assertEquals(32, scheduler.getStatistics(MessagePriority.HIGH).sentCount);
+        Assert.assertEquals(38, scheduler.getStatistics(MessagePriority.LOW).depth);
+        Assert.assertEquals(46, scheduler.clear());
+        Assert.assertNull(scheduler.next());
+    }
+
+    @Test
+    public void testConcurrentSendersDeliverEveryMessageInOrder() throws InterruptedException {
+        final OutboundScheduler scheduler = new OutboundScheduler();
+        Assert.assertEquals(21, scheduler.getRoundSize());
+        scheduler.setWeight(MessagePriority.LOW, 3);
+        Assert.assertEquals(3, scheduler.getWeight(MessagePriority.LOW));
+        Assert.assertEquals(23, scheduler.getRoundSize());
+
+        final Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+        final AtomicInteger receivedCount = new AtomicInteger();
+        server = new Server();
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    final String[] parts = ((MyTestStringMessage) next).s1.split(" ");
+                    List<Integer> sequence = received.get(parts[0]);
+                    if (sequence == null) {
+                        sequence = new ArrayList<Integer>();
+                        received.put(parts[0], sequence);
+                    }
+                    sequence.add(Integer.parseInt(parts[1]));
+                    receivedCount.incrementAndGet();
+                }
+            }
+        });
+        server.startServer(portNumber + 22, MyTestMessageRegisterSingleton.getSingleton());
+        final Client client = new Client(hostName, portNumber + 22, MyTestMessageRegisterSingleton.getSingleton());
+        Assert.assertTrue(client.connect());
+
+        final int senders = 4;
+        final int messagesPerSender = 500;
+        final CountDownLatch done = new CountDownLatch(senders);
+        for (int t = 0; t < senders; t++) {
+            final String sender = "sender" + t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < messagesPerSender; i += 50) {
+                        final List<AbstractNetMessage> burst = new ArrayList<AbstractNetMessage>();
+                        for (int j = i; j < i + 50; j++) {
+                            MyTestStringMessage stringMessage = new MyTestStringMessage();
+                            stringMessage.s1 = sender + " " + j;
+                            burst.add(stringMessage);
+                        }
+                        client.sendMessages(burst);
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        //bursts are longer than a round, the rest of them is written by the async writers
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (receivedCount.get() < senders * messagesPerSender && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.disconnect();
+        server.stopServer();
+        Assert.assertEquals(senders * messagesPerSender, receivedCount.get());
+        for (List<Integer> sequence : received.values()) {
+            for (int i = 0; i < messagesPerSender; i++) {
+                Assert.assertEquals(Integer.valueOf(i), sequence.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testServerRejectsConnectionsAboveLimit() throws InterruptedException {
+        server = new Server();
+        server.setMaxConnections(1);
+        server.startServer(portNumber + 3, MyTestMessageRegisterSingleton.getSingleton());
+
+        Client first = new Client(hostName, portNumber + 3, MyTestMessageRegisterSingleton.getSingleton());
+        Assert.assertTrue(first.connect());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getRejectedConnectionsCount() == 0 && System.currentTimeMillis() < deadline) {
+            Client second = new Client(hostName, portNumber + 3, MyTestMessageRegisterSingleton.getSingleton());
+            second.connect();
+            Thread.sleep(100);
+            second.disconnect();
+        }
+        first.disconnect();
+        server.stopServer();
+        Assert.assertTrue(server.getRejectedConnectionsCount() >= 1);
+    }
+
+    @Test
+    public void testLatencyHistogramPercentiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        Assert.assertEquals(10000, histogram.getTotalCount());
+        Assert.assertEquals(5_000_000, histogram.getValueAtPercentile(50), 5_000_000 * 0.01);
+        Assert.assertEquals(9_900_000, histogram.getValueAtPercentile(99), 9_900_000 * 0.01);
+        Assert.assertEquals(10_000_000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testTlsServerClientCommunication() throws Exception {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        //checked on the test thread, assertion errors thrown by the server thread would be lost
+        final List<Boolean> serverSideTls = Collections.synchronizedList(new ArrayList<Boolean>());
+        server = new Server();
+        server.setTlsConfiguration(SelfSignedCertificates.serverConfiguration());
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    serverSideTls.add(clientConnection.transceiver.isTlsEnabled());
+                    clientConnection.transceiver.send((AbstractNetMessage) next);
+                }
+            }
+        });
+        server.startServer(portNumber + 4, MyTestMessageRegisterSingleton.getSingleton());
+
+        final TlsConfiguration clientTls = SelfSignedCertificates.clientConfiguration();
+        final List<SSLSession> sessions = new ArrayList<SSLSession>();
+        for (int connection = 0; connection < 2; connection++) {
+            Client client = new Client(hostName, portNumber + 4, MyTestMessageRegisterSingleton.getSingleton());
+            client.setTlsConfiguration(clientTls);
+            Assert.assertTrue(client.connect());
+            final List<AbstractNetMessage> toSend = new ArrayList<AbstractNetMessage>();
+            for (int i = 0; i < 10; i++) {
+                MyTestStringMessage stringMessage = new MyTestStringMessage();
+                stringMessage.s1 = "secret " + i;
+                toSend.add(stringMessage);
+            }
+            Assert.assertTrue(client.sendMessages(toSend));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (received.size() < 10 * (connection + 1) && System.currentTimeMillis() < deadline) {
+                AbstractNetMessage next = client.getMessages().poll();
+                if (next != null) {
+                    received.add(((MyTestStringMessage) next).s1);
+                } else {
+                    Thread.sleep(5);
+                }
+            }
+            sessions.add(client.getTlsSession());
+            client.disconnect();
+            //a new session would be created at least this much later
+            Thread.sleep(20);
+        }
+        server.stopServer();
+        Assert.assertEquals(20, received.size());
+        Assert.assertEquals("secret 9", received.get(19));
+        Assert.assertEquals(20, serverSideTls.size());
+        Assert.assertFalse(serverSideTls.contains(Boolean.FALSE));
+        //the second connection resumes the session cached by the first one, keeping its creation time
+        Assert.assertEquals(sessions.get(0).getCreationTime(), sessions.get(1).getCreationTime());
+    }
+
+    @Test
+    public void testTlsClientWhichNeverShakesHandsDoesNotBlockOthers() throws Exception {
+        final AtomicInteger connected = new AtomicInteger();
+        server = new Server();
+        server.setTlsConfiguration(SelfSignedCertificates.serverConfiguration());
+        server.setOnClientConnectedListener(new Server.OnClientConnectedListener() {
+            @Override
+            public void onClientConnected(Server.ClientConnection clientConnection) {
+                connected.incrementAndGet();
+            }
+        });
+        server.startServer(portNumber + 24, MyTestMessageRegisterSingleton.getSingleton());
+        final Socket silent = new Socket(hostName, portNumber + 24);
+
+        final long started = System.currentTimeMillis();
+        Client client = new Client(hostName, portNumber + 24, MyTestMessageRegisterSingleton.getSingleton());
+        client.setTlsConfiguration(SelfSignedCertificates.clientConfiguration());
+        Assert.assertTrue(client.connect());
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (connected.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        //the acceptor hands both connections over at once, the handshake timeout is 10 seconds
+        Assert.assertEquals(2, connected.get());
+        Assert.assertTrue(System.currentTimeMillis() - started < 5000);
+        client.disconnect();
+        silent.close();
+        server.stopServer();
+    }
+
+    @Test
+    public void testStartServerAsyncCompletesOnBindAndFailsOnConflict() throws Exception {
+        server = new Server();
+        server.setAcceptorThreads(2);
+        Assert.assertSame(server, server.startServerAsync(portNumber + 5, MyTestMessageRegisterSingleton.getSingleton()).get(2, TimeUnit.SECONDS));
+        Assert.assertTrue(server.isRunning());
+        Assert.assertEquals(portNumber + 5, server.getLocalPort());
+
+        Client client = new Client(hostName, portNumber + 5, MyTestMessageRegisterSingleton.getSingleton());
+        Assert.assertTrue(client.connect());
+        client.disconnect();
+
+        Server conflicting = new Server();
+        try {
+            conflicting.startServerAsync(portNumber + 5, MyTestMessageRegisterSingleton.getSingleton()).get(2, TimeUnit.SECONDS);
+            Assert.fail("bind should fail while the port is in use");
+        } catch (ExecutionException ex) {
+            Assert.assertTrue(ex.getCause() instanceof IOException);
+        }
+        Assert.assertFalse(conflicting.isRunning());
+        server.stopServer();
+        Assert.assertFalse(server.isRunning());
+    }
+
+    @Test
+    public void testFailedStartsDoNotLeaveReceiverThreadsRunning() throws Exception {
+        server = new Server();
+        server.startServer(portNumber + 21, MyTestMessageRegisterSingleton.getSingleton());
+        final Set<Thread> before = new HashSet<>(Thread.getAllStackTraces().keySet());
+        for (int i = 0; i < 100; i++) {
+            Server conflicting = new Server();
+            try {
+                conflicting.startServerAsync(portNumber + 21, MyTestMessageRegisterSingleton.getSingleton()).get(2, TimeUnit.SECONDS);
+                Assert.fail("bind should fail while the port is in use");
+            } catch (ExecutionException ex) {
+                Assert.assertTrue(ex.getCause() instanceof IOException);
+            }
+        }
+
+        final long deadline = System.currentTimeMillis() + 2000;
+        int receivers;
+        do {
+            Thread.sleep(20);
+            receivers = 0;
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (!before.contains(thread) && "server-message-receiver".equals(thread.getName()) && thread.isAlive()) {
+                    receivers++;
+                }
+            }
+        } while (receivers > 0 && System.currentTimeMillis() < deadline);
+        Assert.assertEquals(0, receivers);
+        server.stopServer();
+    }
+
+    @Test
+    public void testBatchedMessagesArriveInOrder() throws InterruptedException {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        server = new Server();
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    received.add(((MyTestStringMessage) next).s1);
+                }
+            }
+        });
+        server.startServer(portNumber + 6, MyTestMessageRegisterSingleton.getSingleton());
+
+        Client client = new Client(hostName, portNumber + 6, MyTestMessageRegisterSingleton.getSingleton());
+        client.setDeltaEncodingEnabled(true);
+        client.setBatching(16 * 1024, 1000);
+        Assert.assertTrue(client.connect());
+        for (int burst = 0; burst < 3; burst++) {
+            final List<AbstractNetMessage> toSend = new ArrayList<AbstractNetMessage>();
+            for (int i = 0; i < 100; i++) {
+                MyTestStringMessage stringMessage = new MyTestStringMessage();
+                stringMessage.s1 = "batched " + (burst * 100 + i);
+                toSend.add(stringMessage);
+            }
+            Assert.assertTrue(client.sendMessages(toSend));
+        }
+        //a single message must not wait for the batch to fill up
+        MyTestStringMessage last = new MyTestStringMessage();
+        last.s1 = "batched 300";
+        Assert.assertTrue(client.sendMessages(Arrays.<AbstractNetMessage>asList(last)));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < 301 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.disconnect();
+        server.stopServer();
+        Assert.assertEquals(301, received.size());
+        for (int i = 0; i <= 300; i++) {
+            Assert.assertEquals("batched " + i, received.get(i));
+        }
+    }
+
+    @Test
+    public void testDecodePoolPreservesPerConnectionOrder() throws InterruptedException {
+        final Map<Server.ClientConnection, List<String>> received = new ConcurrentHashMap<Server.ClientConnection, List<String>>();
+        final DecodePool decodePool = new DecodePool(4);
+        server = new Server();
+        server.setDecodePool(decodePool);
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                List<String> messages = received.get(clientConnection);
+                if (messages == null) {
+                    messages = new ArrayList<String>();
+                    received.put(clientConnection, messages);
+                }
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    messages.add(((MyTestStringMessage) next).s1);
+                }
+            }
+        });
+        server.startServer(portNumber + 7, MyTestMessageRegisterSingleton.getSingleton());
+
+        final Client[] clients = new Client[4];
+        for (int c = 0; c < clients.length; c++) {
+            clients[c] = new Client(hostName, portNumber + 7, MyTestMessageRegisterSingleton.getSingleton());
+            //mix plain, delta encoded and batched frames
+            clients[c].setDeltaEncodingEnabled(c % 2 == 1);
+            clients[c].setBatching(c >= 2 ? 4096 : 0, 0);
+            Assert.assertTrue(clients[c].connect());
+        }
+        for (int i = 0; i < 250; i++) {
+            for (int c = 0; c < clients.length; c++) {
+                MyTestStringMessage stringMessage = new MyTestStringMessage();
+                stringMessage.s1 = c + ":" + i;
+                Assert.assertTrue(clients[c].sendMessages(Arrays.<AbstractNetMessage>asList(stringMessage)));
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            int total = 0;
+            for (List<String> messages : received.values()) {
+                total += messages.size();
+            }
+            if (total == 1000) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        for (Client client : clients) {
+            client.disconnect();
+        }
+        server.stopServer();
+        decodePool.shutdown();
+        Assert.assertEquals(4, received.size());
+        for (List<String> messages : received.values()) {
+            Assert.assertEquals(250, messages.size());
+            final String client = messages.get(0).split(":")[0];
+            for (int i = 0; i < 250; i++) {
+                Assert.assertEquals(client + ":" + i, messages.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testPooledBufferAllocatorRecyclesAndDetectsLeaks() throws InterruptedException {
+        final PooledBufferAllocator allocator = new PooledBufferAllocator(true, 4, 16);
+        final PooledBuffer first = allocator.allocate(100);
+        Assert.assertTrue(first.buffer().isDirect());
+        Assert.assertEquals(128, first.buffer().capacity());
+        Assert.assertEquals(100, first.buffer().limit());
+        first.retain();
+        Assert.assertFalse(first.release());
+        Assert.assertTrue(first.release());
+        try {
+            first.release();
+            Assert.fail("released twice");
+        } catch (IllegalStateException ex) {
+            //expected
+        }
+        //same size class is served from the cache of this thread
+        final PooledBuffer second = allocator.allocate(120);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(120, second.buffer().limit());
+        second.release();
+
+        allocator.setLeakDetectionSamplingInterval(1);
+        allocator.allocate(1000);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (allocator.getLeaksCount() == 0 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, allocator.getLeaksCount());
+    }
+
+    @Test
+    public void testCapturedTrafficReplaysIntoDecoderAndServer() throws Exception {
+        final File captureDirectory = Files.createTempDirectory("capture").toFile();
+        final TrafficCapture capture = new TrafficCapture(captureDirectory, 4096);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final Server.OnClientMessageListener collector = new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    received.add(((MyTestStringMessage) next).s1);
+                }
+            }
+        };
+        server = new Server();
+        server.setTrafficCapture(capture);
+        server.setOnClientMessageListener(collector);
+        server.startServer(portNumber + 8, MyTestMessageRegisterSingleton.getSingleton());
+        Client client = new Client(hostName, portNumber + 8, MyTestMessageRegisterSingleton.getSingleton());
+        client.setDeltaEncodingEnabled(true);
+        Assert.assertTrue(client.connect());
+        for (int i = 0; i < 100; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "captured " + i;
+            Assert.assertTrue(client.sendMessages(Arrays.<AbstractNetMessage>asList(stringMessage)));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < 100 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.disconnect();
+        server.stopServer();
+        capture.close();
+        Assert.assertEquals(100, received.size());
+        //small segments make the capture span several files
+        Assert.assertTrue(TrafficCapture.segmentFile(captureDirectory, 1).exists());
+        Assert.assertEquals(0, capture.getDroppedRecordsCount());
+
+        final TrafficReplayer replayer = new TrafficReplayer(captureDirectory);
+        final Map<Long, SocketTransceiver> transceivers = new HashMap<Long, SocketTransceiver>();
+        final TrafficReplayer.ReplayStatistics decoded = replayer.replayToDecoder(MyTestMessageRegisterSingleton.getSingleton(), null, transceivers);
+        Assert.assertEquals(100, decoded.frames);
+        Assert.assertEquals(1, transceivers.size());
+        final ConcurrentLinkedQueue<AbstractNetMessage> replayed = transceivers.values().iterator().next().getReceivedMessages();
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("captured " + i, ((MyTestStringMessage) replayed.poll()).s1);
+        }
+        //decoded by a pool, every message is received once the replay returns
+        final DecodePool decodePool = new DecodePool(4);
+        transceivers.clear();
+        replayer.replayToDecoder(MyTestMessageRegisterSingleton.getSingleton(), decodePool, transceivers);
+        decodePool.shutdown();
+        final ConcurrentLinkedQueue<AbstractNetMessage> pooled = transceivers.values().iterator().next().getReceivedMessages();
+        Assert.assertEquals(100, pooled.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("captured " + i, ((MyTestStringMessage) pooled.poll()).s1);
+        }
+
+        received.clear();
+        server = new Server();
+        server.setOnClientMessageListener(collector);
+        server.startServer(portNumber + 9, MyTestMessageRegisterSingleton.getSingleton());
+        replayer.setSpeed(10);
+        replayer.replayToServer(hostName, portNumber + 9);
+        deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < 100 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        server.stopServer();
+        Assert.assertEquals(100, received.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("captured " + i, received.get(i));
+        }
+        for (int i = 0; TrafficCapture.segmentFile(captureDirectory, i).delete(); i++) {
+        }
+        captureDirectory.delete();
+    }
+
+    @Test
+    public void testClusterForwardsMessagesToOwningNode() throws Exception {
+        final ConsistentHashRing ring = new ConsistentHashRing();
+        ring.add("a");
+        ring.add("b");
+        ring.add("c");
+        final String[] owners = new String[10000];
+        final Map<String, Integer> shares = new HashMap<String, Integer>();
+        for (int key = 0; key < owners.length; key++) {
+            owners[key] = ring.getNode(key);
+            shares.put(owners[key], shares.containsKey(owners[key]) ? shares.get(owners[key]) + 1 : 1);
+        }
+        for (String node : ring.getNodes()) {
+            Assert.assertTrue(node + " owns " + shares.get(node), shares.get(node) > owners.length / 5);
+        }
+        //only keys of the removed node change their owner
+        ring.remove("c");
+        for (int key = 0; key < owners.length; key++) {
+            if (!"c".equals(owners[key])) {
+                Assert.assertEquals(owners[key], ring.getNode(key));
+            }
+        }
+
+        final NetMessageRegister register = MyTestMessageRegisterSingleton.getSingleton();
+        final ClusterNode nodeA = new ClusterNode("a", register);
+        final ClusterNode nodeB = new ClusterNode("b", register);
+        nodeA.setClusterSecret("cluster secret".getBytes("UTF-8"));
+        nodeB.setClusterSecret("cluster secret".getBytes("UTF-8"));
+        nodeA.start(portNumber + 10).get(2, TimeUnit.SECONDS);
+        nodeB.start(portNumber + 11).get(2, TimeUnit.SECONDS);
+        nodeA.addPeer("b", hostName, portNumber + 11);
+        nodeB.addPeer("a", hostName, portNumber + 10);
+        long key = 0;
+        while (!nodeB.isOwner(key)) {
+            key++;
+        }
+        Assert.assertEquals("b", nodeA.getOwner(key));
+
+        final long boundKey = key;
+        final CountDownLatch bound = new CountDownLatch(1);
+        server = new Server();
+        server.setOnClientConnectedListener(new Server.OnClientConnectedListener() {
+            @Override
+            public void onClientConnected(Server.ClientConnection clientConnection) {
+                nodeB.bind(boundKey, clientConnection);
+                bound.countDown();
+            }
+        });
+        server.startServer(portNumber + 12, register);
+        Client client = new Client(hostName, portNumber + 12, register);
+        Assert.assertTrue(client.connect());
+        Assert.assertTrue(bound.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "forwarded " + i;
+            Assert.assertTrue(nodeA.send(key, stringMessage));
+        }
+        //no client is bound to the next key owned by b
+        long unboundKey = key + 1;
+        while (!nodeB.isOwner(unboundKey)) {
+            unboundKey++;
+        }
+        MyTestStringMessage lost = new MyTestStringMessage();
+        lost.s1 = "lost";
+        Assert.assertTrue(nodeA.send(unboundKey, lost));
+
+        final ConcurrentLinkedQueue<AbstractNetMessage> received = client.getMessages();
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((received.size() < 100 || nodeB.getUndeliverableMessagesCount() < 1) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.disconnect();
+        server.stopServer();
+        nodeA.stop();
+        nodeB.stop();
+        Assert.assertEquals(100, received.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("forwarded " + i, ((MyTestStringMessage) received.poll()).s1);
+        }
+        Assert.assertEquals(101, nodeA.getForwardedMessagesCount());
+        Assert.assertEquals(101, nodeB.getReceivedForwardedMessagesCount());
+        Assert.assertEquals(1, nodeB.getUndeliverableMessagesCount());
+    }
+
+    @Test
+    public void testPublishedMessagesReachOnlySubscribers() throws InterruptedException {
+        server = new Server();
+        server.startServer(portNumber + 13, MyTestMessageRegisterSingleton.getSingleton());
+        final Client[] clients = new Client[3];
+        for (int c = 0; c < clients.length; c++) {
+            clients[c] = new Client(hostName, portNumber + 13, MyTestMessageRegisterSingleton.getSingleton());
+            Assert.assertTrue(clients[c].connect());
+        }
+        clients[0].subscribe("news");
+        clients[1].subscribe("news");
+        clients[2].subscribe("weather");
+        long deadline = System.currentTimeMillis() + 2000;
+        while ((server.getTopicStatistics("news") == null || server.getTopicStatistics("news").subscribers < 2 || server.getTopicsCount() < 2) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, server.getTopicsCount());
+        for (int i = 0; i < 50; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "news " + i;
+            Assert.assertEquals(2, server.publish("news", stringMessage));
+        }
+        Assert.assertEquals(0, server.publish("sports", new MyTestStringMessage()));
+
+        deadline = System.currentTimeMillis() + 5000;
+        while ((clients[0].getMessages().size() < 50 || clients[1].getMessages().size() < 50) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        for (int c = 0; c < 2; c++) {
+            Assert.assertEquals(50, clients[c].getMessages().size());
+            for (int i = 0; i < 50; i++) {
+                Assert.assertEquals("news " + i, ((MyTestStringMessage) clients[c].getMessages().poll()).s1);
+            }
+        }
+        Assert.assertTrue(clients[2].getMessages().isEmpty());
+        Server.TopicStatistics news = server.getTopicStatistics("news");
+        Assert.assertEquals(50, news.publishedCount);
+        Assert.assertEquals(100, news.queuedCount);
+
+        //subscribers which can not take any more messages miss them
+        server.setSlowSubscriberPolicy(0, false);
+        MyTestStringMessage missed = new MyTestStringMessage();
+        missed.s1 = "missed";
+        Assert.assertEquals(0, server.publish("news", missed));
+        Assert.assertEquals(2, server.getTopicStatistics("news").droppedCount);
+
+        //topics are removed with their last subscriber
+        clients[2].unsubscribe("weather");
+        clients[0].disconnect();
+        clients[1].disconnect();
+        deadline = System.currentTimeMillis() + 2000;
+        while (server.getTopicsCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        clients[2].disconnect();
+        server.stopServer();
+        Assert.assertEquals(0, server.getTopicsCount());
+    }
+
+    @Test
+    public void testSubscriberBlockingAsyncWriterIsDisconnected() throws Exception {
+        final List<Server.ClientConnection> subscribers = new CopyOnWriteArrayList<Server.ClientConnection>();
+        server = new Server();
+        server.setSlowSubscriberPolicy(Integer.MAX_VALUE, false);
+        server.setAsyncWriteTimeout(300);
+        server.setOnClientConnectedListener(new Server.OnClientConnectedListener() {
+            @Override
+            public void onClientConnected(Server.ClientConnection clientConnection) {
+                server.subscribe("ticks", clientConnection);
+                subscribers.add(clientConnection);
+            }
+        });
+        server.startServer(portNumber + 23, MyTestMessageRegisterSingleton.getSingleton());
+
+        //a subscriber which never reads, so writes to it block once socket buffers are full
+        final Socket stalled = new Socket();
+        stalled.setReceiveBufferSize(4096);
+        stalled.connect(new InetSocketAddress(hostName, portNumber + 23));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (subscribers.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, subscribers.size());
+
+        final Random random = new Random(42);
+        final char[] noise = new char[100];
+        deadline = System.currentTimeMillis() + 10000;
+        while (!subscribers.get(0).transceiver.isDead() && System.currentTimeMillis() < deadline) {
+            for (int i = 0; i < noise.length; i++) {
+                noise[i] = (char) ('a' + random.nextInt(26));
+            }
+            MyTestStringMessage tick = new MyTestStringMessage();
+            tick.s1 = new String(noise);
+            server.publish("ticks", tick);
+        }
+        stalled.close();
+        server.stopServer();
+        Assert.assertTrue(subscribers.get(0).transceiver.isDead());
+    }
+
+    @Test
+    public void testTypedHandlersReceiveEachMessageOnce() throws InterruptedException {
+        final NetMessageRegister register = new NetMessageRegister();
+        register.register(MyTestStringMessage.class, 1337);
+        register.register(LoadTestMessage.class, 1338);
+        final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+        final List<Object> unrouted = Collections.synchronizedList(new ArrayList<Object>());
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        server = new Server();
+        server.onMessage(MyTestStringMessage.class, new Server.MessageHandler<MyTestStringMessage>() {
+            @Override
+            public void onMessage(Server.ClientConnection clientConnection, MyTestStringMessage message) {
+                handled.add(message.s1);
+            }
+        }, executor);
+        //messages without a handler still reach the listener
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    unrouted.add(next);
+                }
+            }
+        });
+        server.startServer(portNumber + 14, register);
+        Client client = new Client(hostName, portNumber + 14, register);
+        Assert.assertTrue(client.connect());
+        for (int i = 0; i < 100; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "typed " + i;
+            LoadTestMessage loadTestMessage = new LoadTestMessage();
+            loadTestMessage.clientIndex = i;
+            Assert.assertTrue(client.sendMessages(Arrays.<AbstractNetMessage>asList(stringMessage, loadTestMessage)));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((handled.size() < 100 || unrouted.size() < 100) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.disconnect();
+        server.stopServer();
+        executor.shutdown();
+        Assert.assertEquals(100, handled.size());
+        Assert.assertEquals(100, unrouted.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals("typed " + i, handled.get(i));
+            Assert.assertEquals(i, ((LoadTestMessage) unrouted.get(i)).clientIndex);
+        }
+    }
+
+    @Test
+    public void testPollModeClientWithoutThreads() throws InterruptedException {
+        final List<String> receivedByServer = Collections.synchronizedList(new ArrayList<String>());
+        final List<Server.ClientConnection> connections = Collections.synchronizedList(new ArrayList<Server.ClientConnection>());
+        server = new Server();
+        server.setOnClientConnectedListener(new Server.OnClientConnectedListener() {
+            @Override
+            public void onClientConnected(Server.ClientConnection clientConnection) {
+                connections.add(clientConnection);
+            }
+        });
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    receivedByServer.add(((MyTestStringMessage) next).s1);
+                }
+            }
+        });
+        server.startServer(portNumber + 15, MyTestMessageRegisterSingleton.getSingleton());
+
+        Client client = new Client(hostName, portNumber + 15, MyTestMessageRegisterSingleton.getSingleton());
+        client.setPollMode(true);
+        //batches wait for the next poll instead of a flusher thread
+        client.setBatching(16 * 1024, 1000);
+        Assert.assertTrue(client.connect());
+        final List<AbstractNetMessage> toSend = new ArrayList<AbstractNetMessage>();
+        for (int i = 0; i < 100; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "polled " + i;
+            toSend.add(stringMessage);
+        }
+        Assert.assertTrue(client.sendMessages(toSend));
+        Assert.assertEquals(0, client.poll(16));
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((receivedByServer.size() < 100 || connections.isEmpty()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(100, receivedByServer.size());
+
+        final List<AbstractNetMessage> toReceive = new ArrayList<AbstractNetMessage>();
+        for (int i = 0; i < 200; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "pushed " + i;
+            toReceive.add(stringMessage);
+        }
+        Assert.assertTrue(connections.get(0).transceiver.send(toReceive));
+        Thread.sleep(100);
+        //nothing is read until the client polls
+        Assert.assertTrue(client.getMessages().isEmpty());
+        deadline = System.currentTimeMillis() + 5000;
+        while (client.getMessages().size() < 200 && System.currentTimeMillis() < deadline) {
+            final int polled = client.poll(16);
+            Assert.assertTrue(polled >= 0 && polled <= 16);
+            if (polled == 0) {
+                Thread.sleep(1);
+            }
+        }
+        Assert.assertEquals(200, client.getMessages().size());
+        for (int i = 0; i < 200; i++) {
+            Assert.assertEquals("pushed " + i, ((MyTestStringMessage) client.getMessages().poll()).s1);
+        }
+
+        server.stopServer();
+        connections.get(0).transceiver.disconnect();
+        deadline = System.currentTimeMillis() + 2000;
+        while (client.poll(16) >= 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(-1, client.poll(16));
+        client.disconnect();
+    }
+
+    @Test
+    public void testConflatingMessagesKeepOnlyLatestPerKey() throws InterruptedException {
+        final NetMessageRegister register = new NetMessageRegister();
+        register.register(MyTestStringMessage.class, 1337);
+        register.setConflating(MyTestStringMessage.class, new NetMessageRegister.ConflationKeyExtractor<MyTestStringMessage>() {
+            @Override
+            public long keyOf(MyTestStringMessage message) {
+                return message.s1.charAt(1) - '0';
+            }
+        });
+
+        //outbound, a newer message takes the place of the waiting one
+        final OutboundScheduler scheduler = new OutboundScheduler();
+        final MyTestStringMessage other = new MyTestStringMessage();
+        for (int i = 0; i < 10; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "k0#" + i;
+            scheduler.enqueueConflating(stringMessage, MessagePriority.NORMAL, 1337, 0);
+            if (i == 0) {
+                scheduler.enqueue(other, MessagePriority.NORMAL);
+            }
+        }
+        Assert.assertEquals(9, scheduler.getConflatedCount());
+        Assert.assertEquals("k0#9", ((MyTestStringMessage) scheduler.next()).s1);
+        Assert.assertSame(other, scheduler.next());
+        Assert.assertNull(scheduler.next());
+
+        //inbound likewise, without searching the queue for the waiting message
+        final ReceivedMessageQueue queue = new ReceivedMessageQueue();
+        final OutboundScheduler.ConflationKey key = new OutboundScheduler.ConflationKey(1337, 0);
+        for (int i = 0; i < 10; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "k0#" + i;
+            Assert.assertEquals(i > 0, queue.addConflating(stringMessage, key));
+            if (i == 0) {
+                queue.add(other);
+            }
+        }
+        Assert.assertEquals(2, queue.size());
+        Assert.assertEquals("k0#9", ((MyTestStringMessage) queue.peek()).s1);
+        Assert.assertEquals("k0#9", ((MyTestStringMessage) queue.poll()).s1);
+        //once taken, the next message of the key is queued again
+        MyTestStringMessage afterTaken = new MyTestStringMessage();
+        afterTaken.s1 = "k0#10";
+        Assert.assertFalse(queue.addConflating(afterTaken, key));
+        Assert.assertSame(other, queue.poll());
+        Assert.assertSame(afterTaken, queue.poll());
+        Assert.assertNull(queue.poll());
+        //removing a message in any other way frees its slot as well, so the key keeps updating
+        MyTestStringMessage first = new MyTestStringMessage();
+        first.s1 = "k0#11";
+        MyTestStringMessage replacing = new MyTestStringMessage();
+        replacing.s1 = "k0#12";
+        queue.addConflating(first, key);
+        queue.addConflating(replacing, key);
+        Assert.assertEquals(1, queue.size());
+        Assert.assertFalse(queue.contains(first));
+        Assert.assertArrayEquals(new Object[]{replacing}, queue.toArray());
+        Assert.assertEquals(Arrays.<AbstractNetMessage>asList(replacing), queue.stream().collect(Collectors.<AbstractNetMessage>toList()));
+        Assert.assertTrue(queue.remove(replacing));
+        Assert.assertTrue(queue.isEmpty());
+        MyTestStringMessage afterRemove = new MyTestStringMessage();
+        afterRemove.s1 = "k0#13";
+        Assert.assertFalse(queue.addConflating(afterRemove, key));
+        Assert.assertTrue(queue.removeIf(new Predicate<AbstractNetMessage>() {
+            @Override
+            public boolean test(AbstractNetMessage message) {
+                return ((MyTestStringMessage) message).s1.startsWith("k0#");
+            }
+        }));
+        MyTestStringMessage afterRemoveIf = new MyTestStringMessage();
+        afterRemoveIf.s1 = "k0#14";
+        Assert.assertFalse(queue.addConflating(afterRemoveIf, key));
+        queue.add(other);
+        Assert.assertTrue(queue.retainAll(Arrays.asList(other)));
+        MyTestStringMessage afterRetain = new MyTestStringMessage();
+        afterRetain.s1 = "k0#15";
+        Assert.assertFalse(queue.addConflating(afterRetain, key));
+        Assert.assertSame(other, queue.poll());
+        Assert.assertSame(afterRetain, queue.poll());
+        Assert.assertNull(queue.poll());
+
+        //inbound, a polling client consumes nothing until all messages are read
+        final List<Server.ClientConnection> connections = Collections.synchronizedList(new ArrayList<Server.ClientConnection>());
+        server = new Server();
+        server.setOnClientConnectedListener(new Server.OnClientConnectedListener() {
+            @Override
+            public void onClientConnected(Server.ClientConnection clientConnection) {
+                connections.add(clientConnection);
+            }
+        });
+        server.startServer(portNumber + 16, register);
+        Client client = new Client(hostName, portNumber + 16, register);
+        client.setPollMode(true);
+        Assert.assertTrue(client.connect());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (connections.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        final List<AbstractNetMessage> toSend = new ArrayList<AbstractNetMessage>();
+        for (int i = 0; i < 100; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "k" + (i % 4) + "#" + i;
+            toSend.add(stringMessage);
+        }
+        Assert.assertTrue(connections.get(0).transceiver.send(toSend));
+        boolean last = false;
+        deadline = System.currentTimeMillis() + 5000;
+        while (!last && System.currentTimeMillis() < deadline) {
+            Assert.assertTrue(client.poll(64) >= 0);
+            for (AbstractNetMessage received : client.getMessages()) {
+                last |= "k3#99".equals(((MyTestStringMessage) received).s1);
+            }
+        }
+        Assert.assertTrue(last);
+        Assert.assertEquals(4, client.getMessages().size());
+        final Set<String> latest = new HashSet<String>();
+        for (AbstractNetMessage received : client.getMessages()) {
+            latest.add(((MyTestStringMessage) received).s1);
+        }
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("k0#96", "k1#97", "k2#98", "k3#99")), latest);
+        client.disconnect();
+        server.stopServer();
+    }
+
+    @Test
+    public void testSameHostClientMovesToSharedMemory() throws Exception {
+        final SharedMemoryConfiguration configuration = new SharedMemoryConfiguration();
+        configuration.setRingCapacityBytes(4096);
+        configuration.setWaitStrategy(WaitStrategy.YIELD);
+        //a ring file is opened only on the connection whose session token it carries
+        final SharedMemoryChannel offered = SharedMemoryChannel.create(configuration, 42);
+        try {
+            SharedMemoryChannel.open(offered.getFile().getAbsolutePath(), configuration, 43);
+            Assert.fail("opened the ring file of another connection");
+        } catch (IOException expected) {
+        }
+        SharedMemoryChannel.open(offered.getFile().getAbsolutePath(), configuration, 42).close();
+        offered.close();
+        offered.deleteFile();
+        final List<String> receivedByServer = Collections.synchronizedList(new ArrayList<String>());
+        final List<Server.ClientConnection> connections = Collections.synchronizedList(new ArrayList<Server.ClientConnection>());
+        server = new Server();
+        server.setSharedMemoryConfiguration(configuration);
+        server.setOnClientConnectedListener(new Server.OnClientConnectedListener() {
+            @Override
+            public void onClientConnected(Server.ClientConnection clientConnection) {
+                connections.add(clientConnection);
+            }
+        });
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    receivedByServer.add(((MyTestStringMessage) next).s1);
+                }
+            }
+        });
+        server.startServer(portNumber + 17, MyTestMessageRegisterSingleton.getSingleton());
+
+        Client client = new Client(hostName, portNumber + 17, MyTestMessageRegisterSingleton.getSingleton());
+        client.setSharedMemoryConfiguration(configuration);
+        Assert.assertTrue(client.connect());
+        //sent while the connection is being moved, many times the capacity of the rings
+        for (int i = 0; i < 2000; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "up " + i;
+            Assert.assertTrue(client.sendMessages(Arrays.<AbstractNetMessage>asList(stringMessage)));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((receivedByServer.size() < 2000 || !client.isSharedMemoryEnabled() || !connections.get(0).transceiver.isSharedMemoryEnabled()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(client.isSharedMemoryEnabled());
+        Assert.assertTrue(connections.get(0).transceiver.isSharedMemoryEnabled());
+        for (int i = 0; i < 2000; i++) {
+            Assert.assertEquals("up " + i, receivedByServer.get(i));
+        }
+
+        final List<AbstractNetMessage> toReceive = new ArrayList<AbstractNetMessage>();
+        for (int i = 0; i < 2000; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "down " + i;
+            toReceive.add(stringMessage);
+        }
+        Assert.assertTrue(connections.get(0).transceiver.send(toReceive));
+        deadline = System.currentTimeMillis() + 5000;
+        while (client.getMessages().size() < 2000 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2000, client.getMessages().size());
+        for (int i = 0; i < 2000; i++) {
+            Assert.assertEquals("down " + i, ((MyTestStringMessage) client.getMessages().poll()).s1);
+        }
+
+        //the server notices the client going away through the rings
+        client.disconnect();
+        deadline = System.currentTimeMillis() + 5000;
+        while (!connections.get(0).transceiver.isDead() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(connections.get(0).transceiver.isDead());
+        server.stopServer();
+    }
+
+    @Test
+    public void testOversizedFramesCloseTheConnection() throws Exception {
+        final List<Server.ClientConnection> connections = Collections.synchronizedList(new ArrayList<Server.ClientConnection>());
+        server = new Server();
+        server.setOnClientConnectedListener(new Server.OnClientConnectedListener() {
+            @Override
+            public void onClientConnected(Server.ClientConnection clientConnection) {
+                connections.add(clientConnection);
+            }
+        });
+        server.startServer(portNumber + 18, MyTestMessageRegisterSingleton.getSingleton());
+
+        //a declared length above the limit is rejected before anything is allocated for it
+        final byte[] header = new byte[8];
+        PrimitiveToByteConversionUtils.convertIntToByteArray(SocketTransceiver.CONTROL_FRAME_UID, header, 0);
+        PrimitiveToByteConversionUtils.convertIntToByteArray(Integer.MAX_VALUE, header, 4);
+        Socket socket = new Socket(hostName, portNumber + 18);
+        socket.getOutputStream().write(header);
+        socket.getOutputStream().flush();
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((connections.isEmpty() || !connections.get(0).transceiver.isDead()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(connections.get(0).transceiver.isDead());
+        socket.close();
+
+        //a small batch inflating above the limit is rejected as well
+        final byte[] bomb = CompressionUtils.compressByteArray(new byte[16 * 1024 * 1024]);
+        Assert.assertTrue(bomb.length < SocketTransceiver.MAX_FRAME_LENGTH_BYTES);
+        try {
+            CompressionUtils.decompressByteArray(bomb);
+            Assert.fail("decompression bomb inflated");
+        } catch (IOException expected) {
+        }
+        PrimitiveToByteConversionUtils.convertIntToByteArray(1 + bomb.length, header, 4);
+        socket = new Socket(hostName, portNumber + 18);
+        socket.getOutputStream().write(header);
+        socket.getOutputStream().write(SocketTransceiver.CONTROL_FRAME_BATCH);
+        socket.getOutputStream().write(bomb);
+        socket.getOutputStream().flush();
+        deadline = System.currentTimeMillis() + 5000;
+        while ((connections.size() < 2 || !connections.get(1).transceiver.isDead()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(connections.get(1).transceiver.isDead());
+        socket.close();
+        server.stopServer();
+    }
+
+    @Test
+    public void testPollModeClientRejectsOversizedFrames() throws Exception {
+        final ServerSocket listening = new ServerSocket(portNumber + 19);
+        Client client = new Client(hostName, portNumber + 19, MyTestMessageRegisterSingleton.getSingleton());
+        client.setPollMode(true);
+        Assert.assertTrue(client.connect());
+        final Socket accepted = listening.accept();
+        final byte[] header = new byte[8];
+        PrimitiveToByteConversionUtils.convertIntToByteArray(SocketTransceiver.CONTROL_FRAME_UID, header, 0);
+        PrimitiveToByteConversionUtils.convertIntToByteArray(Integer.MAX_VALUE - 8, header, 4);
+        accepted.getOutputStream().write(header);
+        accepted.getOutputStream().flush();
+        //the frame is refused before the inbound buffer grows, the connection is closed instead
+        final long deadline = System.currentTimeMillis() + 5000;
+        int polled = 0;
+        while ((polled = client.poll(16)) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(-1, polled);
+        accepted.close();
+        listening.close();
+        client.disconnect();
+    }
+
+    @Test
+    public void testTlsClientRefusesCertificateOfAnotherHost() throws Exception {
+        server = new Server();
+        server.setTlsConfiguration(TlsConfiguration.create(SelfSignedCertificates.getOtherHostKeyStore(), SelfSignedCertificates.PASSWORD, null));
+        server.startServer(portNumber + 20, MyTestMessageRegisterSingleton.getSingleton());
+        //the certificate is trusted, but issued for another host
+        Client client = new Client(hostName, portNumber + 20, MyTestMessageRegisterSingleton.getSingleton());
+        client.setTlsConfiguration(TlsConfiguration.create(null, null, SelfSignedCertificates.getOtherHostKeyStore()));
+        Assert.assertFalse(client.connect());
+        client.disconnect();
+        server.stopServer();
+    }
+
+    @Test
+    public void testClusterLinksProveTheSecretAndBackOff() throws Exception {
+        final NetMessageRegister register = MyTestMessageRegisterSingleton.getSingleton();
+        final ClusterNode nodeB = new ClusterNode("b", register);
+        try {
+            nodeB.start(0);
+            Assert.fail("started without a cluster secret");
+        } catch (IllegalStateException expected) {
+        }
+        nodeB.setClusterSecret("cluster secret".getBytes("UTF-8"));
+        nodeB.start(portNumber + 25).get(2, TimeUnit.SECONDS);
+        MyTestStringMessage injected = new MyTestStringMessage();
+        injected.s1 = "injected";
+        //a link which never proves the secret
+        final SocketTransceiver anonymous = new SocketTransceiver(register);
+        Assert.assertTrue(anonymous.tryConnect(hostName, portNumber + 25));
+        anonymous.forward(0, Arrays.<AbstractNetMessage>asList(injected));
+        //a link which proves a wrong secret
+        final SocketTransceiver impostor = new SocketTransceiver(register);
+        impostor.setForwardingSecret("wrong secret".getBytes("UTF-8"));
+        Assert.assertTrue(impostor.tryConnect(hostName, portNumber + 25));
+        Assert.assertTrue(impostor.proveForwardingSecret());
+        impostor.forward(0, Arrays.<AbstractNetMessage>asList(injected));
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((!anonymous.isDead() || !impostor.isDead()) && System.currentTimeMillis() < deadline) {
+            anonymous.forward(0, Arrays.<AbstractNetMessage>asList(injected));
+            impostor.forward(0, Arrays.<AbstractNetMessage>asList(injected));
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(anonymous.isDead());
+        Assert.assertTrue(impostor.isDead());
+        Assert.assertEquals(0, nodeB.getReceivedForwardedMessagesCount());
+        nodeB.stop();
+
+        //a peer which accepts links but never announces a session, so proving the secret times out
+        final ServerSocket silent = new ServerSocket(portNumber + 26);
+        final AtomicInteger acceptedLinks = new AtomicInteger();
+        final Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        silent.accept();
+                        acceptedLinks.incrementAndGet();
+                    }
+                } catch (IOException ex) {
+                    //closed
+                }
+            }
+        });
+        acceptor.start();
+        final ClusterNode nodeA = new ClusterNode("a", register);
+        nodeA.setClusterSecret("cluster secret".getBytes("UTF-8"));
+        nodeA.setLinkMaxPendingMessages(2);
+        //the link is opened in the background right away, without any message to forward
+        nodeA.addPeer("c", hostName, portNumber + 26);
+        deadline = System.currentTimeMillis() + 2000;
+        while (acceptedLinks.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        Assert.assertEquals(1, acceptedLinks.get());
+        long key = 0;
+        while (nodeA.isOwner(key)) {
+            key++;
+        }
+        //senders are not blocked by the link being opened, their messages are queued up to the limit
+        final long started = System.nanoTime();
+        Assert.assertTrue(nodeA.send(key, new MyTestStringMessage()));
+        Assert.assertTrue(nodeA.send(key, new MyTestStringMessage()));
+        Assert.assertFalse(nodeA.send(key, new MyTestStringMessage()));
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 500);
+        Assert.assertEquals(1, nodeA.getUndeliverableMessagesCount());
+        //the failed attempt is retried after a delay
+        deadline = System.currentTimeMillis() + 5000;
+        while (acceptedLinks.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, acceptedLinks.get());
+        Assert.assertEquals(0, nodeA.getForwardedMessagesCount());
+        //messages still queued are undeliverable once the node stops
+        nodeA.stop();
+        Assert.assertEquals(3, nodeA.getUndeliverableMessagesCount());
+        silent.close();
+        acceptor.join(2000);
+    }
+
+    @Test
+    public void testTokenBucketRefillsUpToItsBurst() throws InterruptedException {
+        final TokenBucket bucket = new TokenBucket(10, 5);
+        //a full bucket allows a burst of its capacity, then nothing more
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(bucket.tryAcquire());
+        }
+        Assert.assertFalse(bucket.tryAcquire());
+        //refilled at 10 tokens per second
+        Thread.sleep(250);
+        Assert.assertTrue(bucket.tryAcquire());
+        Assert.assertTrue(bucket.tryAcquire());
+        //never above capacity, however long it has been idle
+        Thread.sleep(1000);
+        int acquired = 0;
+        while (bucket.tryAcquire()) {
+            acquired++;
+        }
+        Assert.assertEquals(5, acquired);
+        //acquire() waits for the next token
+        final long started = System.nanoTime();
+        bucket.acquire();
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 50);
+        try {
+            new TokenBucket(0, 1);
+            Assert.fail("created a bucket which never refills");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testInboundRateLimitDelaysButKeepsMessages() throws InterruptedException {
+        final AtomicInteger received = new AtomicInteger();
+        server = new Server();
+        server.setInboundRateLimit(20, 5);
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                while (receivedMessages.poll() != null) {
+                    received.incrementAndGet();
+                }
+            }
+        });
+        server.startServer(portNumber + 27, MyTestMessageRegisterSingleton.getSingleton());
+        Client client = new Client(hostName, portNumber + 27, MyTestMessageRegisterSingleton.getSingleton());
+        Assert.assertTrue(client.connect());
+        final long started = System.currentTimeMillis();
+        for (int i = 0; i < 45; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "limited " + i;
+            Assert.assertTrue(client.sendMessages(Arrays.<AbstractNetMessage>asList(stringMessage)));
+        }
+        //a burst of 5, then 20 per second
+        Thread.sleep(500);
+        Assert.assertTrue("received " + received.get(), received.get() < 25);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (received.get() < 45 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        final long elapsed = System.currentTimeMillis() - started;
+        client.disconnect();
+        server.stopServer();
+        //pushed back on, not dropped
+        Assert.assertEquals(45, received.get());
+        Assert.assertTrue("elapsed " + elapsed, elapsed >= 1500);
+    }
+
+    @Test
+    public void testLoadSheddingDropsAllButHighPriority() throws InterruptedException {
+        final NetMessageRegister register = new NetMessageRegister();
+        register.register(MyTestStringMessage.class, 1337);
+        register.register(LoadTestMessage.class, 1338);
+        register.setPriority(LoadTestMessage.class, MessagePriority.HIGH);
+        final AtomicBoolean consuming = new AtomicBoolean();
+        final AtomicInteger receivedNormal = new AtomicInteger();
+        final AtomicInteger receivedHigh = new AtomicInteger();
+        server = new Server();
+        server.setLoadSheddingThresholds(10, Long.MAX_VALUE);
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                if (!consuming.get()) {
+                    //leave messages queued, as an overloaded consumer would
+                    return;
+                }
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    (next instanceof LoadTestMessage ? receivedHigh : receivedNormal).incrementAndGet();
+                }
+            }
+        });
+        server.startServer(portNumber + 28, register);
+        Client client = new Client(hostName, portNumber + 28, register);
+        Assert.assertTrue(client.connect());
+        for (int i = 0; i < 20; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "queued " + i;
+            Assert.assertTrue(client.sendMessages(Arrays.<AbstractNetMessage>asList(stringMessage)));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!server.isShedding() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(server.isShedding());
+        for (int i = 0; i < 5; i++) {
+            MyTestStringMessage stringMessage = new MyTestStringMessage();
+            stringMessage.s1 = "shed " + i;
+            Assert.assertTrue(client.sendMessages(Arrays.<AbstractNetMessage>asList(stringMessage)));
+            Assert.assertTrue(client.sendMessages(Arrays.<AbstractNetMessage>asList(new LoadTestMessage())));
+        }
+        //new connections are rejected while shedding
+        Client rejected = new Client(hostName, portNumber + 28, register);
+        rejected.connect();
+        deadline = System.currentTimeMillis() + 5000;
+        while ((server.getRejectedConnectionsCount() < 1 || server.getShedMessagesCount() < 5) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, server.getRejectedConnectionsCount());
+        Assert.assertTrue(server.getShedMessagesCount() >= 5);
+        rejected.disconnect();
+
+        //shedding stops once the backlog is consumed
+        consuming.set(true);
+        deadline = System.currentTimeMillis() + 5000;
+        while ((server.isShedding() || receivedHigh.get() < 5) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertFalse(server.isShedding());
+        MyTestStringMessage afterwards = new MyTestStringMessage();
+        afterwards.s1 = "afterwards";
+        Assert.assertTrue(client.sendMessages(Arrays.<AbstractNetMessage>asList(afterwards)));
+        deadline = System.currentTimeMillis() + 5000;
+        while (receivedNormal.get() + server.getShedMessagesCount() < 26 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.disconnect();
+        server.stopServer();
+        //high priority messages are never shed, others either reached the listener or were shed
+        Assert.assertEquals(5, receivedHigh.get());
+        Assert.assertEquals(26, receivedNormal.get() + server.getShedMessagesCount());
+        Assert.assertTrue(receivedNormal.get() >= 11);
+    }
+
+    @Test
+    public void testSendBlocksUntilItsMessagesAreWritten() throws Exception {
+        //a peer which never reads, so the socket buffers fill up
+        final ServerSocket listening = new ServerSocket(portNumber + 29);
+        final SocketTransceiver sender = new SocketTransceiver(MyTestMessageRegisterSingleton.getSingleton());
+        Assert.assertTrue(sender.tryConnect(hostName, portNumber + 29));
+        final Socket accepted = listening.accept();
+        final AtomicInteger sentBursts = new AtomicInteger();
+        final AtomicBoolean lastResult = new AtomicBoolean(true);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final Thread sending = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                boolean result = true;
+                while (result) {
+                    final List<AbstractNetMessage> burst = new ArrayList<AbstractNetMessage>();
+                    for (int i = 0; i < 1000; i++) {
+                        MyTestStringMessage stringMessage = new MyTestStringMessage();
+                        stringMessage.s1 = "burst " + sentBursts.get() + " message " + i;
+                        burst.add(stringMessage);
+                    }
+                    result = sender.send(burst);
+                    if (result) {
+                        sentBursts.incrementAndGet();
+                    }
+                }
+                lastResult.set(result);
+                finished.countDown();
+            }
+        });
+        sending.start();
+        //the sender is pushed back on instead of queueing without limit
+        int previous = -1;
+        final long deadline = System.currentTimeMillis() + 20000;
+        while (sentBursts.get() != previous && System.currentTimeMillis() < deadline) {
+            previous = sentBursts.get();
+            Thread.sleep(500);
+        }
+        Assert.assertEquals(previous, sentBursts.get());
+        Assert.assertEquals(1, finished.getCount());
+        //and learns about the failed write of its messages
+        accepted.setSoLinger(true, 0);
+        accepted.close();
+        Assert.assertTrue(finished.await(5, TimeUnit.SECONDS));
+        Assert.assertFalse(lastResult.get());
+        sender.disconnect();
+        listening.close();
+    }
+
+    @Test
+    public void testDatagramMessagesGoThroughInboundAdmission() throws Exception {
+        final long token = 43;
+        final byte[] secret = new byte[SocketTransceiver.SESSION_SECRET_LENGTH_BYTES];
+        Arrays.fill(secret, (byte) 9);
+        final DatagramTransceiver serverSide = new DatagramTransceiver(MyTestMessageRegisterSingleton.getSingleton());
+        final DatagramTransceiver clientSide = new DatagramTransceiver(MyTestMessageRegisterSingleton.getSingleton());
+        serverSide.bind();
+        clientSide.bind();
+        try {
+            //the connection is never connected, only its admission applies to datagrams
+            final SocketTransceiver connection = new SocketTransceiver(MyTestMessageRegisterSingleton.getSingleton());
+            final List<Integer> admittedUids = new CopyOnWriteArrayList<>();
+            connection.setInboundRateLimiter(new TokenBucket(0.001, 2));
+            connection.setInboundAdmissionPolicy(new SocketTransceiver.InboundAdmissionPolicy() {
+                @Override
+                public boolean admit(AbstractNetMessage message) {
+                    admittedUids.add(message.receivedUid);
+                    return !"shed".equals(((MyTestStringMessage) message).s1);
+                }
+            });
+            serverSide.createSession(token, secret, connection);
+            final DatagramSession clientSession = clientSide.createSession(token, secret, new ConcurrentLinkedQueue<AbstractNetMessage>());
+            clientSession.setRemoteAddress(new InetSocketAddress(hostName, serverSide.getLocalPort()));
+            Assert.assertTrue(clientSession.handshake(2000));
+
+            for (String s1 : new String[]{"shed", "kept", "over the limit"}) {
+                MyTestStringMessage message = new MyTestStringMessage();
+                message.s1 = s1;
+                Assert.assertTrue(clientSession.send(0, message));
+                Thread.sleep(50);
+            }
+            Thread.sleep(200);
+            //the third message finds no token left, and the first one is shed by the policy
+            final List<String> received = new ArrayList<>();
+            for (AbstractNetMessage message : connection.getReceivedMessages()) {
+                received.add(((MyTestStringMessage) message).s1);
+            }
+            Assert.assertEquals(Arrays.asList("kept"), received);
+            final int uid = MyTestMessageRegisterSingleton.getSingleton().get(MyTestStringMessage.class);
+            Assert.assertEquals(Arrays.asList(uid, uid), admittedUids);
+        } finally {
+            serverSide.close();
+            clientSide.close();
+        }
+    }
+
+    @Test
+    public void testNegativeUidsBesideReservedOnesCarryMessages() throws InterruptedException {
+        final NetMessageRegister register = new NetMessageRegister();
+        try {
+            register.register(MyTestStringMessage.class, -1);
+            Assert.fail("registered a reserved uid");
+        } catch (RuntimeException expected) {
+        }
+        //uids control frames used to be sent under, they are types within the single reserved uid now
+        register.register(MyTestStringMessage.class, -5);
+        register.register(LoadTestMessage.class, -12);
+        final List<AbstractNetMessage> received = new CopyOnWriteArrayList<>();
+        server = new Server();
+        server.setBatching(64 * 1024, 1000);
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                Object next;
+                while ((next = receivedMessages.poll()) != null) {
+                    received.add((AbstractNetMessage) next);
+                }
+            }
+        });
+        server.startServer(portNumber + 30, register);
+        Client client = new Client(hostName, portNumber + 30, register);
+        client.setBatching(64 * 1024, 1000);
+        Assert.assertTrue(client.connect());
+        MyTestStringMessage stringMessage = new MyTestStringMessage();
+        stringMessage.s1 = "under -5";
+        Assert.assertTrue(client.sendMessages(Arrays.<AbstractNetMessage>asList(stringMessage, new LoadTestMessage())));
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (received.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, received.size());
+        Assert.assertEquals("under -5", ((MyTestStringMessage) received.get(0)).s1);
+        Assert.assertTrue(received.get(1) instanceof LoadTestMessage);
+        client.disconnect();
+        server.stopServer();
+    }
+
     private void runNewClientAndSendSomeMessages() {
 
         try {
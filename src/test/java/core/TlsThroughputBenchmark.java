@@ -0,0 +1,77 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Compares throughput of plaintext and encrypted connections, by sending
+ * {@link LoadTestMessage}s from one {@link Client} to a loopback
+ * {@link Server} as fast as possible.
+ *
+ * Run with: mvn -Pload-test test-compile exec:java
+ * -Dloadtest.mainClass=core.TlsThroughputBenchmark -Dexec.args="200000"
+ *
+ * @author Michał Furgał
+ */
+public class TlsThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        Logger.getLogger("core").setLevel(Level.WARNING);
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final NetMessageRegister register = new NetMessageRegister();
+        register.register(LoadTestMessage.class, 4242);
+        final TlsConfiguration serverTls = SelfSignedCertificates.serverConfiguration();
+        final TlsConfiguration clientTls = SelfSignedCertificates.clientConfiguration();
+        for (int round = 0; round < 3; round++) {
+            //first round warms up both paths
+            run("plaintext", register, null, null, messages, 4343);
+            run("tls", register, serverTls, clientTls, messages, 4344);
+        }
+    }
+
+    private static void run(String name, NetMessageRegister register, TlsConfiguration serverTls, TlsConfiguration clientTls, int messages, int port) throws InterruptedException {
+        final AtomicLong received = new AtomicLong();
+        final Server server = new Server();
+        server.setServerLoopIntervalInMilliseconds(1);
+        server.setTlsConfiguration(serverTls);
+        server.setOnClientMessageListener(new Server.OnClientMessageListener() {
+            @Override
+            public void onClientMessage(Server.ClientConnection clientConnection, ConcurrentLinkedQueue receivedMessages) {
+                while (receivedMessages.poll() != null) {
+                    received.incrementAndGet();
+                }
+            }
+        });
+        server.startServer(port, register);
+        final Client client = new Client("127.0.0.1", port, register);
+        client.setTlsConfiguration(clientTls);
+        if (!client.connect()) {
+            throw new IllegalStateException("Could not connect");
+        }
+        final LoadTestMessage message = new LoadTestMessage();
+        message.payload = new byte[LoadTestMessage.MAX_PAYLOAD_SIZE_BYTES];
+        final List<AbstractNetMessage> batch = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(message);
+        }
+        final long start = System.nanoTime();
+        for (int sent = 0; sent < messages; sent += batch.size()) {
+            client.sendMessages(batch);
+        }
+        while (received.get() < messages) {
+            Thread.sleep(1);
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("%-9s messages=%d time=%.3fs messages/s=%.0f plaintextMB/s=%.2f", name, messages, seconds, messages / seconds,
+                messages * (double) SocketTransceiver.PACKET_SIZE_BYTES / seconds / (1 << 20)));
+        client.disconnect();
+        server.stopServer();
+        Thread.sleep(200);
+    }
+}